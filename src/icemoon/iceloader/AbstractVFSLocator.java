@@ -34,7 +34,13 @@ import com.jme3.asset.AssetKey;
 import com.jme3.asset.AssetLoadException;
 import com.jme3.asset.AssetLocator;
 import com.jme3.asset.AssetManager;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.vfs2.Capability;
@@ -50,6 +56,15 @@ public abstract class AbstractVFSLocator implements AssetLocator {
     protected static FileObject defaultStoreRoot;
     private static final Logger LOG = Logger.getLogger(AbstractVFSLocator.class.getName());
 
+    /**
+     * Local files of at least this size are memory mapped when opened, smaller
+     * ones are read through a file channel. A negative value disables mapping,
+     * which is the default on Windows, where a mapped file cannot be replaced
+     * or deleted until the mapping is garbage collected.
+     */
+    public static long MAP_THRESHOLD = Long.getLong("icescene.mapThreshold",
+            System.getProperty("os.name", "").toLowerCase().contains("windows") ? -1 : 256 * 1024);
+
     static {
         LOG.setLevel(Level.FINE);
     }
@@ -108,14 +123,34 @@ public abstract class AbstractVFSLocator implements AssetLocator {
     private static class AssetInfoFileObject extends ExtendedAssetInfo {
 
         private FileObject file;
+        private final File localFile;
 
         public AssetInfoFileObject(AssetManager manager, AssetKey<?> key, FileObject file) {
             super(manager, key);
             this.file = file;
+            localFile = LoaderUtils.toLocalFile(file);
         }
 
         @Override
         public InputStream openStream() {
+            if (localFile != null) {
+                // Bypass VFS for local files
+                try {
+                    FileChannel channel = FileChannel.open(localFile.toPath(), StandardOpenOption.READ);
+                    long size = channel.size();
+                    if (MAP_THRESHOLD < 0 || size < MAP_THRESHOLD || size > Integer.MAX_VALUE) {
+                        return Channels.newInputStream(channel);
+                    }
+                    try {
+                        return new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+                    } finally {
+                        // The mapping remains valid
+                        channel.close();
+                    }
+                } catch (IOException ioe) {
+                    throw new AssetLoadException("Failed to open file: " + file, ioe);
+                }
+            }
             try {
                 return file.getContent().getInputStream();
             } catch (FileSystemException ex) {
@@ -123,6 +158,27 @@ public abstract class AbstractVFSLocator implements AssetLocator {
             }
         }
 
+        @Override
+        public ByteBuffer openBuffer() {
+            if (localFile != null && MAP_THRESHOLD >= 0) {
+                try {
+                    FileChannel channel = FileChannel.open(localFile.toPath(), StandardOpenOption.READ);
+                    try {
+                        // A buffer cannot hold more than this, callers fall
+                        // back to the stream
+                        long size = channel.size();
+                        return size > Integer.MAX_VALUE ? null
+                                : channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                    } finally {
+                        channel.close();
+                    }
+                } catch (IOException ioe) {
+                    throw new AssetLoadException("Failed to open file: " + file, ioe);
+                }
+            }
+            return null;
+        }
+
         @Override
         public long getSize() {
             try {
@@ -149,6 +205,18 @@ public abstract class AbstractVFSLocator implements AssetLocator {
 		}
     }
 
+    /**
+     * Create the asset info for a file object.
+     *
+     * @param manager manager
+     * @param key key
+     * @param file file
+     * @return asset info
+     */
+    protected static ExtendedAssetInfo createAssetInfo(AssetManager manager, AssetKey<?> key, FileObject file) {
+        return new AssetInfoFileObject(manager, key, file);
+    }
+
     public AssetInfo locate(AssetManager manager, @SuppressWarnings("rawtypes") AssetKey key) {
         FileObject actualStoreRoot = getStoreRoot();
         StringBuilder name = new StringBuilder(rootPath);
@@ -82,19 +82,28 @@ public class AssetIndex extends AbstractConfiguration<List<IndexItem>> {
 			int idx = line.indexOf('\t');
 			int idx2 = line.indexOf('\t', idx + 1);
 			int idx3 = line.indexOf('\t', idx2 + 1);
+			int idx4 = idx3 == -1 ? -1 : line.indexOf('\t', idx3 + 1);
 			try {
 				String name = line.substring(0, idx);
 				long lastMod = Long.parseLong(line.substring(idx + 1, idx2));
 				long size = 0;
 				long unprocessedSize = -1;
+				String digest = null;
 				if (idx3 > -1) {
 					size = Long.parseLong(line.substring(idx2 + 1, idx3));
-					Long.parseLong(line.substring(idx3 + 1));
+					if (idx4 > -1) {
+						Long.parseLong(line.substring(idx3 + 1, idx4));
+						digest = line.substring(idx4 + 1);
+						if (digest.length() == 0)
+							digest = null;
+					} else {
+						Long.parseLong(line.substring(idx3 + 1));
+					}
 				}
 				else {
 					size = Long.parseLong(line.substring(idx2 + 1));
 				}
-				backingObject.add(new IndexItem(name, lastMod, size, unprocessedSize));
+				backingObject.add(new IndexItem(name, lastMod, size, unprocessedSize, digest));
 			} catch (IndexOutOfBoundsException nfe) {
 				System.err.println(
 						"[WARNING] Line " + lineNo + " ('" + line + "') could not be parsed. " + nfe.getMessage());
@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) 2013-2016 Emerald Icemoon All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  *
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package icemoon.iceloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Optional re-encryption of cached assets. Encrypted assets are delivered
+ * using the cipher from the {@link EncryptionContext} (by default
+ * <code>AES/CFB8/NoPadding</code>, which needs a block operation for every
+ * byte). When <strong>icescene.reencryptCache</strong> is <code>true</code>,
+ * they are instead written to the cache using {@link #CIPHER}, which works a
+ * block at a time and can be read from any position, so loading from the
+ * cache is much cheaper. Assets that are not encrypted are cached as is.
+ * <p>
+ * Re-encrypted entries start with {@link #MAGIC} rather than the context's
+ * magic, followed by the same size and IV as the delivered asset. The
+ * counter is derived from that IV, so the delivered content can be
+ * reconstructed exactly (see {@link #toDelivered(InputStream)}), for example
+ * to check it against its digest.
+ */
+public class CacheCipher {
+
+	/**
+	 * Whether encrypted assets are re-encrypted when cached.
+	 */
+	public static boolean REENCRYPT = "true".equalsIgnoreCase(System.getProperty("icescene.reencryptCache", "false"));
+
+	/**
+	 * Cipher used for re-encrypted cache entries.
+	 */
+	public final static String CIPHER = "AES/CTR/NoPadding";
+
+	/**
+	 * Magic bytes at the start of re-encrypted cache entries.
+	 */
+	public final static String MAGIC = "!@ENC/CTR1";
+
+	private final static int BLOCK_SIZE = 16;
+
+	private static SecretKeySpec secret;
+
+	/**
+	 * Get the magic bytes at the start of re-encrypted cache entries.
+	 *
+	 * @return header
+	 */
+	public static byte[] getHeader() {
+		return MAGIC.getBytes();
+	}
+
+	/**
+	 * Wrap a stream that cache content is written to, so that content
+	 * encrypted using the {@link EncryptionContext} is re-encrypted using
+	 * {@link #CIPHER}. Anything else is written as is.
+	 *
+	 * @param out
+	 *            stream to write to
+	 * @return re-encrypting stream
+	 */
+	public static OutputStream reencrypt(OutputStream out) {
+		return new ReencryptingOutputStream(out);
+	}
+
+	/**
+	 * Decrypt the content of a re-encrypted cache entry. The returned stream
+	 * supports skipping without decrypting what is skipped.
+	 *
+	 * @param in
+	 *            stream, positioned just after the header
+	 * @param iv
+	 *            IV from the header
+	 * @return decrypted stream
+	 * @throws IOException
+	 */
+	public static InputStream decrypt(InputStream in, byte[] iv) throws IOException {
+		return new CounterInputStream(in, Cipher.DECRYPT_MODE, iv);
+	}
+
+	/**
+	 * Turn the content of a cache entry back into exactly what was delivered,
+	 * i.e. reverse any re-encryption.
+	 *
+	 * @param in
+	 *            cached content
+	 * @return delivered content
+	 * @throws IOException
+	 */
+	public static InputStream toDelivered(InputStream in) throws IOException {
+		byte[] header = getHeader();
+		PushbackInputStream pin = new PushbackInputStream(in, header.length);
+		byte[] b = new byte[header.length];
+		int n = LoaderUtils.readFully(pin, b);
+		if (n < header.length || !Arrays.equals(b, header)) {
+			if (n > 0)
+				pin.unread(b, 0, n);
+			return pin;
+		}
+		DataInputStream din = new DataInputStream(pin);
+		long size = din.readLong();
+		int ivl = din.read();
+		byte[] iv = new byte[ivl];
+		din.readFully(iv);
+		try {
+			Cipher c = Cipher.getInstance(EncryptionContext.get().getCipher());
+			c.init(Cipher.ENCRYPT_MODE, getKey(), new IvParameterSpec(iv));
+			return new SequenceInputStream(new ByteArrayInputStream(header(EncryptionContext.get().getHeader(), size, iv)),
+					new CipherInputStream(decrypt(pin, iv), c));
+		} catch (GeneralSecurityException gse) {
+			throw new IOException("Failed to initialise cipher.", gse);
+		}
+	}
+
+	private static byte[] header(byte[] magic, long size, byte[] iv) throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		DataOutputStream dout = new DataOutputStream(bout);
+		dout.write(magic);
+		dout.writeLong(size);
+		dout.write(iv.length);
+		dout.write(iv);
+		dout.flush();
+		return bout.toByteArray();
+	}
+
+	private static synchronized SecretKeySpec getKey() throws IOException {
+		// Creating the key is slow, so it is only done once
+		if (secret == null) {
+			try {
+				secret = EncryptionContext.get().createKey();
+			} catch (Exception e) {
+				throw new IOException("Failed to create key.", e);
+			}
+		}
+		return secret;
+	}
+
+	private static Cipher counterCipher(int mode, byte[] iv, long block) throws IOException {
+		try {
+			// The counter starts from a digest of the IV, so it is never the
+			// same as the delivered cipher's feedback
+			byte[] start = Arrays.copyOf(MessageDigest.getInstance("SHA-1").digest(iv), BLOCK_SIZE);
+			byte[] counter = new BigInteger(1, start).add(BigInteger.valueOf(block)).toByteArray();
+			byte[] ctr = new byte[BLOCK_SIZE];
+			int len = Math.min(counter.length, BLOCK_SIZE);
+			System.arraycopy(counter, counter.length - len, ctr, BLOCK_SIZE - len, len);
+			Cipher c = Cipher.getInstance(CIPHER);
+			c.init(mode, getKey(), new IvParameterSpec(ctr));
+			return c;
+		} catch (GeneralSecurityException gse) {
+			throw new IOException("Failed to initialise cipher.", gse);
+		}
+	}
+
+	/**
+	 * Reads the header of delivered content as it is written. If it is
+	 * encrypted, the rest is decrypted and encrypted again using the counter
+	 * cipher.
+	 */
+	private static class ReencryptingOutputStream extends FilterOutputStream {
+		private final byte[] magic = EncryptionContext.get().getHeader();
+		private ByteArrayOutputStream head = new ByteArrayOutputStream();
+		private Cipher decrypt;
+		private Cipher encrypt;
+
+		private ReencryptingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (head != null) {
+				head.write(b, off, len);
+				start();
+			} else if (decrypt == null) {
+				out.write(b, off, len);
+			} else {
+				transform(b, off, len);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				if (head != null) {
+					// Too short to be encrypted
+					out.write(head.toByteArray());
+					head = null;
+				} else if (decrypt != null) {
+					try {
+						byte[] rem = decrypt.doFinal();
+						byte[] enc = rem.length == 0 ? encrypt.doFinal() : encrypt.doFinal(rem);
+						out.write(enc);
+					} catch (GeneralSecurityException gse) {
+						throw new IOException("Failed to re-encrypt.", gse);
+					}
+				}
+			} finally {
+				out.close();
+			}
+		}
+
+		private void start() throws IOException {
+			byte[] h = head.toByteArray();
+			for (int i = 0; i < Math.min(h.length, magic.length); i++) {
+				if (h[i] != magic[i]) {
+					// Not encrypted
+					head = null;
+					out.write(h);
+					return;
+				}
+			}
+			int fixed = magic.length + 9;
+			if (h.length < fixed || h.length < fixed + (h[fixed - 1] & 0xff))
+				return;
+
+			ByteBuffer bb = ByteBuffer.wrap(h, magic.length, 9);
+			long size = bb.getLong();
+			byte[] iv = Arrays.copyOfRange(h, fixed, fixed + (h[fixed - 1] & 0xff));
+			try {
+				decrypt = Cipher.getInstance(EncryptionContext.get().getCipher());
+				decrypt.init(Cipher.DECRYPT_MODE, getKey(), new IvParameterSpec(iv));
+			} catch (GeneralSecurityException gse) {
+				throw new IOException("Failed to initialise cipher.", gse);
+			}
+			encrypt = counterCipher(Cipher.ENCRYPT_MODE, iv, 0);
+			head = null;
+			out.write(header(getHeader(), size, iv));
+			int hl = fixed + iv.length;
+			if (h.length > hl)
+				transform(h, hl, h.length - hl);
+		}
+
+		private void transform(byte[] b, int off, int len) throws IOException {
+			byte[] plain = decrypt.update(b, off, len);
+			if (plain != null && plain.length > 0) {
+				byte[] enc = encrypt.update(plain);
+				if (enc != null)
+					out.write(enc);
+			}
+		}
+	}
+
+	/**
+	 * Applies the counter cipher to a stream. As the key stream for any
+	 * position can be computed directly, skipping does not need to process
+	 * what is skipped.
+	 */
+	private static class CounterInputStream extends FilterInputStream {
+		private final int mode;
+		private final byte[] iv;
+		private Cipher cipher;
+		private long position;
+
+		private CounterInputStream(InputStream in, int mode, byte[] iv) throws IOException {
+			super(in);
+			this.mode = mode;
+			this.iv = iv;
+			cipher = counterCipher(mode, iv, 0);
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int r = read(b, 0, 1);
+			return r == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int r = in.read(b, off, len);
+			if (r > 0) {
+				try {
+					cipher.update(b, off, r, b, off);
+				} catch (GeneralSecurityException gse) {
+					throw new IOException("Failed to decrypt.", gse);
+				}
+				position += r;
+			}
+			return r;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(n);
+			if (skipped > 0) {
+				position += skipped;
+				cipher = counterCipher(mode, iv, position / BLOCK_SIZE);
+				int partial = (int) (position % BLOCK_SIZE);
+				if (partial > 0)
+					cipher.update(new byte[partial]);
+			}
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2013-2016 Emerald Icemoon All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  *
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package icemoon.iceloader;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.commons.vfs2.FileObject;
+
+/**
+ * Decides whether a cached asset must be checked against the server before it
+ * is used, based on when it was last found to be up to date. That time is kept
+ * in the {@link CacheMetadata}, so it survives restarts, and an asset
+ * validated within its time-to-live is used without asking the server again.
+ * <p>
+ * The time-to-live is given by <strong>icescene.cacheTTL</strong>, a list of
+ * <code>pattern=ttl</code> rules separated by <code>;</code>, the first
+ * matching rule being used. A pattern is either a regular expression matched
+ * against the whole asset name, or <code>*.ext</code> to match an asset type
+ * by its extension. For example,
+ * <code>Interface/.*=10m;*.j3md=1d;*.ogg=never</code>. A ttl is a number of
+ * seconds, optionally followed by <code>ms</code>, <code>s</code>,
+ * <code>m</code>, <code>h</code> or <code>d</code>, or <code>never</code> to
+ * never check again. A ttl of 0 checks once per runtime. Assets matching no
+ * rule use <strong>icescene.defaultCacheTTL</strong>.
+ */
+public class CacheFreshness {
+
+	private static final Logger LOG = Logger.getLogger(CacheFreshness.class.getName());
+
+	/**
+	 * Time-to-live rules.
+	 */
+	public static String RULES = System.getProperty("icescene.cacheTTL", "");
+
+	/**
+	 * Time-to-live of assets matching no rule.
+	 */
+	public static String DEFAULT_TTL = System.getProperty("icescene.defaultCacheTTL", "1h");
+
+	/**
+	 * How long (in milliseconds) to gather validations before storing them in
+	 * the metadata.
+	 */
+	public static long FLUSH_DELAY = 5000;
+
+	private final static Map<String, CacheFreshness> instances = new HashMap<String, CacheFreshness>();
+
+	private final static ExecutorService flusher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "CacheFreshness");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		}
+	});
+
+	private static class Rule {
+		private final Pattern pattern;
+		private final long ttl;
+
+		private Rule(Pattern pattern, long ttl) {
+			this.pattern = pattern;
+			this.ttl = ttl;
+		}
+	}
+
+	/**
+	 * Get the freshness for a cache root.
+	 *
+	 * @param cacheRoot
+	 *            cache root
+	 * @return freshness
+	 */
+	public static CacheFreshness get(FileObject cacheRoot) {
+		synchronized (instances) {
+			String k = cacheRoot.getName().getURI();
+			CacheFreshness f = instances.get(k);
+			if (f == null) {
+				f = new CacheFreshness(cacheRoot);
+				instances.put(k, f);
+			}
+			return f;
+		}
+	}
+
+	/**
+	 * Parse a time-to-live.
+	 *
+	 * @param ttl
+	 *            ttl, e.g. <code>30</code>, <code>10m</code> or
+	 *            <code>never</code>
+	 * @return time-to-live in milliseconds, or {@link Long#MAX_VALUE} for never
+	 * @throws NumberFormatException
+	 *             if the ttl is not valid
+	 */
+	public static long parseTTL(String ttl) {
+		ttl = ttl.trim().toLowerCase();
+		if (ttl.equals("never"))
+			return Long.MAX_VALUE;
+		long unit = 1000;
+		if (ttl.endsWith("ms")) {
+			unit = 1;
+			ttl = ttl.substring(0, ttl.length() - 2);
+		} else if (ttl.endsWith("s")) {
+			ttl = ttl.substring(0, ttl.length() - 1);
+		} else if (ttl.endsWith("m")) {
+			unit = 60 * 1000;
+			ttl = ttl.substring(0, ttl.length() - 1);
+		} else if (ttl.endsWith("h")) {
+			unit = 60 * 60 * 1000;
+			ttl = ttl.substring(0, ttl.length() - 1);
+		} else if (ttl.endsWith("d")) {
+			unit = 24 * 60 * 60 * 1000;
+			ttl = ttl.substring(0, ttl.length() - 1);
+		}
+		return Long.parseLong(ttl.trim()) * unit;
+	}
+
+	private final FileObject cacheRoot;
+	private final List<Rule> rules = new ArrayList<Rule>();
+	private final long defaultTTL;
+	private final Map<String, Long> pending = new ConcurrentHashMap<String, Long>();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+
+	private CacheFreshness(FileObject cacheRoot) {
+		this.cacheRoot = cacheRoot;
+		for (String rule : RULES.split(";")) {
+			rule = rule.trim();
+			if (rule.length() == 0)
+				continue;
+			int idx = rule.lastIndexOf('=');
+			try {
+				if (idx < 1)
+					throw new IllegalArgumentException("Expected pattern=ttl");
+				String pattern = rule.substring(0, idx).trim();
+				if (pattern.startsWith("*."))
+					pattern = ".*" + Pattern.quote(pattern.substring(1));
+				rules.add(new Rule(Pattern.compile(pattern), parseTTL(rule.substring(idx + 1))));
+			} catch (PatternSyntaxException pse) {
+				LOG.warning(String.format("Ignoring cache TTL rule '%s'. %s", rule, pse.getMessage()));
+			} catch (IllegalArgumentException iae) {
+				LOG.warning(String.format("Ignoring cache TTL rule '%s'. %s", rule, iae.getMessage()));
+			}
+		}
+		long ttl;
+		try {
+			ttl = parseTTL(DEFAULT_TTL);
+		} catch (NumberFormatException nfe) {
+			LOG.warning(String.format("Invalid default cache TTL '%s', checking once per runtime.", DEFAULT_TTL));
+			ttl = 0;
+		}
+		defaultTTL = ttl;
+	}
+
+	/**
+	 * Get how long after being validated an asset may be used without asking
+	 * the server again.
+	 *
+	 * @param name
+	 *            asset name
+	 * @return time-to-live in milliseconds, or {@link Long#MAX_VALUE} for never
+	 */
+	public long getTTL(String name) {
+		for (Rule r : rules) {
+			if (r.pattern.matcher(name).matches())
+				return r.ttl;
+		}
+		return defaultTTL;
+	}
+
+	/**
+	 * Get whether the cached copy of an asset was validated recently enough
+	 * that it may be used without asking the server.
+	 *
+	 * @param name
+	 *            asset name
+	 * @return valid
+	 */
+	public boolean isValid(String name) {
+		long ttl = getTTL(name);
+		if (ttl == Long.MAX_VALUE)
+			return true;
+		if (ttl <= 0)
+			return false;
+		CacheMetadata.Entry entry = CacheMetadata.get(cacheRoot).getEntry(name);
+		if (entry == null)
+			return false;
+		long validated = entry.getValidated();
+		Long notStored = pending.get(name);
+		if (notStored != null && notStored > validated)
+			validated = notStored;
+		if (validated <= 0)
+			return false;
+		long age = System.currentTimeMillis() - validated;
+		return age >= 0 && age < ttl;
+	}
+
+	/**
+	 * Record that the cached copy of an asset has just been found to be up to
+	 * date. Validations are gathered and stored in the metadata together,
+	 * shortly after.
+	 *
+	 * @param name
+	 *            asset name
+	 */
+	public void validated(String name) {
+		pending.put(name, System.currentTimeMillis());
+		if (scheduled.compareAndSet(false, true)) {
+			flusher.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Thread.sleep(FLUSH_DELAY);
+					} catch (InterruptedException ie) {
+					} finally {
+						scheduled.set(false);
+						flush();
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Store any validations not yet in the metadata.
+	 */
+	public void flush() {
+		final Map<String, Long> times = new HashMap<String, Long>();
+		for (String name : pending.keySet().toArray(new String[0])) {
+			Long t = pending.remove(name);
+			if (t != null)
+				times.put(name, t);
+		}
+		if (times.isEmpty())
+			return;
+		CacheMetadata.get(cacheRoot).updateEntries(times.keySet(), false, new CacheMetadata.Update() {
+			@Override
+			public boolean apply(CacheMetadata.Entry entry) {
+				long t = times.get(entry.getName());
+				if (entry.getValidated() >= t)
+					return false;
+				entry.setValidated(t);
+				return true;
+			}
+		});
+	}
+}
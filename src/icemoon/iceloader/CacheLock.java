@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2013-2016 Emerald Icemoon All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  *
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package icemoon.iceloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.vfs2.FileObject;
+
+/**
+ * Coordinates use of a local asset cache between processes (for example,
+ * several game clients or tools sharing the same cache directory). Each cache
+ * entry maps to a single byte of a lock file in the cache root, which is
+ * locked while the entry is being written. Other processes wait for the lock
+ * to be released before reading the entry, or before downloading it
+ * themselves, so they may reuse the download that was already in progress.
+ * <p>
+ * Within a process, an entry is held by the thread that locked it, and only
+ * that thread may lock it again (the lock is re-entrant). Any thread may
+ * unlock it, so that an entry locked while it is read may be unlocked once it
+ * has been written in the background.
+ * <p>
+ * Only caches on the local file system are supported, for anything else
+ * {@link #get(FileObject)} returns <code>null</code>.
+ */
+public class CacheLock {
+
+	private static final Logger LOG = Logger.getLogger(CacheLock.class.getName());
+
+	public final static String DEFAULT_RESOURCE_NAME = ".iceloader-lock";
+
+	private final static int SLOTS = 1 << 20;
+	private final static long POLL = 50;
+
+	private final static Map<String, CacheLock> instances = new HashMap<String, CacheLock>();
+
+	private static class Held {
+		FileLock lock;
+		Thread owner;
+		int count;
+	}
+
+	/**
+	 * Get the lock for a cache root.
+	 *
+	 * @param cacheRoot
+	 *            cache root
+	 * @return lock or <code>null</code> if the cache is not local
+	 */
+	public static CacheLock get(FileObject cacheRoot) {
+		synchronized (instances) {
+			String k = cacheRoot.getName().getURI();
+			if (instances.containsKey(k))
+				return instances.get(k);
+			CacheLock l = null;
+			File dir = LoaderUtils.toLocalFile(cacheRoot);
+			if (dir != null) {
+				try {
+					if (!dir.exists())
+						dir.mkdirs();
+					l = new CacheLock(new File(dir, DEFAULT_RESOURCE_NAME));
+				} catch (IOException ioe) {
+					LOG.log(Level.WARNING, String.format("Could not open cache lock in %s, cache will not be shared safely", dir), ioe);
+				}
+			}
+			instances.put(k, l);
+			return l;
+		}
+	}
+
+	private final FileChannel channel;
+	private final Map<Long, Held> held = new HashMap<Long, Held>();
+
+	CacheLock(File file) throws IOException {
+		channel = new RandomAccessFile(file, "rw").getChannel();
+	}
+
+	/**
+	 * Lock an entry for writing, waiting for any other process that holds it.
+	 *
+	 * @param name
+	 *            asset name
+	 * @param timeout
+	 *            maximum time to wait in milliseconds
+	 * @return locked, or <code>false</code> if timed out (or interrupted)
+	 */
+	public boolean lock(String name, long timeout) {
+		long until = System.currentTimeMillis() + timeout;
+		while (true) {
+			if (tryLock(name)) {
+				return true;
+			}
+			if (System.currentTimeMillis() >= until) {
+				LOG.warning(String.format("Timed out waiting for another process or thread to finish with %s", name));
+				return false;
+			}
+			if (!sleep())
+				return false;
+		}
+	}
+
+	/**
+	 * Lock an entry for writing if no other process or thread holds it,
+	 * without waiting.
+	 *
+	 * @param name
+	 *            asset name
+	 * @return locked
+	 */
+	public boolean tryLock(String name) {
+		long slot = slot(name);
+		synchronized (held) {
+			Held h = held.get(slot);
+			if (h != null) {
+				if (h.owner != Thread.currentThread())
+					// Held by another thread of this process
+					return false;
+				h.count++;
+				return true;
+			}
+			FileLock l = tryLock(slot);
+			if (l != null) {
+				h = new Held();
+				h.lock = l;
+				h.owner = Thread.currentThread();
+				h.count = 1;
+				held.put(slot, h);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Release an entry locked by {@link #lock(String, long)}. This need not be
+	 * called by the thread that locked it.
+	 *
+	 * @param name
+	 *            asset name
+	 */
+	public void unlock(String name) {
+		long slot = slot(name);
+		synchronized (held) {
+			Held h = held.get(slot);
+			if (h != null && --h.count == 0) {
+				held.remove(slot);
+				try {
+					h.lock.release();
+				} catch (IOException ioe) {
+					LOG.log(Level.WARNING, String.format("Failed to release cache lock for %s", name), ioe);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wait until no other process is writing an entry.
+	 *
+	 * @param name
+	 *            asset name
+	 * @param timeout
+	 *            maximum time to wait in milliseconds
+	 * @return <code>true</code> if another process was writing the entry and
+	 *         has finished, <code>false</code> if none was, or it did not
+	 *         finish in time (or the wait was interrupted)
+	 */
+	public boolean awaitUnlocked(String name, long timeout) {
+		long slot = slot(name);
+		long until = System.currentTimeMillis() + timeout;
+		boolean waited = false;
+		while (true) {
+			synchronized (held) {
+				if (held.containsKey(slot))
+					return waited;
+				FileLock l = tryLock(slot);
+				if (l != null) {
+					try {
+						l.release();
+					} catch (IOException e) {
+					}
+					if (waited && LOG.isLoggable(Level.FINE)) {
+						LOG.fine(String.format("Another process finished with %s", name));
+					}
+					return waited;
+				}
+			}
+			if (!waited && LOG.isLoggable(Level.FINE)) {
+				LOG.fine(String.format("Waiting for another process to finish with %s", name));
+			}
+			waited = true;
+			if (System.currentTimeMillis() >= until) {
+				LOG.warning(String.format("Timed out waiting for another process or thread to finish with %s", name));
+				return false;
+			}
+			if (!sleep())
+				return false;
+		}
+	}
+
+	private FileLock tryLock(long slot) {
+		try {
+			return channel.tryLock(slot, 1, false);
+		} catch (OverlappingFileLockException ofle) {
+			// Held by another thread of this process
+			return null;
+		} catch (IOException ioe) {
+			LOG.log(Level.WARNING, "Failed to lock cache.", ioe);
+			return null;
+		}
+	}
+
+	private boolean sleep() {
+		try {
+			Thread.sleep(POLL);
+			return true;
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private static long slot(String name) {
+		return (name.hashCode() & 0x7fffffff) % SLOTS;
+	}
+}
@@ -0,0 +1,849 @@
+/*
+ * Copyright (c) 2013-2016 Emerald Icemoon All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  *
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package icemoon.iceloader;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.vfs2.Capability;
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.Selectors;
+
+/**
+ * Metadata about the entries in a local asset cache, such as the last
+ * modified time and size of the cached content, the <code>ETag</code> the
+ * server supplied with it, a digest of it, how it is encrypted and how it has
+ * been used. Freshness and eviction decisions are made using this rather than
+ * by asking the file system about each entry. It is kept in a single journal
+ * file in the cache root, each change is appended as a line, with later lines
+ * for the same entry replacing earlier ones. Changes are made in memory
+ * straight away, and written to the journal together in the background
+ * shortly after (see {@link #flush()}), when any lines appended by other
+ * processes sharing the cache are also read. The journal is compacted
+ * whenever it has grown much bigger than the number of entries.
+ * <p>
+ * Entries returned are copies, so changes to them are only seen once they
+ * are put back. To change an entry based on its current state, use
+ * {@link #update(String, boolean, Update)}, which does so under the lock.
+ * <p>
+ * Caches written before the metadata held sizes and last modified times are
+ * scanned once to fill them in, see {@link #scan()}.
+ */
+public class CacheMetadata {
+
+	private static final Logger LOG = Logger.getLogger(CacheMetadata.class.getName());
+
+	public final static String DEFAULT_RESOURCE_NAME = ".iceloader-meta";
+
+	/**
+	 * Algorithm used for the digests of cached content.
+	 */
+	public final static String DIGEST_ALGORITHM = "SHA-1";
+
+	/**
+	 * Encryption state of content that is not encrypted.
+	 */
+	public final static String NOT_ENCRYPTED = "none";
+
+	/**
+	 * How long changes are gathered before they are written to the journal
+	 * together (in milliseconds).
+	 */
+	public static long FLUSH_DELAY = 1000;
+
+	private final static String SCANNED = "!scanned";
+
+	/**
+	 * Prefix of the first line of a compacted journal, unique to each
+	 * compaction, so other processes can tell the journal was replaced.
+	 */
+	private final static String GENERATION = "!generation ";
+
+	private final static int COMPACT_LINES = 1000;
+
+	private final static Map<String, CacheMetadata> instances = new HashMap<String, CacheMetadata>();
+
+	private final static ExecutorService flusher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "CacheMetadata");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		}
+	});
+
+	static {
+		// Don't lose changes still waiting to be written
+		Runtime.getRuntime().addShutdownHook(new Thread("CacheMetadataShutdown") {
+			@Override
+			public void run() {
+				List<CacheMetadata> all;
+				synchronized (instances) {
+					all = new ArrayList<CacheMetadata>(instances.values());
+				}
+				for (CacheMetadata m : all) {
+					try {
+						m.flush();
+					} catch (RuntimeException re) {
+						LOG.log(Level.WARNING, "Failed to write cache metadata.", re);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * A change to an entry, made while holding the lock on the metadata.
+	 */
+	public interface Update {
+		/**
+		 * Change an entry.
+		 *
+		 * @param entry
+		 *            entry to change
+		 * @return <code>true</code> if the entry was changed, and so should
+		 *         be stored
+		 */
+		boolean apply(Entry entry);
+	}
+
+	/**
+	 * Metadata for a single cache entry.
+	 */
+	public static class Entry {
+		private final String name;
+		private String etag;
+		private long lastAccess;
+		private int hits;
+		private long lastModified;
+		private long size = -1;
+		private String digest;
+		private String encryption;
+		private long verified;
+		private long validated;
+
+		public Entry(String name) {
+			this.name = name;
+		}
+
+		Entry copy() {
+			Entry e = new Entry(name);
+			e.etag = etag;
+			e.lastAccess = lastAccess;
+			e.hits = hits;
+			e.lastModified = lastModified;
+			e.size = size;
+			e.digest = digest;
+			e.encryption = encryption;
+			e.verified = verified;
+			e.validated = validated;
+			return e;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Get the entity tag the server supplied with the cached content.
+		 *
+		 * @return entity tag or <code>null</code> if none
+		 */
+		public String getETag() {
+			return etag;
+		}
+
+		public void setETag(String etag) {
+			this.etag = etag;
+		}
+
+		/**
+		 * Get when the cached content was last used, as recorded the last
+		 * time usage was stored.
+		 *
+		 * @return last access time or 0 if not known
+		 */
+		public long getLastAccess() {
+			return lastAccess;
+		}
+
+		public void setLastAccess(long lastAccess) {
+			this.lastAccess = lastAccess;
+		}
+
+		/**
+		 * Get how many times the cached content has been used.
+		 *
+		 * @return hits
+		 */
+		public int getHits() {
+			return hits;
+		}
+
+		public void setHits(int hits) {
+			this.hits = hits;
+		}
+
+		/**
+		 * Get the last modified time of the cached content, as supplied by
+		 * where it was downloaded from. This is the validator used for
+		 * freshness checks.
+		 *
+		 * @return last modified time or 0 if not known
+		 */
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public void setLastModified(long lastModified) {
+			this.lastModified = lastModified;
+		}
+
+		/**
+		 * Get the size of the cached content.
+		 *
+		 * @return size or -1 if not known
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		public void setSize(long size) {
+			this.size = size;
+		}
+
+		/**
+		 * Get the digest of the cached content (using
+		 * {@link CacheMetadata#DIGEST_ALGORITHM}) as a hex string.
+		 *
+		 * @return digest or <code>null</code> if not known
+		 */
+		public String getDigest() {
+			return digest;
+		}
+
+		public void setDigest(String digest) {
+			this.digest = digest;
+		}
+
+		/**
+		 * Get how the cached content is encrypted, either the cipher name or
+		 * {@link CacheMetadata#NOT_ENCRYPTED}.
+		 *
+		 * @return encryption or <code>null</code> if not known
+		 */
+		public String getEncryption() {
+			return encryption;
+		}
+
+		public void setEncryption(String encryption) {
+			this.encryption = encryption;
+		}
+
+		/**
+		 * Get when the cached content was last found to be intact by the
+		 * {@link CacheVerifier}.
+		 *
+		 * @return verification time or 0 if not verified since written
+		 */
+		public long getVerified() {
+			return verified;
+		}
+
+		public void setVerified(long verified) {
+			this.verified = verified;
+		}
+
+		/**
+		 * Get when the cached content was last found to be up to date with
+		 * the server, either by downloading it, by the index or by the server
+		 * saying it is not modified. See {@link CacheFreshness}.
+		 *
+		 * @return validation time or 0 if not known
+		 */
+		public long getValidated() {
+			return validated;
+		}
+
+		public void setValidated(long validated) {
+			this.validated = validated;
+		}
+
+		String format() {
+			StringBuilder b = new StringBuilder(name);
+			b.append('\t');
+			b.append(etag == null ? "" : etag);
+			b.append('\t');
+			b.append(lastAccess);
+			b.append('\t');
+			b.append(hits);
+			b.append('\t');
+			b.append(lastModified);
+			b.append('\t');
+			b.append(size);
+			b.append('\t');
+			b.append(digest == null ? "" : digest);
+			b.append('\t');
+			b.append(encryption == null ? "" : encryption);
+			b.append('\t');
+			b.append(verified);
+			b.append('\t');
+			b.append(validated);
+			return b.toString();
+		}
+
+		static Entry parse(String line) {
+			String[] cols = line.split("\t", -1);
+			Entry e = new Entry(cols[0]);
+			if (cols.length > 1 && cols[1].length() > 0)
+				e.etag = cols[1];
+			if (cols.length > 3) {
+				try {
+					e.lastAccess = Long.parseLong(cols[2]);
+					e.hits = Integer.parseInt(cols[3]);
+					if (cols.length > 7) {
+						e.lastModified = Long.parseLong(cols[4]);
+						e.size = Long.parseLong(cols[5]);
+						if (cols[6].length() > 0)
+							e.digest = cols[6];
+						if (cols[7].length() > 0)
+							e.encryption = cols[7];
+						if (cols.length > 8)
+							e.verified = Long.parseLong(cols[8]);
+						if (cols.length > 9)
+							e.validated = Long.parseLong(cols[9]);
+					}
+				} catch (NumberFormatException nfe) {
+				}
+			}
+			return e;
+		}
+	}
+
+	/**
+	 * Get the metadata for a cache root.
+	 *
+	 * @param cacheRoot
+	 *            cache root
+	 * @return metadata
+	 */
+	public static CacheMetadata get(FileObject cacheRoot) {
+		synchronized (instances) {
+			String k = cacheRoot.getName().getURI();
+			CacheMetadata m = instances.get(k);
+			if (m == null) {
+				m = new CacheMetadata(cacheRoot);
+				instances.put(k, m);
+			}
+			return m;
+		}
+	}
+
+	private final FileObject cacheRoot;
+	private Map<String, Entry> entries;
+	private final Map<String, String> byDigest = new HashMap<String, String>();
+	private List<String> pending = new ArrayList<String>();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private boolean scanned;
+
+	// Journal state, only changed while holding io
+	private final Object io = new Object();
+	private int journalLines;
+	private long journalSize;
+	private String journalHead;
+
+	private CacheMetadata(FileObject cacheRoot) {
+		this.cacheRoot = cacheRoot;
+	}
+
+	public FileObject getCacheRoot() {
+		return cacheRoot;
+	}
+
+	/**
+	 * Get the metadata for a cache entry.
+	 *
+	 * @param name
+	 *            asset name
+	 * @return copy of entry or <code>null</code> if there is none
+	 */
+	public synchronized Entry getEntry(String name) {
+		Entry e = getEntries().get(name);
+		return e == null ? null : e.copy();
+	}
+
+	/**
+	 * Record the metadata for a cache entry, replacing any already recorded.
+	 *
+	 * @param entry
+	 *            entry
+	 */
+	public synchronized void putEntry(Entry entry) {
+		store(entry.copy());
+		append(entry.format());
+	}
+
+	/**
+	 * Record the metadata for many cache entries at once, replacing any
+	 * already recorded.
+	 *
+	 * @param entries
+	 *            entries
+	 */
+	public synchronized void putEntries(Collection<Entry> entries) {
+		if (entries.isEmpty())
+			return;
+		for (Entry e : entries) {
+			store(e.copy());
+			append(e.format());
+		}
+	}
+
+	/**
+	 * Change the metadata for a cache entry, based on what is currently
+	 * recorded.
+	 *
+	 * @param name
+	 *            asset name
+	 * @param create
+	 *            create the entry if there is none
+	 * @param update
+	 *            change to make
+	 * @return copy of the entry as it now is, or <code>null</code> if there
+	 *         is none
+	 */
+	public synchronized Entry update(String name, boolean create, Update update) {
+		Entry e = getEntries().get(name);
+		if (e == null) {
+			if (!create)
+				return null;
+			e = new Entry(name);
+		} else {
+			e = e.copy();
+		}
+		if (update.apply(e)) {
+			store(e);
+			append(e.format());
+		}
+		return e.copy();
+	}
+
+	/**
+	 * Change the metadata for many cache entries at once, based on what is
+	 * currently recorded.
+	 *
+	 * @param names
+	 *            asset names
+	 * @param create
+	 *            create entries if there are none
+	 * @param update
+	 *            change to make to each
+	 */
+	public synchronized void updateEntries(Collection<String> names, boolean create, Update update) {
+		for (String name : names) {
+			Entry e = getEntries().get(name);
+			if (e == null) {
+				if (!create)
+					continue;
+				e = new Entry(name);
+			} else {
+				e = e.copy();
+			}
+			if (update.apply(e)) {
+				store(e);
+				append(e.format());
+			}
+		}
+	}
+
+	private void store(Entry e) {
+		getEntries().put(e.getName(), e);
+		if (e.getDigest() != null)
+			byDigest.put(e.getDigest(), e.getName());
+	}
+
+	/**
+	 * Forget the metadata for a cache entry, for example when it is removed
+	 * from the cache.
+	 *
+	 * @param name
+	 *            asset name
+	 */
+	public synchronized void removeEntry(String name) {
+		if (getEntries().remove(name) != null)
+			append("-" + name);
+	}
+
+	/**
+	 * Find an entry with the given content.
+	 *
+	 * @param digest
+	 *            digest (see {@link #DIGEST_ALGORITHM})
+	 * @param exclude
+	 *            name of an entry to ignore, or <code>null</code>
+	 * @return entry or <code>null</code> if there is none
+	 */
+	public synchronized Entry findByDigest(String digest, String exclude) {
+		Map<String, Entry> all = getEntries();
+		String name = byDigest.get(digest);
+		if (name == null)
+			return null;
+		Entry e = all.get(name);
+		if (e != null && digest.equals(e.getDigest()) && !name.equals(exclude))
+			return e.copy();
+		// The indexed entry has changed, been removed or is excluded, so look
+		// for any other with the same content
+		byDigest.remove(digest);
+		Entry found = null;
+		for (Entry o : all.values()) {
+			if (digest.equals(o.getDigest())) {
+				byDigest.put(digest, o.getName());
+				if (!o.getName().equals(exclude)) {
+					found = o.copy();
+					break;
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Get a copy of all entries.
+	 *
+	 * @return entries
+	 */
+	public synchronized List<Entry> getAllEntries() {
+		List<Entry> all = new ArrayList<Entry>(getEntries().size());
+		for (Entry e : getEntries().values())
+			all.add(e.copy());
+		return all;
+	}
+
+	/**
+	 * Fill in the size and last modified time of any entries in the cache
+	 * that don't have them (or have no metadata at all), by asking the file
+	 * system. This is only done once for each cache, as from then on they
+	 * are recorded as entries are written.
+	 */
+	public void scan() {
+		synchronized (this) {
+			getEntries();
+			if (scanned)
+				return;
+		}
+		long started = System.currentTimeMillis();
+		final Map<String, long[]> found = new HashMap<String, long[]>();
+		try {
+			for (FileObject file : cacheRoot.findFiles(Selectors.SELECT_FILES)) {
+				String name = cacheRoot.getName().getRelativeName(file.getName());
+				if (name.startsWith(".") || name.endsWith(".patching") || name.endsWith(CachingAssetInfo.TEMP_SUFFIX))
+					continue;
+				Entry e = getEntry(name);
+				if (e != null && e.getLastModified() > 0 && e.getSize() >= 0)
+					continue;
+				found.put(name, new long[] { file.getContent().getLastModifiedTime(), file.getContent().getSize() });
+			}
+		} catch (FileSystemException fse) {
+			LOG.log(Level.WARNING, String.format("Failed to scan cache %s", cacheRoot), fse);
+			return;
+		}
+		synchronized (this) {
+			updateEntries(found.keySet(), true, new Update() {
+				@Override
+				public boolean apply(Entry entry) {
+					// Anything written since already has them
+					if (entry.getLastModified() > 0 && entry.getSize() >= 0)
+						return false;
+					long[] attrs = found.get(entry.getName());
+					entry.setLastModified(attrs[0]);
+					entry.setSize(attrs[1]);
+					return true;
+				}
+			});
+			scanned = true;
+			append(SCANNED);
+		}
+		LOG.info(String.format("Scanned cache %s for metadata in %dms, %d entries updated", cacheRoot,
+				System.currentTimeMillis() - started, found.size()));
+	}
+
+	protected Map<String, Entry> getEntries() {
+		if (entries == null) {
+			entries = new LinkedHashMap<String, Entry>();
+			load();
+		}
+		return entries;
+	}
+
+	private FileObject getJournal() throws FileSystemException {
+		return cacheRoot.resolveFile(DEFAULT_RESOURCE_NAME);
+	}
+
+	private void load() {
+		CacheLock lock = lockJournal();
+		try {
+			FileObject journal = getJournal();
+			if (!journal.exists())
+				return;
+			long size = journal.getContent().getSize();
+			List<String> lines = new ArrayList<String>();
+			readLines(journal, 0, size, lines);
+			apply(lines);
+			journalSize = size;
+			journalLines = lines.size();
+			journalHead = lines.isEmpty() ? null : lines.get(0);
+			if (isCompactionDue(0))
+				schedule();
+		} catch (IOException ioe) {
+			LOG.log(Level.WARNING, String.format("Failed to load cache metadata from %s", cacheRoot), ioe);
+		} finally {
+			if (lock != null)
+				lock.unlock(DEFAULT_RESOURCE_NAME);
+		}
+	}
+
+	private void readLines(FileObject journal, long from, long to, List<String> lines) throws IOException {
+		byte[] buf = new byte[(int) (to - from)];
+		InputStream in = journal.getContent().getInputStream();
+		try {
+			long skip = from;
+			while (skip > 0) {
+				long s = in.skip(skip);
+				if (s <= 0)
+					throw new IOException(String.format("Cache metadata in %s is shorter than expected", cacheRoot));
+				skip -= s;
+			}
+			int r = LoaderUtils.readFully(in, buf);
+			if (r < buf.length)
+				buf = Arrays.copyOf(buf, Math.max(0, r));
+		} finally {
+			in.close();
+		}
+		for (String line : new String(buf, "UTF-8").split("\n")) {
+			if (line.length() > 0)
+				lines.add(line);
+		}
+	}
+
+	private String readHead(FileObject journal) throws IOException {
+		InputStream in = journal.getContent().getInputStream();
+		try {
+			return new BufferedReader(new InputStreamReader(in, "UTF-8")).readLine();
+		} finally {
+			in.close();
+		}
+	}
+
+	private void apply(List<String> lines) {
+		for (String line : lines) {
+			if (line.equals(SCANNED)) {
+				scanned = true;
+			} else if (line.startsWith(GENERATION)) {
+				// Only marks a compaction
+			} else if (line.startsWith("-")) {
+				entries.remove(line.substring(1));
+			} else {
+				store(Entry.parse(line));
+			}
+		}
+	}
+
+	private boolean isCompactionDue(int unwritten) {
+		int lines = journalLines + unwritten;
+		return lines > COMPACT_LINES && lines > entries.size() * 2;
+	}
+
+	/**
+	 * Rewrite the journal so it contains only a single line for each entry.
+	 * Changes appended by other processes are read first (while locked), so
+	 * they are kept.
+	 */
+	public void compact() {
+		flush(true);
+	}
+
+	/**
+	 * Write any changes not yet in the journal, first reading those appended
+	 * by other processes sharing the cache. This is normally done in the
+	 * background, shortly after each change.
+	 */
+	public void flush() {
+		flush(false);
+	}
+
+	private void flush(boolean compact) {
+		synchronized (io) {
+			synchronized (this) {
+				getEntries();
+			}
+			CacheLock lock = lockJournal();
+			List<String> ours = null;
+			try {
+				FileObject journal = getJournal();
+				// Other processes change it behind the back of VFS
+				journal.refresh();
+				long size = journal.exists() ? journal.getContent().getSize() : 0;
+				// Another process may have compacted it
+				boolean replaced = size < journalSize
+						|| (journalHead != null && size > journalSize && !journalHead.equals(readHead(journal)));
+				long from = replaced ? 0 : journalSize;
+				List<String> theirs = new ArrayList<String>();
+				if (size > from)
+					readLines(journal, from, size, theirs);
+
+				List<String> all = null;
+				synchronized (this) {
+					ours = pending;
+					pending = new ArrayList<String>();
+					if (replaced) {
+						entries.clear();
+						byDigest.clear();
+						journalLines = 0;
+						journalHead = null;
+					}
+					// Changes made here are newer than any read
+					apply(theirs);
+					apply(ours);
+					journalLines += theirs.size();
+					if (journalHead == null && !theirs.isEmpty())
+						journalHead = theirs.get(0);
+					journalSize = size;
+					if (compact || isCompactionDue(ours.size())
+							|| !cacheRoot.getFileSystem().hasCapability(Capability.APPEND_CONTENT)) {
+						all = new ArrayList<String>(entries.size() + 2);
+						all.add(GENERATION + LoaderUtils.getProcessId() + "-" + System.currentTimeMillis());
+						if (scanned)
+							all.add(SCANNED);
+						for (Entry e : entries.values())
+							all.add(e.format());
+					}
+				}
+
+				if (all != null) {
+					FileObject temp = cacheRoot.resolveFile(DEFAULT_RESOURCE_NAME + "." + LoaderUtils.getProcessId() + ".tmp");
+					byte[] b = join(all);
+					OutputStream out = temp.getContent().getOutputStream();
+					try {
+						out.write(b);
+					} finally {
+						out.close();
+					}
+					LoaderUtils.replace(temp, journal);
+					if (LOG.isLoggable(Level.FINE)) {
+						LOG.fine(String.format("Compacted cache metadata from %d to %d lines", journalLines + ours.size(),
+								all.size()));
+					}
+					journalSize = b.length;
+					journalLines = all.size();
+					journalHead = all.get(0);
+				} else if (!ours.isEmpty()) {
+					byte[] b = join(ours);
+					OutputStream out = journal.getContent().getOutputStream(true);
+					try {
+						out.write(b);
+					} finally {
+						out.close();
+					}
+					journalSize += b.length;
+					journalLines += ours.size();
+					if (journalHead == null)
+						journalHead = ours.get(0);
+				}
+			} catch (IOException ioe) {
+				LOG.log(Level.WARNING, String.format("Failed to write cache metadata to %s", cacheRoot), ioe);
+				if (ours != null) {
+					// Try again with the next change
+					synchronized (this) {
+						ours.addAll(pending);
+						pending = ours;
+					}
+				}
+			} finally {
+				if (lock != null)
+					lock.unlock(DEFAULT_RESOURCE_NAME);
+			}
+		}
+	}
+
+	private static byte[] join(List<String> lines) throws IOException {
+		StringBuilder b = new StringBuilder();
+		for (String line : lines) {
+			b.append(line);
+			b.append('\n');
+		}
+		return b.toString().getBytes("UTF-8");
+	}
+
+	private void append(String line) {
+		pending.add(line);
+		schedule();
+	}
+
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true)) {
+			flusher.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Thread.sleep(FLUSH_DELAY);
+					} catch (InterruptedException ie) {
+					} finally {
+						scheduled.set(false);
+						flush();
+					}
+				}
+			});
+		}
+	}
+
+	private CacheLock lockJournal() {
+		// Other processes may share the cache
+		CacheLock lock = CacheLock.get(cacheRoot);
+		return lock != null && lock.lock(DEFAULT_RESOURCE_NAME, 5000) ? lock : null;
+	}
+}
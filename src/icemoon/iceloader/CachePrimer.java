@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2013-2016 Emerald Icemoon All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  *
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package icemoon.iceloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
+
+import com.jme3.asset.AssetInfo;
+import com.jme3.asset.AssetKey;
+import com.jme3.asset.AssetLocator;
+
+import icemoon.iceloader.locators.AbstractServerLocator;
+import icemoon.iceloader.locators.AssetCacheLocator;
+
+/**
+ * Fills the local cache ahead of time with everything in the indexes that
+ * matches some patterns, rather than waiting for JME to happen to load each
+ * asset. Assets that are missing from the cache, or older than their index
+ * entry, are fetched through the server locators, several at a time, and
+ * cached exactly as they would be when loaded (by {@link CachingAssetInfo}).
+ * <p>
+ * Each pattern is either a regular expression matched against the index, or
+ * the name of a bundle, i.e. an indexed archive (with or without its
+ * <code>.jar</code> extension). Assets inside an indexed archive are primed
+ * by fetching the archive.
+ */
+public class CachePrimer {
+
+	private static final Logger LOG = Logger.getLogger(CachePrimer.class.getName());
+
+	/**
+	 * Default number of assets to fetch at once. Each mirror's own concurrency
+	 * limit still applies.
+	 */
+	public static int THREADS = Integer.getInteger("icescene.primeThreads", 8);
+
+	/**
+	 * How often progress is logged (in milliseconds).
+	 */
+	public static long REPORT_INTERVAL = 5000;
+
+	/**
+	 * The outcome of priming.
+	 */
+	public static class Result {
+		private int matched;
+		private int cached;
+		private int fetched;
+		private int failed;
+		private long bytes;
+		private long elapsed;
+
+		/**
+		 * Get how many assets (or bundles) matched the patterns.
+		 *
+		 * @return matched
+		 */
+		public int getMatched() {
+			return matched;
+		}
+
+		/**
+		 * Get how many of the matched assets were already cached and up to
+		 * date.
+		 *
+		 * @return already cached
+		 */
+		public int getCached() {
+			return cached;
+		}
+
+		/**
+		 * Get how many assets were fetched.
+		 *
+		 * @return fetched
+		 */
+		public int getFetched() {
+			return fetched;
+		}
+
+		/**
+		 * Get how many assets could not be fetched.
+		 *
+		 * @return failed
+		 */
+		public int getFailed() {
+			return failed;
+		}
+
+		/**
+		 * Get the total number of bytes fetched.
+		 *
+		 * @return bytes
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * Get how long priming took.
+		 *
+		 * @return elapsed time in milliseconds
+		 */
+		public long getElapsed() {
+			return elapsed;
+		}
+
+		/**
+		 * Get the average throughput.
+		 *
+		 * @return bytes per second
+		 */
+		public long getBytesPerSecond() {
+			return elapsed == 0 ? bytes : bytes * 1000 / elapsed;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d matched, %d already cached, %d fetched, %d failed, %d bytes in %dms (%d KB/s)",
+					matched, cached, fetched, failed, bytes, elapsed, getBytesPerSecond() / 1024);
+		}
+	}
+
+	private final ServerAssetManager manager;
+	private final int threads;
+	private final AtomicBoolean cancelled = new AtomicBoolean();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param manager
+	 *            asset manager, which must already be indexed
+	 * @param threads
+	 *            number of assets to fetch at once
+	 */
+	public CachePrimer(ServerAssetManager manager, int threads) {
+		this.manager = manager;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Stop priming as soon as the assets currently being fetched are done.
+	 */
+	public void cancel() {
+		cancelled.set(true);
+	}
+
+	/**
+	 * Fetch everything matching the patterns that is not already cached and
+	 * up to date. This blocks until done, including writing to the cache.
+	 *
+	 * @param patterns
+	 *            regular expressions or bundle names
+	 * @return result
+	 */
+	public Result prime(Collection<String> patterns) {
+		if (!AssetCacheLocator.isInUse()) {
+			throw new IllegalStateException("No cache locator is in use, so there is nothing to prime.");
+		}
+		final List<AssetLocator> locators = manager.createServerLocators();
+		if (locators.isEmpty()) {
+			throw new IllegalStateException("No server locators are registered.");
+		}
+
+		final long started = System.currentTimeMillis();
+		final Result result = new Result();
+		FileObject cacheRoot = AssetCacheLocator.getVFSRoot();
+		CacheMetadata metadata = CacheMetadata.get(cacheRoot);
+		metadata.scan();
+
+		final List<IndexItem> missing = new ArrayList<IndexItem>();
+		for (IndexItem item : select(patterns).values()) {
+			result.matched++;
+			if (isCached(cacheRoot, metadata, item)) {
+				result.cached++;
+			} else {
+				missing.add(item);
+			}
+		}
+		LOG.info(String.format("Priming cache, %d of %d matched assets are missing or stale", missing.size(),
+				result.matched));
+
+		final AtomicInteger fetched = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		final AtomicLong bytes = new AtomicLong();
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private int id;
+
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "CachePrimer-" + (++id));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		for (final IndexItem item : missing) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (cancelled.get())
+						return;
+					try {
+						long read = fetch(locators, item);
+						if (read < 0) {
+							LOG.warning(String.format("Could not prime %s, it was not found on the server.",
+									item.getName()));
+							failed.incrementAndGet();
+						} else {
+							bytes.addAndGet(read);
+							fetched.incrementAndGet();
+						}
+					} catch (Exception e) {
+						LOG.log(Level.WARNING, "Could not prime " + item.getName(), e);
+						failed.incrementAndGet();
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		try {
+			while (!executor.awaitTermination(REPORT_INTERVAL, TimeUnit.MILLISECONDS)) {
+				long elapsed = Math.max(1, System.currentTimeMillis() - started);
+				LOG.info(String.format("Primed %d of %d, %d failed, %d KB/s", fetched.get(), missing.size(),
+						failed.get(), bytes.get() * 1000 / elapsed / 1024));
+			}
+		} catch (InterruptedException ie) {
+			cancel();
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+
+		// Cache entries are committed by the writer thread
+		for (IndexItem item : missing) {
+			CacheWriter.awaitWritten(item.getName(), AbstractServerLocator.getReadTimeout());
+		}
+
+		result.fetched = fetched.get();
+		result.failed = failed.get();
+		result.bytes = bytes.get();
+		result.elapsed = System.currentTimeMillis() - started;
+		LOG.info(String.format("Primed cache, %s", result));
+		return result;
+	}
+
+	private Map<String, IndexItem> select(Collection<String> patterns) {
+		Map<String, IndexItem> items = new LinkedHashMap<String, IndexItem>();
+		for (String pattern : patterns) {
+			IndexItem bundle = manager.getAsset(pattern.endsWith(".jar") ? pattern : pattern + ".jar");
+			if (bundle != null) {
+				items.put(bundle.getName(), bundle);
+				continue;
+			}
+			for (IndexItem item : manager.getAssetsMatching(pattern)) {
+				// The same way as the locators, assets in an indexed archive
+				// are cached as the whole archive
+				IndexItem archive = null;
+				int idx = item.getName().lastIndexOf('/');
+				if (idx > 0) {
+					archive = manager.getAsset(item.getName().substring(0, idx) + ".jar");
+				}
+				if (archive != null)
+					item = archive;
+				items.put(item.getName(), item);
+			}
+		}
+		return items;
+	}
+
+	private boolean isCached(FileObject cacheRoot, CacheMetadata metadata, IndexItem item) {
+		CacheMetadata.Entry entry = metadata.getEntry(item.getName());
+		// Same tolerance as used by ServerLocator
+		if (entry == null || entry.getLastModified() <= 0 || item.getLastModified() - entry.getLastModified() >= 10000)
+			return false;
+		try {
+			return cacheRoot.resolveFile(item.getName()).exists();
+		} catch (FileSystemException fse) {
+			return false;
+		}
+	}
+
+	private long fetch(List<AssetLocator> locators, IndexItem item) throws IOException {
+		AssetKey<Object> key = new AssetKey<Object>(item.getName());
+		for (AssetLocator locator : locators) {
+			AssetInfo info = locator.locate(manager, key);
+			if (info != null) {
+				if (LOG.isLoggable(Level.FINE))
+					LOG.fine(String.format("Priming %s", item.getName()));
+				// Reading the whole stream is what caches it
+				long read = 0;
+				byte[] buf = new byte[CacheWriter.BUFFER_SIZE];
+				InputStream in = info.openStream();
+				try {
+					int r;
+					while ((r = in.read(buf)) != -1)
+						read += r;
+				} finally {
+					in.close();
+				}
+				return read;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright (c) 2013-2016 Emerald Icemoon All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  *
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package icemoon.iceloader;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.Selectors;
+
+/**
+ * Keeps a local asset cache within a size quota. Use of each entry is
+ * recorded (when it was last used and how often), and when the cache grows
+ * beyond the quota, entries are removed in the background until it is back
+ * under the low water mark. Entries that are no longer in any index are
+ * removed first, then the least recently used (or, if
+ * <strong>icescene.cacheEviction</strong> is <code>lfu</code>, the least
+ * frequently used).
+ * <p>
+ * Usage is kept in memory and stored in the {@link CacheMetadata} for the
+ * cache whenever a sweep is made, so it survives restarts. Damaged entries
+ * kept by the {@link CacheVerifier} also count towards the quota, and are
+ * removed before any others.
+ */
+public class CacheQuota {
+
+	private static final Logger LOG = Logger.getLogger(CacheQuota.class.getName());
+
+	/**
+	 * Maximum size of the cache in bytes, or 0 for no limit.
+	 */
+	public static long QUOTA = Long.getLong("icescene.cacheQuota", 0);
+
+	/**
+	 * When the quota is exceeded, entries are removed until the cache is at
+	 * most this fraction of the quota.
+	 */
+	public static double LOW_WATER = 0.9;
+
+	/**
+	 * Either <code>lru</code> (the default) or <code>lfu</code>.
+	 */
+	public static String POLICY = System.getProperty("icescene.cacheEviction", "lru");
+
+	private final static Map<String, CacheQuota> instances = new HashMap<String, CacheQuota>();
+
+	private final static ExecutorService sweeper = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "CacheEviction");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		}
+	});
+
+	private static class Usage {
+		private volatile long lastAccess;
+		private volatile int hits;
+	}
+
+	static class Candidate {
+		final String name;
+		final long size;
+		final boolean indexed;
+		final long lastAccess;
+		final int hits;
+
+		Candidate(String name, long size, boolean indexed, long lastAccess, int hits) {
+			this.name = name;
+			this.size = size;
+			this.indexed = indexed;
+			this.lastAccess = lastAccess;
+			this.hits = hits;
+		}
+	}
+
+	/**
+	 * Get the quota for a cache root.
+	 *
+	 * @param cacheRoot
+	 *            cache root
+	 * @return quota
+	 */
+	public static CacheQuota get(FileObject cacheRoot) {
+		synchronized (instances) {
+			String k = cacheRoot.getName().getURI();
+			CacheQuota q = instances.get(k);
+			if (q == null) {
+				q = new CacheQuota(cacheRoot);
+				instances.put(k, q);
+			}
+			return q;
+		}
+	}
+
+	private final FileObject cacheRoot;
+	private final Map<String, Usage> usage = new ConcurrentHashMap<String, Usage>();
+	private final AtomicLong size = new AtomicLong(-1);
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private volatile Set<String> indexed;
+
+	private CacheQuota(FileObject cacheRoot) {
+		this.cacheRoot = cacheRoot;
+	}
+
+	/**
+	 * Get the size of the cache as of the last sweep, plus anything written
+	 * since.
+	 *
+	 * @return size in bytes, or -1 if not yet known
+	 */
+	public long getSize() {
+		return size.get();
+	}
+
+	/**
+	 * Record that an entry has been used.
+	 *
+	 * @param name
+	 *            asset name
+	 */
+	public void accessed(String name) {
+		if (QUOTA <= 0)
+			return;
+		Usage u = usage.get(name);
+		if (u == null) {
+			u = new Usage();
+			usage.put(name, u);
+		}
+		u.lastAccess = System.currentTimeMillis();
+		u.hits++;
+	}
+
+	/**
+	 * Record that an entry has been written, sweeping the cache if this takes
+	 * it over quota.
+	 *
+	 * @param name
+	 *            asset name
+	 * @param bytes
+	 *            size of entry
+	 */
+	public void written(String name, long bytes) {
+		if (QUOTA <= 0)
+			return;
+		accessed(name);
+		long now = size.get() < 0 ? -1 : size.addAndGet(bytes);
+		if (now < 0 || now > QUOTA) {
+			check();
+		}
+	}
+
+	/**
+	 * Set the indexes that say which entries are still wanted. Entries not in
+	 * any of them are the first to be removed.
+	 *
+	 * @param indexes
+	 *            indexes
+	 */
+	public void setIndexes(Collection<AssetIndex> indexes) {
+		Set<String> names = new HashSet<String>();
+		for (AssetIndex idx : indexes) {
+			for (IndexItem item : idx.getBackingObject()) {
+				names.add(item.getName());
+			}
+		}
+		indexed = names;
+	}
+
+	/**
+	 * Sweep the cache in the background, if there is a quota and a sweep is
+	 * not already waiting to run.
+	 */
+	public void check() {
+		if (QUOTA > 0 && scheduled.compareAndSet(false, true)) {
+			sweeper.execute(new Runnable() {
+				@Override
+				public void run() {
+					scheduled.set(false);
+					try {
+						sweep();
+					} catch (RuntimeException re) {
+						LOG.log(Level.WARNING, "Failed to sweep cache.", re);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Store usage, then remove entries until the cache is within the quota.
+	 * This is normally done in the background by {@link #check()}.
+	 */
+	public void sweep() {
+		long started = System.currentTimeMillis();
+		CacheMetadata metadata = CacheMetadata.get(cacheRoot);
+		storeUsage(metadata);
+
+		// Sizes and usage all come from the metadata, not the file system
+		metadata.scan();
+		List<Candidate> candidates = new ArrayList<Candidate>();
+		long total = 0;
+		Set<String> idx = indexed;
+		for (CacheMetadata.Entry entry : metadata.getAllEntries()) {
+			if (entry.getSize() < 0)
+				continue;
+			boolean used = entry.getLastAccess() > 0;
+			Candidate c = new Candidate(entry.getName(), entry.getSize(),
+					idx == null || idx.contains(entry.getName()),
+					used ? entry.getLastAccess() : entry.getLastModified(), used ? entry.getHits() : 0);
+			total += c.size;
+			candidates.add(c);
+		}
+		List<Candidate> quarantined = quarantined();
+		for (Candidate c : quarantined)
+			total += c.size;
+		size.set(total);
+		if (total <= QUOTA)
+			return;
+
+		sort(candidates, "lfu".equalsIgnoreCase(POLICY));
+
+		long target = (long) (QUOTA * LOW_WATER);
+		int removed = 0;
+		long freed = 0;
+		for (Candidate c : quarantined) {
+			if (total - freed <= target)
+				break;
+			try {
+				FileObject file = cacheRoot.resolveFile(c.name);
+				if (file.delete() || !file.exists()) {
+					freed += c.size;
+					removed++;
+				}
+			} catch (FileSystemException fse) {
+				if (LOG.isLoggable(Level.FINE)) {
+					LOG.fine(String.format("Could not remove %s from cache. %s", c.name, fse.getMessage()));
+				}
+			}
+		}
+		CacheLock lock = CacheLock.get(cacheRoot);
+		for (Candidate c : candidates) {
+			if (total - freed <= target)
+				break;
+			// Skip anything being written right now, by this process or another
+			if (CacheWriter.isWriting(c.name) || (lock != null && !lock.tryLock(c.name)))
+				continue;
+			try {
+				FileObject file = cacheRoot.resolveFile(c.name);
+				if (file.delete() || !file.exists()) {
+					freed += c.size;
+					removed++;
+					usage.remove(c.name);
+					metadata.removeEntry(c.name);
+					MemoryCache.get().remove(c.name);
+				}
+			} catch (FileSystemException fse) {
+				// Probably in use
+				if (LOG.isLoggable(Level.FINE)) {
+					LOG.fine(String.format("Could not remove %s from cache. %s", c.name, fse.getMessage()));
+				}
+			} finally {
+				if (lock != null)
+					lock.unlock(c.name);
+			}
+		}
+		size.addAndGet(-freed);
+		LOG.info(String.format("Removed %d entries (%d bytes) from cache in %dms, cache is now %d bytes of %d",
+				removed, freed, System.currentTimeMillis() - started, total - freed, QUOTA));
+	}
+
+	/**
+	 * Sort candidates into the order they are removed in.
+	 *
+	 * @param candidates
+	 *            candidates
+	 * @param lfu
+	 *            least frequently used first rather than least recently used
+	 */
+	static void sort(List<Candidate> candidates, final boolean lfu) {
+		Collections.sort(candidates, new Comparator<Candidate>() {
+			@Override
+			public int compare(Candidate o1, Candidate o2) {
+				if (o1.indexed != o2.indexed)
+					return o1.indexed ? 1 : -1;
+				int c = lfu ? compare(o1.hits, o2.hits) : compare(o1.lastAccess, o2.lastAccess);
+				return c == 0 ? (lfu ? compare(o1.lastAccess, o2.lastAccess) : compare(o1.hits, o2.hits)) : c;
+			}
+
+			private int compare(long x, long y) {
+				return x < y ? -1 : (x == y ? 0 : 1);
+			}
+		});
+	}
+
+	private List<Candidate> quarantined() {
+		List<Candidate> l = new ArrayList<Candidate>();
+		try {
+			FileObject folder = cacheRoot.resolveFile(CacheVerifier.QUARANTINE_NAME);
+			if (folder.exists()) {
+				for (FileObject file : folder.findFiles(Selectors.SELECT_FILES)) {
+					long modified = file.getContent().getLastModifiedTime();
+					l.add(new Candidate(cacheRoot.getName().getRelativeName(file.getName()), file.getContent().getSize(),
+							false, modified, 0));
+				}
+			}
+		} catch (FileSystemException fse) {
+			LOG.log(Level.WARNING, String.format("Failed to scan quarantine of cache %s", cacheRoot), fse);
+		}
+		sort(l, false);
+		return l;
+	}
+
+	private void storeUsage(CacheMetadata metadata) {
+		metadata.updateEntries(new ArrayList<String>(usage.keySet()), true, new CacheMetadata.Update() {
+			@Override
+			public boolean apply(CacheMetadata.Entry entry) {
+				Usage u = usage.get(entry.getName());
+				if (u == null || entry.getLastAccess() == u.lastAccess)
+					return false;
+				entry.setLastAccess(u.lastAccess);
+				entry.setHits(entry.getHits() + u.hits);
+				u.hits = 0;
+				return true;
+			}
+		});
+	}
+}
@@ -0,0 +1,400 @@
+/*
+ * Copyright (c) 2013-2016 Emerald Icemoon All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  *
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package icemoon.iceloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
+
+/**
+ * Checks that the entries in a local asset cache are intact, in the
+ * background. The content of each entry is read and compared against its
+ * size and digest in the index (when the index describes the same version as
+ * was cached), or otherwise those recorded in the {@link CacheMetadata} when
+ * it was written. Entries that are found to be damaged, for example by a
+ * crash or a disk error, are moved to a quarantine folder in the cache, and
+ * downloaded again if they are still in an index.
+ * <p>
+ * Reading is limited to <strong>icescene.verifyRate</strong> bytes per
+ * second, done by a low priority thread, and paused whenever an asset is
+ * being downloaded. Each entry is verified again at most every
+ * <strong>icescene.verifyInterval</strong> milliseconds, entries never
+ * verified since they were written going first.
+ */
+public class CacheVerifier {
+
+	private static final Logger LOG = Logger.getLogger(CacheVerifier.class.getName());
+
+	/**
+	 * Name of the folder in the cache that damaged entries are moved to.
+	 */
+	public final static String QUARANTINE_NAME = ".quarantine";
+
+	/**
+	 * Maximum number of bytes read per second, or 0 to never verify.
+	 */
+	public static long RATE = Long.getLong("icescene.verifyRate", 2 * 1024 * 1024);
+
+	/**
+	 * Minimum time between verifications of any one entry (in milliseconds).
+	 */
+	public static long INTERVAL = Long.getLong("icescene.verifyInterval", 7L * 24 * 60 * 60 * 1000);
+
+	/**
+	 * Whether damaged entries are kept in the quarantine folder rather than
+	 * just deleted.
+	 */
+	public static boolean QUARANTINE = !"false".equalsIgnoreCase(System.getProperty("icescene.verifyQuarantine", "true"));
+
+	private final static Map<String, CacheVerifier> instances = new HashMap<String, CacheVerifier>();
+
+	private final static ExecutorService verifier = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "CacheVerification");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		}
+	});
+
+	/**
+	 * Get the verifier for a cache root.
+	 *
+	 * @param cacheRoot
+	 *            cache root
+	 * @return verifier
+	 */
+	public static CacheVerifier get(FileObject cacheRoot) {
+		synchronized (instances) {
+			String k = cacheRoot.getName().getURI();
+			CacheVerifier v = instances.get(k);
+			if (v == null) {
+				v = new CacheVerifier(cacheRoot);
+				instances.put(k, v);
+			}
+			return v;
+		}
+	}
+
+	private final FileObject cacheRoot;
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+
+	private CacheVerifier(FileObject cacheRoot) {
+		this.cacheRoot = cacheRoot;
+	}
+
+	/**
+	 * Verify the cache in the background, if verification is enabled and is
+	 * not already waiting to run. Damaged entries that are in the manager's
+	 * indexes are downloaded again.
+	 *
+	 * @param manager
+	 *            asset manager
+	 */
+	public void check(final ServerAssetManager manager) {
+		if (RATE > 0 && scheduled.compareAndSet(false, true)) {
+			verifier.execute(new Runnable() {
+				@Override
+				public void run() {
+					scheduled.set(false);
+					try {
+						List<String> damaged = verify(manager);
+						if (manager != null)
+							requeue(manager, damaged);
+					} catch (RuntimeException re) {
+						LOG.log(Level.WARNING, "Failed to verify cache.", re);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Verify all entries that are due, removing any that are damaged. This is
+	 * normally done in the background by {@link #check(ServerAssetManager)}.
+	 *
+	 * @param manager
+	 *            asset manager whose indexes supply sizes, or
+	 *            <code>null</code>
+	 * @return names of the damaged entries
+	 */
+	public List<String> verify(ServerAssetManager manager) {
+		long started = System.currentTimeMillis();
+		Map<String, IndexItem> items = new HashMap<String, IndexItem>();
+		if (manager != null) {
+			for (AssetIndex idx : manager.getIndexes()) {
+				for (IndexItem item : idx.getBackingObject()) {
+					if (!items.containsKey(item.getName()))
+						items.put(item.getName(), item);
+				}
+			}
+		}
+
+		CacheMetadata metadata = CacheMetadata.get(cacheRoot);
+		metadata.scan();
+		List<CacheMetadata.Entry> due = new ArrayList<CacheMetadata.Entry>();
+		for (CacheMetadata.Entry entry : metadata.getAllEntries()) {
+			if (entry.getVerified() < started - INTERVAL)
+				due.add(entry);
+		}
+		Collections.sort(due, new Comparator<CacheMetadata.Entry>() {
+			@Override
+			public int compare(CacheMetadata.Entry o1, CacheMetadata.Entry o2) {
+				return o1.getVerified() < o2.getVerified() ? -1 : (o1.getVerified() == o2.getVerified() ? 0 : 1);
+			}
+		});
+
+		List<String> damaged = new ArrayList<String>();
+		Map<String, CacheMetadata.Entry> verified = new HashMap<String, CacheMetadata.Entry>();
+		CacheLock lock = CacheLock.get(cacheRoot);
+		Throttle throttle = new Throttle(manager);
+		long bytes = 0;
+		for (CacheMetadata.Entry entry : due) {
+			// Wait for downloads before taking the lock, so none waits on us
+			try {
+				throttle.read(0);
+			} catch (IOException ioe) {
+				break;
+			}
+			// Skip anything being written right now
+			if (lock != null && !lock.tryLock(entry.getName()))
+				continue;
+			boolean locked = true;
+			try {
+				FileObject file = cacheRoot.resolveFile(entry.getName());
+				if (!file.exists()) {
+					metadata.removeEntry(entry.getName());
+					continue;
+				}
+				// Index sizes and digests are of the content as delivered, which
+				// a re-encrypted entry must be turned back into
+				boolean reencrypted = CacheCipher.CIPHER.equals(entry.getEncryption());
+				long expectedSize = reencrypted ? -1 : entry.getSize();
+				IndexItem item = items.get(entry.getName());
+				String expectedDigest = entry.getDigest();
+				// Same tolerance as used by ServerLocator
+				if (item != null && entry.getLastModified() > 0
+						&& item.getLastModified() - entry.getLastModified() < 10000) {
+					if (item.getSize() > 0)
+						expectedSize = item.getSize();
+					if (item.getDigest() != null)
+						expectedDigest = item.getDigest();
+				}
+				String problem;
+				String digest = null;
+				long size = 0;
+				boolean changed = false;
+				try {
+					MessageDigest md = MessageDigest.getInstance(CacheMetadata.DIGEST_ALGORITHM);
+					long stored = file.getContent().getSize();
+					long modified = file.getContent().getLastModifiedTime();
+					InputStream in = file.getContent().getInputStream();
+					if (reencrypted)
+						in = CacheCipher.toDelivered(in);
+					try {
+						byte[] buf = new byte[CacheWriter.BUFFER_SIZE];
+						int r;
+						while ((r = in.read(buf)) != -1) {
+							md.update(buf, 0, r);
+							size += r;
+							// Only one buffer is read per lock, so a download
+							// of this entry never waits on the throttle
+							if (lock != null) {
+								lock.unlock(entry.getName());
+								locked = false;
+							}
+							throttle.read(r);
+							if (lock != null) {
+								if (!lock.tryLock(entry.getName())) {
+									changed = true;
+									break;
+								}
+								locked = true;
+							}
+							if (!file.exists() || file.getContent().getSize() != stored
+									|| file.getContent().getLastModifiedTime() != modified) {
+								changed = true;
+								break;
+							}
+						}
+					} finally {
+						in.close();
+					}
+					if (changed) {
+						// Written meanwhile, so verify it next time
+						if (LOG.isLoggable(Level.FINE))
+							LOG.fine(String.format("%s changed while being verified, skipping it", entry.getName()));
+						continue;
+					}
+					digest = LoaderUtils.toHex(md.digest());
+					bytes += size;
+					if (entry.getSize() >= 0 && stored != entry.getSize()) {
+						problem = String.format("stored size is %d, expected %d", stored, entry.getSize());
+					} else if (expectedSize >= 0 && size != expectedSize) {
+						problem = String.format("size is %d, expected %d", size, expectedSize);
+					} else if (expectedDigest != null && !expectedDigest.equals(digest)) {
+						problem = String.format("digest is %s, expected %s", digest, expectedDigest);
+					} else {
+						problem = null;
+					}
+				} catch (NoSuchAlgorithmException nsae) {
+					throw new IllegalStateException("Cannot create digests of cached content.", nsae);
+				} catch (IOException ioe) {
+					if (Thread.currentThread().isInterrupted())
+						break;
+					problem = "it could not be read. " + ioe.getMessage();
+				}
+
+				if (problem == null) {
+					// Entries from before digests were recorded get one now
+					if (entry.getDigest() == null)
+						entry.setDigest(digest);
+					entry.setVerified(System.currentTimeMillis());
+					verified.put(entry.getName(), entry);
+					if (verified.size() >= 100) {
+						storeVerified(metadata, verified);
+						verified.clear();
+					}
+				} else {
+					LOG.warning(String.format("Cache entry %s is damaged, %s", entry.getName(), problem));
+					remove(metadata, file, entry.getName());
+					damaged.add(entry.getName());
+				}
+			} catch (FileSystemException fse) {
+				LOG.log(Level.WARNING, String.format("Failed to verify cache entry %s", entry.getName()), fse);
+			} finally {
+				if (lock != null && locked)
+					lock.unlock(entry.getName());
+			}
+		}
+		storeVerified(metadata, verified);
+		LOG.info(String.format("Verified %d cache entries (%d bytes) in %dms, %d damaged", due.size(), bytes,
+				System.currentTimeMillis() - started, damaged.size()));
+		return damaged;
+	}
+
+	private void storeVerified(CacheMetadata metadata, final Map<String, CacheMetadata.Entry> verified) {
+		metadata.updateEntries(verified.keySet(), false, new CacheMetadata.Update() {
+			@Override
+			public boolean apply(CacheMetadata.Entry entry) {
+				CacheMetadata.Entry v = verified.get(entry.getName());
+				// Only if it is still the content that was verified
+				if (entry.getLastModified() != v.getLastModified() || entry.getSize() != v.getSize())
+					return false;
+				if (entry.getDigest() == null)
+					entry.setDigest(v.getDigest());
+				entry.setVerified(v.getVerified());
+				return true;
+			}
+		});
+	}
+
+	private void remove(CacheMetadata metadata, FileObject file, String name) {
+		try {
+			if (QUARANTINE) {
+				FileObject quarantined = cacheRoot.resolveFile(QUARANTINE_NAME + "/" + name);
+				quarantined.getParent().createFolder();
+				LoaderUtils.replace(file, quarantined);
+			} else {
+				file.delete();
+			}
+		} catch (IOException ioe) {
+			LOG.log(Level.WARNING, String.format("Failed to quarantine damaged cache entry %s", name), ioe);
+			try {
+				file.delete();
+			} catch (FileSystemException fse) {
+			}
+		}
+		metadata.removeEntry(name);
+		MemoryCache.get().remove(name);
+	}
+
+	private void requeue(ServerAssetManager manager, Collection<String> damaged) {
+		List<String> patterns = new ArrayList<String>();
+		for (String name : damaged) {
+			if (manager.hasAsset(name))
+				patterns.add(Pattern.quote(name));
+		}
+		if (!patterns.isEmpty()) {
+			LOG.info(String.format("Downloading %d damaged cache entries again", patterns.size()));
+			manager.prime(patterns, 1);
+		}
+	}
+
+	/**
+	 * Keeps reading to {@link CacheVerifier#RATE}, and waits while anything
+	 * is being downloaded.
+	 */
+	private static class Throttle {
+		private final ServerAssetManager manager;
+		private final long started = System.currentTimeMillis();
+		private long paused;
+		private long read;
+
+		private Throttle(ServerAssetManager manager) {
+			this.manager = manager;
+		}
+
+		private void read(int bytes) throws IOException {
+			read += bytes;
+			try {
+				while (manager != null && manager.isDownloading()) {
+					Thread.sleep(500);
+					paused += 500;
+				}
+				long due = read * 1000 / RATE - (System.currentTimeMillis() - started - paused);
+				if (due > 0)
+					Thread.sleep(due);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted verifying cache.", ie);
+			}
+		}
+	}
+}
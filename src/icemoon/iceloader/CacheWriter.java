@@ -0,0 +1,384 @@
+/*
+ * Copyright (c) 2013-2016 Emerald Icemoon All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  *
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package icemoon.iceloader;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.vfs2.FileObject;
+
+/**
+ * Writes cache entries in the background, so that loading threads do not wait
+ * for the disk. Content is collected into buffers, and each full buffer is
+ * handed to a single cache writing thread. The total size of the buffers
+ * waiting to be written is limited, when the limit is reached, loading
+ * threads wait until the writer catches up. Nothing is flushed until the end
+ * of the entry, when it is either committed or discarded, also on the writing
+ * thread.
+ */
+public class CacheWriter {
+
+	private static final Logger LOG = Logger.getLogger(CacheWriter.class.getName());
+
+	/**
+	 * Number of bytes from the start of each entry kept by
+	 * {@link Session#getHead()}.
+	 */
+	public final static int HEAD_SIZE = 64;
+
+	/**
+	 * Size of each buffer.
+	 */
+	public static int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Maximum number of bytes waiting to be written before loading threads
+	 * must wait.
+	 */
+	public static long MAX_PENDING = Long.getLong("icescene.cacheWriteBuffer", 8 * 1024 * 1024);
+
+	private final static ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "CacheWriter");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private final static Object budget = new Object();
+	private static long pending;
+
+	private final static Map<String, CountDownLatch> writing = new ConcurrentHashMap<String, CountDownLatch>();
+
+	/**
+	 * What to do at the end of an entry. Both are called on the writing
+	 * thread.
+	 */
+	public interface Completion {
+		/**
+		 * Commit the completely written entry.
+		 *
+		 * @throws IOException
+		 *             on error
+		 */
+		void commit() throws IOException;
+
+		/**
+		 * Discard the entry, because it was not complete or could not be
+		 * written.
+		 */
+		void discard();
+	}
+
+	/**
+	 * Start writing an entry.
+	 *
+	 * @param name
+	 *            asset name
+	 * @param file
+	 *            file to write to
+	 * @return session
+	 */
+	public static Session open(String name, FileObject file) {
+		return open(name, file, false);
+	}
+
+	/**
+	 * Start writing an entry, optionally re-encrypting it (see
+	 * {@link CacheCipher}). The digest and head are always of the content as
+	 * supplied.
+	 *
+	 * @param name
+	 *            asset name
+	 * @param file
+	 *            file to write to
+	 * @param reencrypt
+	 *            re-encrypt encrypted content
+	 * @return session
+	 */
+	public static Session open(String name, FileObject file, boolean reencrypt) {
+		return new Session(name, file, reencrypt);
+	}
+
+	/**
+	 * Wait for any entry of the given name that is still being written in the
+	 * background to be committed or discarded.
+	 *
+	 * @param name
+	 *            asset name
+	 * @param timeout
+	 *            maximum time to wait in milliseconds
+	 */
+	public static void awaitWritten(String name, long timeout) {
+		CountDownLatch l = writing.get(name);
+		if (l != null) {
+			try {
+				l.await(timeout, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Get whether an entry is still being written in the background, i.e. it
+	 * has been opened but not yet committed or discarded.
+	 *
+	 * @param name
+	 *            asset name
+	 * @return being written
+	 */
+	public static boolean isWriting(String name) {
+		return writing.containsKey(name);
+	}
+
+	private static void reserve(int bytes) throws IOException {
+		synchronized (budget) {
+			// Always allow a single buffer, however big
+			while (pending > 0 && pending + bytes > MAX_PENDING) {
+				try {
+					budget.wait();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted waiting for cache writer.", ie);
+				}
+			}
+			pending += bytes;
+		}
+	}
+
+	private static void release(int bytes) {
+		synchronized (budget) {
+			pending -= bytes;
+			budget.notifyAll();
+		}
+	}
+
+	/**
+	 * A single entry being written.
+	 */
+	public static class Session {
+		private final String name;
+		private final FileObject file;
+		private final boolean reencrypt;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private final byte[] head = new byte[HEAD_SIZE];
+		private int headLength;
+		private MessageDigest digest;
+		private OutputStream out;
+		private byte[] buf;
+		private int count;
+		private boolean finished;
+		private volatile IOException error;
+
+		private Session(String name, FileObject file, boolean reencrypt) {
+			this.name = name;
+			this.file = file;
+			this.reencrypt = reencrypt;
+			try {
+				digest = MessageDigest.getInstance(CacheMetadata.DIGEST_ALGORITHM);
+			} catch (NoSuchAlgorithmException nsae) {
+				LOG.log(Level.WARNING, "Cannot create digests of cached content.", nsae);
+			}
+			writing.put(name, done);
+			// Created straight away, so that an empty entry is still written
+			writer.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						out = file.getContent().getOutputStream();
+						if (reencrypt)
+							out = CacheCipher.reencrypt(out);
+					} catch (IOException ioe) {
+						fail(ioe);
+					}
+				}
+			});
+		}
+
+		/**
+		 * Get the first bytes of the content, for example to detect its
+		 * format.
+		 *
+		 * @return first bytes (up to {@link #HEAD_SIZE})
+		 */
+		public byte[] getHead() {
+			return Arrays.copyOf(head, headLength);
+		}
+
+		/**
+		 * Get the digest of the content written, as a hex string. Only valid
+		 * once all content has been written, so on the writing thread in
+		 * {@link Completion#commit()}.
+		 *
+		 * @return digest or <code>null</code> if not available
+		 */
+		public String getDigest() {
+			return digest == null ? null : LoaderUtils.toHex(digest.digest());
+		}
+
+		/**
+		 * Get whether writing has failed. Further content is ignored.
+		 *
+		 * @return failed
+		 */
+		public boolean isFailed() {
+			return error != null;
+		}
+
+		public void write(int b) throws IOException {
+			if (headLength < head.length)
+				head[headLength++] = (byte) b;
+			if (buf == null)
+				buf = new byte[BUFFER_SIZE];
+			buf[count++] = (byte) b;
+			if (count == buf.length)
+				submit();
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (headLength < head.length) {
+				int n = Math.min(len, head.length - headLength);
+				System.arraycopy(b, off, head, headLength, n);
+				headLength += n;
+			}
+			while (len > 0) {
+				if (buf == null)
+					buf = new byte[BUFFER_SIZE];
+				int n = Math.min(len, buf.length - count);
+				System.arraycopy(b, off, buf, count, n);
+				count += n;
+				off += n;
+				len -= n;
+				if (count == buf.length)
+					submit();
+			}
+		}
+
+		/**
+		 * End the entry. Any remaining content is written, then the entry is
+		 * either committed or discarded on the writing thread.
+		 *
+		 * @param complete
+		 *            whether all content has been written and the entry should
+		 *            be committed
+		 * @param completion
+		 *            what to do to commit or discard
+		 */
+		public void finish(final boolean complete, final Completion completion) {
+			if (finished)
+				return;
+			finished = true;
+			if (complete) {
+				try {
+					submit();
+				} catch (IOException ioe) {
+					error = ioe;
+				}
+			}
+			buf = null;
+			writer.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						boolean commit = complete;
+						if (out != null) {
+							try {
+								out.close();
+							} catch (IOException ioe) {
+								fail(ioe);
+							}
+						}
+						if (commit && error == null) {
+							try {
+								completion.commit();
+								return;
+							} catch (IOException ioe) {
+								LOG.log(Level.WARNING, String.format("Failed to commit %s to the cache", name), ioe);
+							}
+						}
+						completion.discard();
+					} finally {
+						writing.remove(name, done);
+						done.countDown();
+					}
+				}
+			});
+		}
+
+		private void submit() throws IOException {
+			if (count == 0 || error != null) {
+				count = 0;
+				return;
+			}
+			final byte[] data = buf;
+			final int len = count;
+			buf = null;
+			count = 0;
+			reserve(len);
+			writer.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (error == null) {
+							out.write(data, 0, len);
+							if (digest != null)
+								digest.update(data, 0, len);
+						}
+					} catch (IOException ioe) {
+						fail(ioe);
+					} finally {
+						release(len);
+					}
+				}
+			});
+		}
+
+		private void fail(IOException ioe) {
+			if (error == null) {
+				LOG.log(Level.WARNING, String.format("Failed to write %s to the cache", name), ioe);
+				error = ioe;
+			}
+		}
+	}
+}
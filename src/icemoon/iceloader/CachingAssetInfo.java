@@ -35,7 +35,6 @@ import com.jme3.asset.AssetLoadException;
 import com.jme3.asset.AssetManager;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.text.DateFormat;
 import java.util.Date;
 import java.util.logging.Level;
@@ -43,9 +42,18 @@ import java.util.logging.Logger;
 import org.apache.commons.vfs2.FileObject;
 import org.apache.commons.vfs2.FileSystemException;
 
+import icemoon.iceloader.locators.AbstractServerLocator;
+
 public class CachingAssetInfo extends LoaderAssetInfo {
 
     private static final Logger LOG = Logger.getLogger(CachingAssetInfo.class.getName());
+
+    /**
+     * Suffix of the temporary file content is written to before it is
+     * committed to the cache.
+     */
+    public static final String TEMP_SUFFIX = ".part";
+
     private final AssetInfo delegate;
     private final FileObject cacheRoot;
 
@@ -67,72 +75,101 @@ public class CachingAssetInfo extends LoaderAssetInfo {
     public InputStream openStream() {
         final InputStream in = delegate.openStream();
         long lastModified = -1;
+        long expectedSize = -1;
         if (delegate instanceof ExtendedAssetInfo) {
             lastModified = ((ExtendedAssetInfo) delegate).getLastModified();
+            expectedSize = ((ExtendedAssetInfo) delegate).getSize();
         }
 
         try {
             final FileObject cacheFile = cacheRoot.resolveFile(key.getName());
-            final FileObject cacheTempFile = cacheFile;
-            return createCachingStream(in, cacheTempFile, lastModified);
+            // Unique to this process, in case another writes the entry without the lock
+            final FileObject cacheTempFile = cacheRoot.resolveFile(key.getName() + "." + LoaderUtils.getProcessId() + TEMP_SUFFIX);
+            return createCachingStream(in, cacheFile, cacheTempFile, lastModified, expectedSize);
         } catch (FileSystemException fse) {
             throw new AssetLoadException("Failed to create cache file.", fse);
         }
     }
 
-    private InputStream createCachingStream(final InputStream in, final FileObject cacheTempFile, final long lastModified) {
+    /**
+     * Content is written (in the background, by {@link CacheWriter}) to a
+     * temporary file alongside the cache entry, and only renamed to the entry
+     * once the whole stream has been read and is the expected size. If the
+     * stream is closed early or fails, the temporary file is removed, so a
+     * partial entry is never seen.
+     */
+    private InputStream createCachingStream(final InputStream in, final FileObject cacheFile, final FileObject cacheTempFile,
+            final long lastModified, final long expectedSize) {
         return new InputStream() {
-            private OutputStream out;
+            private CacheWriter.Session out;
             private long written;
             private boolean closed;
 
-            private void checkOut() throws FileSystemException {
+            private CacheLock lock;
+            private boolean reencrypt;
+
+            private void checkOut() {
                 if (out == null && !closed) {
                     if (LOG.isLoggable(Level.FINE)) {
                         LOG.fine(String.format("Thread '%s' Caching %s to %s", Thread.currentThread().getName(), key.getName(), cacheTempFile));
                     }
-                    out = cacheTempFile.getContent().getOutputStream();
+                    // Stop others using the entry until it is written
+                    lock = CacheLock.get(cacheRoot);
+                    if (lock != null && !lock.lock(key.getName(), AbstractServerLocator.getReadTimeout())) {
+                        // Someone else is still writing it, so just pass the content through
+                        LOG.warning(String.format("Not caching %s as it is still being written elsewhere", key.getName()));
+                        lock = null;
+                        closed = true;
+                        return;
+                    }
+                    reencrypt = CacheCipher.REENCRYPT;
+                    out = CacheWriter.open(key.getName(), cacheTempFile, reencrypt);
                 }
             }
 
             @Override
             public int read() throws IOException {
                 checkOut();
-                final int read = in.read();
+                final int read;
+                try {
+                    read = in.read();
+                } catch (IOException ioe) {
+                    closeOut(false);
+                    throw ioe;
+                }
                 if (read != -1) {
-                    out.write(read);
-                    out.flush();
-                    written += 1;
+                    if (out != null) {
+                        out.write(read);
+                        written += 1;
+                    }
                 } else {
-                    closeOut();
+                    closeOut(true);
                 }
                 return read;
             }
 
             @Override
             public int read(byte[] b) throws IOException {
-                checkOut();
-                int r = in.read(b);
-                if (r != -1) {
-                    out.write(b, 0, r);
-                    out.flush();
-                    written += r;
-                } else {
-                    closeOut();
-                }
-                return r;
+                return read(b, 0, b.length);
             }
 
             @Override
             public int read(byte[] b, int off, int len) throws IOException {
                 checkOut();
-                int r = in.read(b, off, len);
+                int r;
+                try {
+                    r = in.read(b, off, len);
+                } catch (IOException ioe) {
+                    closeOut(false);
+                    throw ioe;
+                }
                 if (r != -1) {
-                    out.write(b, off, r);
-                    out.flush();
-                    written += r;
+                    if (out != null) {
+                        out.write(b, off, r);
+                        written += r;
+                    }
                 } else {
-                    closeOut();
+                    closeOut(true);
                 }
                 return r;
             }
@@ -142,7 +179,8 @@ public class CachingAssetInfo extends LoaderAssetInfo {
                 try {
                     in.close();
                 } finally {
-                    closeOut();
+                    // Some loaders stop reading at the expected length, without seeing the end of the stream
+                    closeOut(expectedSize > 0 && written == expectedSize);
                 }
             }
 
@@ -156,28 +194,136 @@ public class CachingAssetInfo extends LoaderAssetInfo {
                 return false;
             }
 
-            private void closeOut() throws IOException {
-                if (!closed) {
-                    if (LOG.isLoggable(Level.FINE)) {
-                        LOG.fine(String.format("Flushing %d bytes %s to cache ", written, key.getName()));
+            private void closeOut(boolean complete) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                if (out == null) {
+                    // Closed before anything was read
+                    return;
+                }
+                if (complete && expectedSize > 0 && written != expectedSize) {
+                    LOG.warning(String.format("Not caching %s, expected %d bytes but got %d", key.getName(), expectedSize, written));
+                    complete = false;
+                }
+                final long size = written;
+                final CacheLock entryLock = lock;
+                final CacheWriter.Session session = out;
+                final boolean reencrypted = reencrypt;
+                lock = null;
+                session.finish(complete, new CacheWriter.Completion() {
+                    @Override
+                    public void commit() throws IOException {
+                        try {
+                            if (LOG.isLoggable(Level.FINE)) {
+                                LOG.fine(String.format("Commiting %d bytes of %s to cache by renaming from %s", size, key.getName(), cacheTempFile));
+                            }
+                            String digest = session.getDigest();
+                            if (!matchesIndex(digest, lastModified)) {
+                                cacheTempFile.delete();
+                                return;
+                            }
+                            String encryption = getEncryption(session.getHead());
+                            long stored = size;
+                            if (reencrypted && !encryption.equals(CacheMetadata.NOT_ENCRYPTED)) {
+                                // Header may differ in size from the delivered one
+                                encryption = CacheCipher.CIPHER;
+                                stored = cacheTempFile.getContent().getSize();
+                            }
+                            // Content already cached under another name is shared rather than stored again.
+                            // A shared file keeps its own time, as changing it would change the other entry's
+                            // too, the metadata holds the time of this one
+                            boolean shared = ContentStore.get(cacheRoot).share(cacheTempFile, key.getName(), digest, encryption);
+                            if (lastModified != -1 && !shared) {
+                                if (LOG.isLoggable(Level.FINE)) {
+                                    LOG.fine(String.format("Setting timestamp to %s", DateFormat.getDateTimeInstance().format(new Date(lastModified))));
+                                }
+                                cacheTempFile.getContent().setLastModifiedTime(lastModified);
+                            }
+                            LoaderUtils.replace(cacheTempFile, cacheFile);
+                            MemoryCache.get().remove(key.getName());
+                            storeMetadata(lastModified == -1 ? cacheFile.getContent().getLastModifiedTime() : lastModified, stored,
+                                    digest, encryption);
+                            CacheQuota.get(cacheRoot).written(key.getName(), stored);
+                        } finally {
+                            unlock(entryLock);
+                        }
                     }
-                    out.flush();
-                    out.close();
-                    closed = true;
-                    out = null;
-//                                LOG.info(String.format("Commiting cache file %s by renaming from %s", cacheFile, cacheTempFile));
-//                                cacheTempFile.moveTo(cacheFile);
-                    if (lastModified != -1) {
-                        if (LOG.isLoggable(Level.FINE)) {
-                            LOG.fine(String.format("Setting timestamp to %s", DateFormat.getDateTimeInstance().format(new Date(lastModified))));
+
+                    @Override
+                    public void discard() {
+                        try {
+                            if (LOG.isLoggable(Level.FINE)) {
+                                LOG.fine(String.format("Discarding partial cache file for %s (%d bytes)", key.getName(), size));
+                            }
+                            if (cacheTempFile.exists()) {
+                                cacheTempFile.delete();
+                            }
+                        } catch (FileSystemException fse) {
+                            LOG.log(Level.WARNING, String.format("Failed to remove partial cache file %s", cacheTempFile), fse);
+                        } finally {
+                            unlock(entryLock);
                         }
-                        cacheTempFile.getContent().setLastModifiedTime(lastModified);
                     }
+                });
+                out = null;
+            }
+
+            private void unlock(CacheLock entryLock) {
+                if (entryLock != null) {
+                    entryLock.unlock(key.getName());
                 }
             }
         };
     }
 
+    private void storeMetadata(final long lastModified, final long size, final String digest, final String encryption) {
+        // The validator is only known once the stream has been opened
+        final String etag = delegate instanceof UrlAssetInfo ? ((UrlAssetInfo) delegate).getETag() : null;
+        CacheMetadata.get(cacheRoot).update(key.getName(), true, new CacheMetadata.Update() {
+            @Override
+            public boolean apply(CacheMetadata.Entry entry) {
+                entry.setETag(etag);
+                entry.setLastModified(lastModified);
+                entry.setSize(size);
+                entry.setDigest(digest);
+                entry.setEncryption(encryption);
+                entry.setVerified(0);
+                entry.setValidated(System.currentTimeMillis());
+                return true;
+            }
+        });
+    }
+
+    private boolean matchesIndex(String digest, long lastModified) {
+        if (digest == null || lastModified == -1 || !(manager instanceof ServerAssetManager)) {
+            return true;
+        }
+        IndexItem item = ((ServerAssetManager) manager).getAsset(key.getName());
+        // Only if the index describes the version delivered (same tolerance as used by ServerLocator)
+        if (item == null || item.getDigest() == null || item.getLastModified() - lastModified >= 10000
+                || item.getDigest().equals(digest)) {
+            return true;
+        }
+        LOG.warning(String.format("Not caching %s, its digest is %s but the index says %s", key.getName(), digest,
+                item.getDigest()));
+        return false;
+    }
+
+    private static String getEncryption(byte[] head) {
+        byte[] header = EncryptionContext.get().getHeader();
+        if (head.length < header.length) {
+            return CacheMetadata.NOT_ENCRYPTED;
+        }
+        for (int i = 0; i < header.length; i++) {
+            if (head[i] != header[i]) {
+                return CacheMetadata.NOT_ENCRYPTED;
+            }
+        }
+        return EncryptionContext.get().getCipher();
+    }
+
 	@Override
 	public boolean isDecryptedStream() {
 		return delegate instanceof LoaderAssetInfo ? ((LoaderAssetInfo)delegate).isDecryptedStream() : false;
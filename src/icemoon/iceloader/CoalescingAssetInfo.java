@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2013-2016 Emerald Icemoon All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  *
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package icemoon.iceloader;
+
+import java.io.InputStream;
+
+import com.jme3.asset.AssetInfo;
+import com.jme3.asset.AssetKey;
+import com.jme3.asset.AssetManager;
+
+/**
+ * Asset info that takes part in an {@link InFlightAsset}. The owners stream
+ * is teed into the flight, while followers read the bytes retained by it
+ * (when it can), so costing no network or disk I/O themselves.
+ */
+public class CoalescingAssetInfo extends LoaderAssetInfo {
+
+	private final InFlightAsset flight;
+	private final AssetInfo delegate;
+	private final boolean owner;
+	private boolean opened;
+
+	public CoalescingAssetInfo(AssetManager manager, AssetKey<?> key, InFlightAsset flight, AssetInfo delegate,
+			boolean owner) {
+		super(manager, key);
+		this.flight = flight;
+		this.delegate = delegate;
+		this.owner = owner;
+	}
+
+	public AssetInfo getDelegate() {
+		return delegate;
+	}
+
+	@Override
+	public InputStream openStream() {
+		if (!owner) {
+			return flight.openFollowerStream();
+		}
+		if (opened) {
+			return delegate.openStream();
+		}
+		opened = true;
+		flight.opening();
+		InputStream in;
+		try {
+			in = delegate.openStream();
+		} catch (RuntimeException re) {
+			flight.abandon();
+			throw re;
+		}
+		if (in == null) {
+			flight.abandon();
+			return null;
+		}
+		return flight.tee(in);
+	}
+
+	@Override
+	public boolean isDecryptedStream() {
+		return delegate instanceof LoaderAssetInfo ? ((LoaderAssetInfo) delegate).isDecryptedStream() : false;
+	}
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2013-2016 Emerald Icemoon All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  *
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package icemoon.iceloader;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.vfs2.FileObject;
+
+/**
+ * Content addressing for a local asset cache. The {@link CacheMetadata}
+ * records the digest of every entry, so is the mapping from each name to its
+ * content, and may be looked up by digest. Entries with identical content
+ * then share a single file, as hard links when the cache is on the local file
+ * system.
+ * <p>
+ * Content is shared in two ways. When the index supplies the digest of an
+ * asset that is already cached under another name, it is linked to that name
+ * rather than downloaded (see {@link #link(String, String, long)}). And when
+ * newly downloaded content turns out to be already cached, the new entry is
+ * linked to the existing file rather than stored again (see
+ * {@link #share(FileObject, String, String, String)}). Other file systems
+ * cannot link, so content is copied instead, which still saves the download.
+ * <p>
+ * Set <strong>icescene.dedupeCache</strong> to <code>false</code> to turn
+ * this off.
+ */
+public class ContentStore {
+
+	private static final Logger LOG = Logger.getLogger(ContentStore.class.getName());
+
+	/**
+	 * Whether identical content is shared.
+	 */
+	public static boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty("icescene.dedupeCache", "true"));
+
+	private final static Map<String, ContentStore> instances = new HashMap<String, ContentStore>();
+
+	/**
+	 * Get the content store for a cache root.
+	 *
+	 * @param cacheRoot
+	 *            cache root
+	 * @return content store
+	 */
+	public static ContentStore get(FileObject cacheRoot) {
+		synchronized (instances) {
+			String k = cacheRoot.getName().getURI();
+			ContentStore c = instances.get(k);
+			if (c == null) {
+				c = new ContentStore(cacheRoot);
+				instances.put(k, c);
+			}
+			return c;
+		}
+	}
+
+	private final FileObject cacheRoot;
+
+	private ContentStore(FileObject cacheRoot) {
+		this.cacheRoot = cacheRoot;
+	}
+
+	/**
+	 * Make a cache entry from content already in the cache, if there is any
+	 * with the given digest. If the entry itself already has this content,
+	 * only its last modified time is updated.
+	 *
+	 * @param name
+	 *            asset name
+	 * @param digest
+	 *            digest of the content wanted
+	 * @param lastModified
+	 *            last modified time of the content wanted
+	 * @return <code>true</code> if the entry now has the content
+	 */
+	public boolean link(String name, final String digest, final long lastModified) {
+		if (!ENABLED)
+			return false;
+		CacheMetadata metadata = CacheMetadata.get(cacheRoot);
+		CacheLock lock = CacheLock.get(cacheRoot);
+		if (lock != null && !lock.tryLock(name))
+			return false;
+		try {
+			FileObject file = cacheRoot.resolveFile(name);
+			CacheMetadata.Entry entry = metadata.getEntry(name);
+			if (entry != null && digest.equals(entry.getDigest()) && file.exists()) {
+				// Same content, a new version in name only
+				metadata.update(name, false, new CacheMetadata.Update() {
+					@Override
+					public boolean apply(CacheMetadata.Entry entry) {
+						entry.setLastModified(lastModified);
+						entry.setValidated(System.currentTimeMillis());
+						return true;
+					}
+				});
+				if (LOG.isLoggable(Level.FINE))
+					LOG.fine(String.format("%s is unchanged, only its last modified time is updated", name));
+				return true;
+			}
+
+			final CacheMetadata.Entry source = metadata.findByDigest(digest, name);
+			if (source == null)
+				return false;
+			if (lock != null && !lock.tryLock(source.getName()))
+				return false;
+			final boolean linked;
+			try {
+				FileObject temp = cacheRoot.resolveFile(name + "." + LoaderUtils.getProcessId()
+						+ CachingAssetInfo.TEMP_SUFFIX);
+				linked = copy(cacheRoot.resolveFile(source.getName()), temp);
+				LoaderUtils.replace(temp, file);
+			} finally {
+				if (lock != null)
+					lock.unlock(source.getName());
+			}
+			MemoryCache.get().remove(name);
+			metadata.update(name, true, new CacheMetadata.Update() {
+				@Override
+				public boolean apply(CacheMetadata.Entry entry) {
+					entry.setETag(null);
+					entry.setLastModified(lastModified);
+					entry.setSize(source.getSize());
+					entry.setDigest(digest);
+					entry.setEncryption(source.getEncryption());
+					entry.setVerified(linked ? source.getVerified() : 0);
+					entry.setValidated(System.currentTimeMillis());
+					return true;
+				}
+			});
+			if (!linked)
+				CacheQuota.get(cacheRoot).written(name, source.getSize());
+			LOG.info(String.format("%s %s from %s, rather than downloading it", linked ? "Linked" : "Copied", name,
+					source.getName()));
+			return true;
+		} catch (IOException ioe) {
+			LOG.log(Level.WARNING, String.format("Failed to link %s to existing content", name), ioe);
+			return false;
+		} finally {
+			if (lock != null)
+				lock.unlock(name);
+		}
+	}
+
+	/**
+	 * Replace newly written content with a link to an existing entry with the
+	 * same content, if there is one and the cache can link. This is done just
+	 * before the new entry is committed, with the entry locked.
+	 *
+	 * @param temp
+	 *            file the new content has been written to
+	 * @param name
+	 *            asset name
+	 * @param digest
+	 *            digest of the new content as delivered
+	 * @param encryption
+	 *            how the new content is stored
+	 * @return <code>true</code> if the new content now shares a file
+	 */
+	public boolean share(FileObject temp, String name, String digest, String encryption) {
+		if (!ENABLED || digest == null)
+			return false;
+		File tempFile = LoaderUtils.toLocalFile(temp);
+		if (tempFile == null)
+			return false;
+		CacheMetadata.Entry source = CacheMetadata.get(cacheRoot).findByDigest(digest, name);
+		// Must also be stored the same way to be the same bytes
+		if (source == null || (encryption == null ? source.getEncryption() != null
+				: !encryption.equals(source.getEncryption())))
+			return false;
+		CacheLock lock = CacheLock.get(cacheRoot);
+		if (lock != null && !lock.tryLock(source.getName()))
+			return false;
+		Path link = new File(tempFile.getPath() + ".link").toPath();
+		try {
+			File sourceFile = LoaderUtils.toLocalFile(cacheRoot.resolveFile(source.getName()));
+			if (sourceFile == null || sourceFile.length() != tempFile.length())
+				return false;
+			temp.getContent().close();
+			Files.deleteIfExists(link);
+			Files.createLink(link, sourceFile.toPath());
+			Files.move(link, tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			temp.refresh();
+			if (LOG.isLoggable(Level.FINE))
+				LOG.fine(String.format("%s has the same content as %s, sharing it", name, source.getName()));
+			return true;
+		} catch (Exception e) {
+			// Hard links not supported, or the source went away
+			if (LOG.isLoggable(Level.FINE))
+				LOG.fine(String.format("Could not share content of %s with %s. %s", name, source.getName(),
+						e.getMessage()));
+			try {
+				Files.deleteIfExists(link);
+			} catch (IOException ioe) {
+			}
+			return false;
+		} finally {
+			if (lock != null)
+				lock.unlock(source.getName());
+		}
+	}
+
+	private boolean copy(FileObject from, FileObject to) throws IOException {
+		if (!from.exists())
+			throw new FileNotFoundException(String.format("%s no longer exists", from));
+		File fromFile = LoaderUtils.toLocalFile(from);
+		File toFile = LoaderUtils.toLocalFile(to);
+		if (fromFile != null && toFile != null) {
+			to.getContent().close();
+			Files.deleteIfExists(toFile.toPath());
+			try {
+				Files.createLink(toFile.toPath(), fromFile.toPath());
+				to.refresh();
+				return true;
+			} catch (UnsupportedOperationException uoe) {
+			} catch (IOException ioe) {
+				// Probably not supported by this file system
+			}
+			Files.copy(fromFile.toPath(), toFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			to.refresh();
+			return false;
+		}
+		InputStream in = from.getContent().getInputStream();
+		try {
+			OutputStream out = to.getContent().getOutputStream();
+			try {
+				LoaderUtils.copy(in, out, CacheWriter.BUFFER_SIZE);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		return false;
+	}
+}
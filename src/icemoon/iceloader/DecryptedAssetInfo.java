@@ -37,7 +37,6 @@ import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PushbackInputStream;
-import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.crypto.Cipher;
@@ -65,17 +64,32 @@ public class DecryptedAssetInfo extends ExtendedAssetInfo {
         }
         try {
             byte[] header = EncryptionContext.get().getHeader();
-            byte[] b = new byte[header.length];
-            PushbackInputStream pin = new PushbackInputStream(in, header.length);
+            byte[] cacheHeader = CacheCipher.getHeader();
+            byte[] b = new byte[Math.max(header.length, cacheHeader.length)];
+            final PushbackInputStream pin = new PushbackInputStream(in, b.length);
             DataInputStream din = new DataInputStream(pin);
-            din.readFully(b);
-            if (!Arrays.equals(b, header)) {
+            int n = LoaderUtils.readFully(pin, b);
+            if (startsWith(b, n, cacheHeader)) {
+                // Re-encrypted when cached
+                pin.unread(b, cacheHeader.length, n - cacheHeader.length);
+                din.readLong();
+                byte[] iv = new byte[din.read()];
+                din.readFully(iv);
+                if (LOG.isLoggable(Level.FINE)) {
+                    LOG.fine(String.format("Reading %s (decrypting re-encrypted cache entry)", key.getName()));
+                }
+                return CacheCipher.decrypt(pin, iv);
+            }
+            if (!startsWith(b, n, header)) {
                 if (LOG.isLoggable(Level.FINE)) {
                     LOG.fine("Asset doesn't appear to be encrypted, returning as is");
                 }
-                pin.unread(b);
+                if (n > 0) {
+                    pin.unread(b, 0, n);
+                }
                 return pin;
             }
+            pin.unread(b, header.length, n - header.length);
             long actualSize = din.readLong();
             int ivl = din.read();
             byte[] iv = new byte[ivl];
@@ -88,12 +102,12 @@ public class DecryptedAssetInfo extends ExtendedAssetInfo {
             Cipher c = Cipher.getInstance(EncryptionContext.get().getCipher());
             c.init(Cipher.DECRYPT_MODE, secret, new IvParameterSpec(iv));
             final long now = System.currentTimeMillis();
-            return new CipherInputStream(in, c) {
+            return new CipherInputStream(pin, c) {
                 @Override
                 public int available() throws IOException {
                     // Deep in JME, checks are made to see if the stream is ready,
                     // CipherInputStream always returns zero, which screws this up
-                    return in.available();
+                    return pin.available();
                 }
 
 				@Override
@@ -109,6 +123,18 @@ public class DecryptedAssetInfo extends ExtendedAssetInfo {
         }
     }
 
+    private static boolean startsWith(byte[] b, int n, byte[] header) {
+        if (n < header.length) {
+            return false;
+        }
+        for (int i = 0; i < header.length; i++) {
+            if (b[i] != header[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public long getSize() {
         return info instanceof ExtendedAssetInfo ? ((ExtendedAssetInfo) info).getSize() : 0;
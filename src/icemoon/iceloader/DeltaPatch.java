@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2013-2016 Emerald Icemoon All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  *
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package icemoon.iceloader;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.apache.commons.vfs2.RandomAccessContent;
+
+/**
+ * A simple binary delta format, used to update a cached asset to a newer
+ * version without downloading the whole thing again. A patch is a list of
+ * instructions to either copy a range of bytes from the old version, or add
+ * literal bytes. The header carries the length of the old version the patch
+ * applies to, and the length and CRC32 of the result so it can be verified.
+ * <p>
+ * Patches are created by {@link #create(byte[], byte[], OutputStream)},
+ * usually at build time alongside the asset index.
+ */
+public class DeltaPatch {
+
+	public final static byte[] MAGIC = "ICEDELTA".getBytes();
+	public final static int VERSION = 1;
+
+	private final static int OP_COPY = 'C';
+	private final static int OP_ADD = 'A';
+	private final static int OP_END = 'E';
+
+	private final static int BLOCK = 32;
+	private final static int PRIME = 16777619;
+
+	/**
+	 * Most source blocks compared for each position of the target, so that
+	 * repetitive content (where many blocks share a hash) stays linear.
+	 */
+	private final static int MAX_CANDIDATES = 16;
+
+	/**
+	 * Apply a patch.
+	 *
+	 * @param patch
+	 *            patch stream
+	 * @param source
+	 *            old version
+	 * @param out
+	 *            where to write the new version
+	 * @return length of new version
+	 * @throws IOException
+	 *             if the patch is invalid, does not apply to the source, or
+	 *             the result does not verify
+	 */
+	public static long apply(InputStream patch, RandomAccessContent source, OutputStream out) throws IOException {
+		DataInputStream din = new DataInputStream(patch);
+		byte[] magic = new byte[MAGIC.length];
+		din.readFully(magic);
+		if (!Arrays.equals(magic, MAGIC))
+			throw new IOException("Not a delta patch.");
+		int version = din.read();
+		if (version != VERSION)
+			throw new IOException(String.format("Unsupported delta patch version %d.", version));
+		long sourceLength = din.readLong();
+		long targetLength = din.readLong();
+		long targetCrc = din.readLong();
+		if (source.length() != sourceLength)
+			throw new IOException(String.format("Delta patch is for a source of %d bytes, not %d.", sourceLength,
+					source.length()));
+
+		CRC32 crc = new CRC32();
+		byte[] buf = new byte[8192];
+		long written = 0;
+		int op;
+		while ((op = din.read()) != OP_END) {
+			if (op == OP_COPY) {
+				long off = din.readLong();
+				int len = din.readInt();
+				if (off < 0 || len < 0 || off + len > sourceLength)
+					throw new IOException("Delta patch copies outside of the source.");
+				source.seek(off);
+				while (len > 0) {
+					int r = Math.min(len, buf.length);
+					source.readFully(buf, 0, r);
+					out.write(buf, 0, r);
+					crc.update(buf, 0, r);
+					written += r;
+					len -= r;
+				}
+			} else if (op == OP_ADD) {
+				int len = din.readInt();
+				if (len < 0)
+					throw new IOException("Invalid delta patch.");
+				while (len > 0) {
+					int r = Math.min(len, buf.length);
+					din.readFully(buf, 0, r);
+					out.write(buf, 0, r);
+					crc.update(buf, 0, r);
+					written += r;
+					len -= r;
+				}
+			} else if (op == -1) {
+				throw new IOException("Delta patch is truncated.");
+			} else {
+				throw new IOException(String.format("Unknown delta patch instruction %d.", op));
+			}
+		}
+		if (written != targetLength || crc.getValue() != targetCrc)
+			throw new IOException("Patched result does not verify.");
+		return written;
+	}
+
+	/**
+	 * Create a patch that turns one version into another.
+	 *
+	 * @param source
+	 *            old version
+	 * @param target
+	 *            new version
+	 * @param out
+	 *            where to write the patch
+	 * @throws IOException
+	 */
+	public static void create(byte[] source, byte[] target, OutputStream out) throws IOException {
+		DataOutputStream dout = new DataOutputStream(out);
+		CRC32 crc = new CRC32();
+		crc.update(target);
+		dout.write(MAGIC);
+		dout.write(VERSION);
+		dout.writeLong(source.length);
+		dout.writeLong(target.length);
+		dout.writeLong(crc.getValue());
+
+		// Hash every whole block of the source
+		int blocks = source.length / BLOCK;
+		int tableSize = Integer.highestOneBit(Math.max(blocks, 1) * 2);
+		int[] head = new int[tableSize];
+		int[] next = new int[blocks];
+		Arrays.fill(head, -1);
+		// Earlier blocks go at the head of each chain, as they allow the longest matches
+		for (int b = blocks - 1; b >= 0; b--) {
+			int h = hash(source, b * BLOCK) & (tableSize - 1);
+			next[b] = head[h];
+			head[h] = b;
+		}
+
+		int pow = 1;
+		for (int i = 1; i < BLOCK; i++)
+			pow *= PRIME;
+
+		int literal = 0;
+		int i = 0;
+		int h = target.length >= BLOCK ? hash(target, 0) : 0;
+		while (i + BLOCK <= target.length) {
+			int bestOff = -1;
+			int bestLen = 0;
+			int candidates = 0;
+			for (int b = head[h & (tableSize - 1)]; b != -1 && candidates < MAX_CANDIDATES; b = next[b], candidates++) {
+				int off = b * BLOCK;
+				int len = 0;
+				while (i + len < target.length && off + len < source.length && source[off + len] == target[i + len])
+					len++;
+				if (len > bestLen) {
+					bestLen = len;
+					bestOff = off;
+				}
+			}
+			if (bestLen >= BLOCK) {
+				// Extend backwards into any pending literal bytes
+				while (i > literal && bestOff > 0 && source[bestOff - 1] == target[i - 1]) {
+					i--;
+					bestOff--;
+					bestLen++;
+				}
+				writeAdd(dout, target, literal, i - literal);
+				dout.write(OP_COPY);
+				dout.writeLong(bestOff);
+				dout.writeInt(bestLen);
+				i += bestLen;
+				literal = i;
+				if (i + BLOCK <= target.length)
+					h = hash(target, i);
+			} else {
+				if (i + BLOCK < target.length)
+					h = (h - (target[i] & 0xff) * pow) * PRIME + (target[i + BLOCK] & 0xff);
+				i++;
+			}
+		}
+		writeAdd(dout, target, literal, target.length - literal);
+		dout.write(OP_END);
+		dout.flush();
+	}
+
+	private static void writeAdd(DataOutputStream dout, byte[] b, int off, int len) throws IOException {
+		if (len > 0) {
+			dout.write(OP_ADD);
+			dout.writeInt(len);
+			dout.write(b, off, len);
+		}
+	}
+
+	private static int hash(byte[] b, int off) {
+		int h = 0;
+		for (int i = 0; i < BLOCK; i++)
+			h = h * PRIME + (b[off + i] & 0xff);
+		return h;
+	}
+}
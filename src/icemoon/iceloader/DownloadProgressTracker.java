@@ -0,0 +1,408 @@
+/*
+ * Copyright (c) 2013-2016 Emerald Icemoon All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  *
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package icemoon.iceloader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import com.jme3.asset.AssetKey;
+
+import icemoon.iceloader.ServerAssetManager.DownloadingListener;
+
+/**
+ * Keeps running totals of the assets that have been required (see
+ * {@link ServerAssetManager#require(String, List)}), so that loading screens
+ * may read a single cheap {@link Snapshot} rather than handle every download
+ * event themselves. Assets in an indexed archive are counted by the download of
+ * the archive. Expected sizes come from the asset indexes, and are replaced by
+ * the size reported when a download starts (as progress is counted in bytes as
+ * transferred). An asset (or archive) required by several groups counts
+ * towards each of them, but only once towards the total. Once all the groups
+ * an asset was required by are complete, it is no longer tracked.
+ */
+public class DownloadProgressTracker implements DownloadingListener {
+
+	public final static String DEFAULT_GROUP = "default";
+
+	/**
+	 * How far back (in milliseconds) throughput is averaged over.
+	 */
+	public static long THROUGHPUT_WINDOW = 5000;
+
+	/**
+	 * Progress of a group of required assets.
+	 */
+	public static class Group {
+		private final String name;
+		private long expectedBytes;
+		private long doneBytes;
+		private int expectedAssets;
+		private int doneAssets;
+
+		Group(String name) {
+			this.name = name;
+		}
+
+		Group(Group other) {
+			this.name = other.name;
+			this.expectedBytes = other.expectedBytes;
+			this.doneBytes = other.doneBytes;
+			this.expectedAssets = other.expectedAssets;
+			this.doneAssets = other.doneAssets;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getExpectedBytes() {
+			return expectedBytes;
+		}
+
+		public long getDoneBytes() {
+			return doneBytes;
+		}
+
+		public int getExpectedAssets() {
+			return expectedAssets;
+		}
+
+		public int getDoneAssets() {
+			return doneAssets;
+		}
+
+		/**
+		 * Get the fraction complete, by bytes if sizes are known, or by number
+		 * of assets if not.
+		 *
+		 * @return fraction between 0 and 1
+		 */
+		public float getFraction() {
+			if (expectedBytes > 0)
+				return Math.min(1f, (float) doneBytes / expectedBytes);
+			return expectedAssets == 0 ? 1f : (float) doneAssets / expectedAssets;
+		}
+
+		public boolean isComplete() {
+			return doneAssets >= expectedAssets;
+		}
+	}
+
+	/**
+	 * A point in time copy of all progress.
+	 */
+	public static class Snapshot extends Group {
+		private final long throughput;
+		private final long eta;
+		private final Map<String, Group> groups;
+
+		Snapshot(Group total, long throughput, long eta, Map<String, Group> groups) {
+			super(total);
+			this.throughput = throughput;
+			this.eta = eta;
+			this.groups = groups;
+		}
+
+		/**
+		 * Get the current download rate.
+		 *
+		 * @return bytes per second
+		 */
+		public long getThroughput() {
+			return throughput;
+		}
+
+		/**
+		 * Get the estimated time until all required assets are done.
+		 *
+		 * @return milliseconds or -1 if not known
+		 */
+		public long getEta() {
+			return eta;
+		}
+
+		public Map<String, Group> getGroups() {
+			return groups;
+		}
+
+		public Group getGroup(String name) {
+			return groups.get(name);
+		}
+	}
+
+	private static class Download {
+		final List<Group> groups = new ArrayList<Group>(1);
+		long expected;
+		long done;
+		boolean complete;
+
+		Download(long expected) {
+			this.expected = expected;
+		}
+	}
+
+	private static class Tracked {
+		final List<Group> groups = new ArrayList<Group>(1);
+		final Download download;
+		boolean complete;
+
+		Tracked(Download download) {
+			this.download = download;
+		}
+	}
+
+	private final ServerAssetManager manager;
+	private final Map<String, Tracked> tracked = new HashMap<String, Tracked>();
+	private final Map<String, Download> downloads = new HashMap<String, Download>();
+	private final Map<String, Group> groups = new LinkedHashMap<String, Group>();
+	private final Group total = new Group("total");
+	private final Map<String, Long> lastProgress = new HashMap<String, Long>();
+	private final LinkedList<long[]> samples = new LinkedList<long[]>();
+	private long downloaded;
+
+	public DownloadProgressTracker(ServerAssetManager manager) {
+		this.manager = manager;
+	}
+
+	/**
+	 * Start tracking a group of assets.
+	 *
+	 * @param group
+	 *            group name
+	 * @param assets
+	 *            assets
+	 */
+	public synchronized void require(String group, List<AssetKey<?>> assets) {
+		Group g = groups.get(group);
+		if (g == null) {
+			g = new Group(group);
+			groups.put(group, g);
+		}
+		for (AssetKey<?> k : assets) {
+			Tracked t = tracked.get(k.getName());
+			if (t != null) {
+				// Already required, perhaps by another group
+				if (!t.groups.contains(g))
+					join(t, g);
+				continue;
+			}
+
+			// Assets in an indexed archive arrive as part of the archive, so
+			// progress is of that
+			IndexItem item = manager.getAsset(k.getName());
+			String downloadName = k.getName();
+			if (item != null) {
+				String folder = k.getFolder();
+				while (folder.endsWith("/"))
+					folder = folder.substring(0, folder.length() - 1);
+				IndexItem archiveItem = manager.getAsset(folder + ".jar");
+				if (archiveItem != null) {
+					item = archiveItem;
+					downloadName = archiveItem.getName();
+				}
+			}
+			Download d = downloads.get(downloadName);
+			if (d == null) {
+				long size = item == null ? 0 : Math.max(0, item.getSize());
+				d = new Download(size);
+				downloads.put(downloadName, d);
+				total.expectedBytes += size;
+			}
+			t = new Tracked(d);
+			tracked.put(k.getName(), t);
+			total.expectedAssets++;
+			join(t, g);
+		}
+		if (g.isComplete())
+			forgetFinished();
+	}
+
+	private void join(Tracked t, Group g) {
+		t.groups.add(g);
+		g.expectedAssets++;
+		if (t.complete)
+			g.doneAssets++;
+		Download d = t.download;
+		if (!d.groups.contains(g)) {
+			d.groups.add(g);
+			g.expectedBytes += d.expected;
+			g.doneBytes += d.done;
+		}
+	}
+
+	/**
+	 * Stop tracking everything and reset all totals.
+	 */
+	public synchronized void reset() {
+		tracked.clear();
+		downloads.clear();
+		groups.clear();
+		total.expectedAssets = total.doneAssets = 0;
+		total.expectedBytes = total.doneBytes = 0;
+	}
+
+	/**
+	 * Get a copy of the current progress.
+	 *
+	 * @return snapshot
+	 */
+	public synchronized Snapshot getSnapshot() {
+		Map<String, Group> copy = new LinkedHashMap<String, Group>();
+		for (Group g : groups.values())
+			copy.put(g.getName(), new Group(g));
+		long rate = getThroughput();
+		long remaining = total.expectedBytes - total.doneBytes;
+		long eta = remaining <= 0 ? 0 : (rate <= 0 ? -1 : remaining * 1000 / rate);
+		return new Snapshot(total, rate, eta, Collections.unmodifiableMap(copy));
+	}
+
+	@Override
+	public void assetRequested(AssetKey<?> key) {
+	}
+
+	@Override
+	public synchronized void assetSupplied(AssetKey<?> key) {
+		Tracked t = tracked.get(key.getName());
+		if (t != null && !t.complete) {
+			// Supplied from wherever, so consider all of its download done
+			complete(t.download);
+			t.complete = true;
+			boolean finished = false;
+			for (Group g : t.groups) {
+				g.doneAssets++;
+				finished |= g.isComplete();
+			}
+			total.doneAssets++;
+			if (finished)
+				forgetFinished();
+		}
+	}
+
+	@Override
+	public synchronized void downloadStarting(AssetKey<?> key, long size) {
+		Download d = downloads.get(key.getName());
+		if (d != null && !d.complete && size > 0 && size != d.expected) {
+			// Progress is counted against the size as transferred (which is
+			// compressed if the server encoded it), not the size in the index
+			long diff = size - d.expected;
+			d.expected = size;
+			for (Group g : d.groups)
+				g.expectedBytes += diff;
+			total.expectedBytes += diff;
+			if (d.done > size)
+				addDone(d, size - d.done);
+		}
+		sample(System.currentTimeMillis());
+	}
+
+	@Override
+	public synchronized void downloadProgress(AssetKey<?> key, long progress) {
+		Download d = downloads.get(key.getName());
+		if (d != null && !d.complete) {
+			long diff = Math.min(progress, d.expected) - d.done;
+			if (diff > 0)
+				addDone(d, diff);
+		}
+		// Progress is cumulative per key, keep our own running count too
+		Long last = lastProgress.put(key.getName(), progress);
+		downloaded += progress - (last == null ? 0 : last);
+		sample(System.currentTimeMillis());
+	}
+
+	@Override
+	public synchronized void downloadComplete(AssetKey<?> key) {
+		lastProgress.remove(key.getName());
+	}
+
+	private void complete(Download d) {
+		if (!d.complete) {
+			addDone(d, Math.max(0, d.expected - d.done));
+			d.complete = true;
+		}
+	}
+
+	private void addDone(Download d, long diff) {
+		d.done += diff;
+		for (Group g : d.groups)
+			g.doneBytes += diff;
+		total.doneBytes += diff;
+	}
+
+	private void forgetFinished() {
+		// Nothing more can be credited to complete groups, so stop tracking
+		// what only they required
+		for (Iterator<Tracked> it = tracked.values().iterator(); it.hasNext();) {
+			if (isComplete(it.next().groups))
+				it.remove();
+		}
+		for (Iterator<Download> it = downloads.values().iterator(); it.hasNext();) {
+			if (isComplete(it.next().groups))
+				it.remove();
+		}
+	}
+
+	private static boolean isComplete(List<Group> groups) {
+		for (Group g : groups) {
+			if (!g.isComplete())
+				return false;
+		}
+		return true;
+	}
+
+	private void sample(long now) {
+		samples.add(new long[] { now, downloaded });
+		prune(now);
+	}
+
+	private void prune(long now) {
+		// Keep the newest sample from before the window as the base, so the
+		// rate covers the whole window
+		while (samples.size() > 1 && now - samples.get(1)[0] >= THROUGHPUT_WINDOW)
+			samples.removeFirst();
+	}
+
+	private long getThroughput() {
+		long now = System.currentTimeMillis();
+		prune(now);
+		if (samples.size() < 2)
+			return 0;
+		long[] oldest = samples.getFirst();
+		long elapsed = now - oldest[0];
+		if (elapsed <= 0)
+			return 0;
+		return (downloaded - oldest[1]) * 1000 / elapsed;
+	}
+}
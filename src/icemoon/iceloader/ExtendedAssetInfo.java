@@ -32,6 +32,7 @@ package icemoon.iceloader;
 import com.jme3.asset.AssetInfo;
 import com.jme3.asset.AssetKey;
 import com.jme3.asset.AssetManager;
+import java.nio.ByteBuffer;
 
 /**
  * Extension of {@link AssetInfo} to carry the asset size and last 
@@ -46,6 +47,15 @@ public abstract class ExtendedAssetInfo extends LoaderAssetInfo {
     public abstract long getSize();
     
     public abstract long getLastModified();
-    
-    
+
+    /**
+     * Get the whole content as a buffer, without copying it, if this asset
+     * can provide one. The buffer may be memory mapped or off-heap. Callers
+     * that can use a buffer should try this before {@link #openStream()}.
+     *
+     * @return buffer or <code>null</code> if not available
+     */
+    public ByteBuffer openBuffer() {
+        return null;
+    }
 }
@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2013-2016 Emerald Icemoon All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  *
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package icemoon.iceloader;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers what is known about local cache entries during this runtime, so
+ * that an entry does not need to be checked for freshness every time it is
+ * located. Only a few numbers are kept per entry (the last modified time of
+ * the cached copy, which is used as the validator, its size and the freshness
+ * epoch), and the number of entries is bounded, least recently used entries
+ * being forgotten first. A forgotten entry is simply checked again the next
+ * time it is located.
+ * <p>
+ * Freshness is tied to an epoch. Starting a new epoch (for example when the
+ * index is reloaded) forgets which entries were found to be fresh, without
+ * having to visit each entry.
+ */
+public class FreshnessRegistry {
+
+	/**
+	 * The state of a single cache entry.
+	 */
+	public final static class Entry {
+		private final long lastModified;
+		private final long size;
+		private final int epoch;
+		private final boolean fresh;
+		private final boolean located;
+
+		Entry(long lastModified, long size, int epoch, boolean fresh, boolean located) {
+			this.lastModified = lastModified;
+			this.size = size;
+			this.epoch = epoch;
+			this.fresh = fresh;
+			this.located = located;
+		}
+
+		/**
+		 * Get the last modified time of the cached copy when this entry was
+		 * recorded. If the cached copy no longer has this time, the entry is
+		 * out of date.
+		 *
+		 * @return last modified
+		 */
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public int getEpoch() {
+			return epoch;
+		}
+
+		/**
+		 * Get whether the cached copy has already been located (and so
+		 * checked for freshness, if checks are enabled) during this runtime.
+		 *
+		 * @return located
+		 */
+		public boolean isLocated() {
+			return located;
+		}
+	}
+
+	private final int maxEntries;
+	private final Map<String, Entry> entries;
+	private volatile int epoch;
+
+	public FreshnessRegistry(final int maxEntries) {
+		this.maxEntries = maxEntries;
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > FreshnessRegistry.this.maxEntries;
+			}
+		};
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * Get the current freshness epoch.
+	 *
+	 * @return epoch
+	 */
+	public int getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * Get the state of an entry.
+	 *
+	 * @param name
+	 *            asset name
+	 * @return entry or <code>null</code> if nothing is known about it
+	 */
+	public Entry get(String name) {
+		synchronized (entries) {
+			return entries.get(name);
+		}
+	}
+
+	/**
+	 * Get whether an entry is known to be fresh in the current epoch, and the
+	 * cached copy still has the supplied last modified time.
+	 *
+	 * @param name
+	 *            asset name
+	 * @param lastModified
+	 *            last modified time of the cached copy
+	 * @return fresh
+	 */
+	public boolean isFresh(String name, long lastModified) {
+		Entry e = get(name);
+		return e != null && e.fresh && e.epoch == epoch && e.lastModified == lastModified;
+	}
+
+	/**
+	 * Get whether an entry was found to be out of date in the current epoch
+	 * (by {@link icemoon.iceloader.locators.AssetCacheLocator#revalidate}),
+	 * and the cached copy still has the supplied last modified time. An entry
+	 * that is only known to have been located is not fresh either, so this
+	 * should be asked before {@link #located(String, long, long)} is called.
+	 *
+	 * @param name
+	 *            asset name
+	 * @param lastModified
+	 *            last modified time of the cached copy
+	 * @return stale
+	 */
+	public boolean isStale(String name, long lastModified) {
+		Entry e = get(name);
+		return e != null && !e.fresh && e.epoch == epoch && e.lastModified == lastModified;
+	}
+
+	/**
+	 * Get whether an entry has already been located during this runtime, and
+	 * the cached copy still has the supplied last modified time.
+	 *
+	 * @param name
+	 *            asset name
+	 * @param lastModified
+	 *            last modified time of the cached copy
+	 * @return located
+	 */
+	public boolean isLocated(String name, long lastModified) {
+		Entry e = get(name);
+		return e != null && e.located && e.lastModified == lastModified;
+	}
+
+	/**
+	 * Record that an entry was located, keeping any freshness already known
+	 * for the same copy.
+	 *
+	 * @param name
+	 *            asset name
+	 * @param lastModified
+	 *            last modified time of the cached copy
+	 * @param size
+	 *            size of the cached copy
+	 */
+	public void located(String name, long lastModified, long size) {
+		synchronized (entries) {
+			Entry e = entries.get(name);
+			boolean fresh = e != null && e.fresh && e.epoch == epoch && e.lastModified == lastModified;
+			entries.put(name, new Entry(lastModified, size, epoch, fresh, true));
+		}
+	}
+
+	/**
+	 * Record whether an entry is fresh in the current epoch.
+	 *
+	 * @param name
+	 *            asset name
+	 * @param lastModified
+	 *            last modified time of the cached copy
+	 * @param size
+	 *            size of the cached copy
+	 * @param fresh
+	 *            fresh
+	 */
+	public void validated(String name, long lastModified, long size, boolean fresh) {
+		synchronized (entries) {
+			Entry e = entries.get(name);
+			boolean located = e != null && e.located && e.lastModified == lastModified;
+			entries.put(name, new Entry(lastModified, size, epoch, fresh, located));
+		}
+	}
+
+	/**
+	 * Forget an entry.
+	 *
+	 * @param name
+	 *            asset name
+	 */
+	public void remove(String name) {
+		synchronized (entries) {
+			entries.remove(name);
+		}
+	}
+
+	/**
+	 * Start a new epoch, forgetting which entries were found to be fresh.
+	 */
+	public void newEpoch() {
+		synchronized (entries) {
+			epoch++;
+		}
+	}
+
+	/**
+	 * Forget everything.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+			epoch++;
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+}
@@ -0,0 +1,465 @@
+/*
+ * Copyright (c) 2013-2016 Emerald Icemoon All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  *
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package icemoon.iceloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.jme3.asset.AssetInfo;
+import com.jme3.asset.AssetKey;
+
+import icemoon.iceloader.locators.AbstractServerLocator;
+import icemoon.iceloader.locators.AssetCacheLocator;
+
+/**
+ * A locate (and subsequent read) of a single asset that is currently in
+ * progress. The first thread to ask for a key becomes the owner and does the
+ * actual work. Other threads asking for the same key at the same time attach
+ * to it rather than repeating the request and cache write themselves.
+ * <p>
+ * Bytes read by the owner are only retained once a follower attaches before
+ * the owner has started reading, and then only up to
+ * {@link #MAX_RETAINED} bytes, so followers may replay them as they arrive.
+ * A follower that attached too late, or whose owner read more than that (or
+ * gave up), waits for the owner to finish and then locates the asset again,
+ * which will normally find the copy the owner cached.
+ * <p>
+ * Obtain instances using {@link ServerAssetManager#joinInFlight(AssetKey)}.
+ */
+public class InFlightAsset {
+
+	private static final Logger LOG = Logger.getLogger(InFlightAsset.class.getName());
+
+	/**
+	 * Maximum number of bytes retained for followers.
+	 */
+	public static int MAX_RETAINED = Integer.getInteger("icescene.inFlightBuffer", 4 * 1024 * 1024);
+
+	/**
+	 * How long (in milliseconds) the owner has to open the asset once it has
+	 * located it. After this the flight is over, so an asset that is located
+	 * but never read (for example as there is no loader for it) does not hold
+	 * up others.
+	 */
+	public static long OPEN_TIMEOUT = Long.getLong("icescene.inFlightOpenTimeout", 2000);
+
+	private final ServerAssetManager manager;
+	private final AssetKey<?> key;
+	private final Thread owner;
+
+	private AssetInfo info;
+	private volatile boolean located;
+	private volatile long locatedAt;
+	private volatile boolean started;
+	private byte[] buf;
+	private int count;
+	private long consumed;
+	private boolean retaining;
+	private boolean overflowed;
+	private int waiting;
+	private volatile boolean complete;
+	private volatile boolean abandoned;
+
+	InFlightAsset(ServerAssetManager manager, AssetKey<?> key) {
+		this.manager = manager;
+		this.key = key;
+		this.owner = Thread.currentThread();
+	}
+
+	public AssetKey<?> getKey() {
+		return key;
+	}
+
+	/**
+	 * Get if the calling thread is the one doing the actual work.
+	 *
+	 * @return owner
+	 */
+	public boolean isOwner() {
+		return Thread.currentThread() == owner;
+	}
+
+	/**
+	 * Get if the owner has finished locating the asset.
+	 *
+	 * @return located
+	 */
+	public synchronized boolean isLocated() {
+		return located;
+	}
+
+	/**
+	 * Called by the owner when it has located the asset (or not). If nothing
+	 * was found, the flight is over and any followers will also get nothing.
+	 *
+	 * @param info
+	 *            located asset info or <code>null</code> if not found
+	 */
+	public synchronized void located(AssetInfo info) {
+		this.info = info;
+		locatedAt = System.currentTimeMillis();
+		located = true;
+		if (info == null) {
+			abandoned = true;
+			manager.endInFlight(this);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Wait for the owner to locate the asset.
+	 *
+	 * @return the asset info located by the owner or <code>null</code> if it
+	 *         found nothing or took too long
+	 */
+	public synchronized AssetInfo awaitLocated() {
+		long timeout = AbstractServerLocator.getConnectTimeout() + AbstractServerLocator.getReadTimeout();
+		long until = System.currentTimeMillis() + timeout;
+		try {
+			while (!located) {
+				long left = until - System.currentTimeMillis();
+				if (left <= 0) {
+					LOG.warning(String.format("Timed out waiting for %s to be located by %s", key, owner.getName()));
+					return null;
+				}
+				wait(left);
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		return info;
+	}
+
+	/**
+	 * Called by the owner when it starts to open the located asset.
+	 */
+	public void opening() {
+		started = true;
+	}
+
+	/**
+	 * Get if the owner located the asset but has not opened it in time, so
+	 * the flight should be abandoned. This does not lock the flight, so may
+	 * be called while holding other locks.
+	 *
+	 * @return stale
+	 */
+	boolean isStale() {
+		return located && !started && !complete && !abandoned
+				&& System.currentTimeMillis() - locatedAt > OPEN_TIMEOUT;
+	}
+
+	/**
+	 * Wrap the stream opened by the owner, so that bytes read from it may be
+	 * retained for followers.
+	 *
+	 * @param in
+	 *            stream opened by owner
+	 * @return stream to return to owner
+	 */
+	public InputStream tee(final InputStream in) {
+		return new FilteredInputStream(in) {
+			private boolean eof;
+
+			@Override
+			public int read() throws IOException {
+				int r = super.read();
+				if (r == -1)
+					end();
+				else
+					append(new byte[] { (byte) r }, 0, 1);
+				return r;
+			}
+
+			@Override
+			public int read(byte[] b) throws IOException {
+				return read(b, 0, b.length);
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int r = super.read(b, off, len);
+				if (r == -1)
+					end();
+				else if (r > 0)
+					append(b, off, r);
+				return r;
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				// Bytes must pass through us, so skip by reading
+				byte[] b = new byte[(int) Math.min(n, 8192)];
+				long s = 0;
+				while (s < n) {
+					int r = read(b, 0, (int) Math.min(n - s, b.length));
+					if (r == -1)
+						break;
+					s += r;
+				}
+				return s;
+			}
+
+			@Override
+			public boolean markSupported() {
+				return false;
+			}
+
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					if (!eof)
+						abandon();
+				}
+			}
+
+			private void end() {
+				if (!eof) {
+					eof = true;
+					complete();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Open a stream for a follower. If the owner has not started reading yet,
+	 * the stream replays whatever the owner reads, blocking until more is
+	 * available. Otherwise, or should the owner give up or read more than can
+	 * be retained, the follower waits for the owner to finish and locates the
+	 * asset again itself, skipping what it has already seen.
+	 *
+	 * @return stream
+	 */
+	public InputStream openFollowerStream() {
+		final boolean replay;
+		synchronized (this) {
+			replay = !abandoned && !overflowed && (retaining || consumed == 0);
+			if (replay)
+				retaining = true;
+		}
+		return new InputStream() {
+			private long pos;
+			private InputStream fallback;
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				int r;
+				while ((r = read(b, 0, 1)) == 0)
+					;
+				return r == -1 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (fallback != null) {
+					return fallback.read(b, off, len);
+				}
+				int r = replay ? readAt((int) pos, b, off, len) : -2;
+				if (r == -2) {
+					openFallback();
+					return fallback.read(b, off, len);
+				}
+				if (r > 0)
+					pos += r;
+				return r;
+			}
+
+			@Override
+			public int available() throws IOException {
+				if (fallback != null)
+					return fallback.available();
+				synchronized (InFlightAsset.this) {
+					return replay && buf != null ? (int) Math.max(0, count - pos) : 0;
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (fallback != null)
+					fallback.close();
+			}
+
+			private void openFallback() throws IOException {
+				if (LOG.isLoggable(Level.FINE)) {
+					LOG.fine(String.format("Cannot replay %s from %s after %d bytes, locating it again", key,
+							owner.getName(), pos));
+				}
+				awaitEnded();
+				if (AssetCacheLocator.isInUse()) {
+					CacheWriter.awaitWritten(key.getName(), AbstractServerLocator.getReadTimeout());
+				}
+				AssetInfo again = manager.locateAsset(key);
+				fallback = again == null ? null : again.openStream();
+				if (fallback == null)
+					throw new IOException(String.format("Could not re-open %s", key));
+				long s = 0;
+				while (s < pos) {
+					long r = fallback.skip(pos - s);
+					if (r <= 0) {
+						if (fallback.read() == -1)
+							throw new IOException(String.format("%s is shorter than expected", key));
+						r = 1;
+					}
+					s += r;
+				}
+			}
+		};
+	}
+
+	synchronized void append(byte[] b, int off, int len) {
+		consumed += len;
+		if (abandoned || !retaining || overflowed)
+			return;
+		if (count + len > MAX_RETAINED) {
+			// Too big to hold, followers will have to locate it again
+			overflowed = true;
+			buf = null;
+			count = 0;
+			notifyAll();
+			return;
+		}
+		if (buf == null) {
+			buf = new byte[Math.min(Math.max(8192, len), MAX_RETAINED)];
+		} else if (count + len > buf.length) {
+			byte[] nb = new byte[Math.min(Math.max(buf.length * 2, count + len), MAX_RETAINED)];
+			System.arraycopy(buf, 0, nb, 0, count);
+			buf = nb;
+		}
+		System.arraycopy(b, off, buf, count, len);
+		count += len;
+		if (waiting > 0)
+			notifyAll();
+	}
+
+	synchronized void complete() {
+		if (!abandoned) {
+			complete = true;
+			manager.endInFlight(this);
+			notifyAll();
+		}
+	}
+
+	synchronized void abandon() {
+		if (!complete && !abandoned) {
+			abandoned = true;
+			buf = null;
+			manager.endInFlight(this);
+			notifyAll();
+		}
+	}
+
+	private boolean openedInTime() {
+		if (isStale()) {
+			LOG.warning(String.format("%s was located by %s but not opened, no longer waiting for it", key,
+					owner.getName()));
+			abandon();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Wait for the owner to finish reading (or give up), giving up on it if it
+	 * makes no progress for the read timeout.
+	 */
+	private synchronized void awaitEnded() throws IOException {
+		long timeout = AbstractServerLocator.getReadTimeout();
+		long seen = consumed;
+		long until = System.currentTimeMillis() + timeout;
+		waiting++;
+		try {
+			while (!complete && !abandoned) {
+				if (consumed != seen) {
+					seen = consumed;
+					until = System.currentTimeMillis() + timeout;
+				}
+				long left = until - System.currentTimeMillis();
+				if (left <= 0) {
+					LOG.warning(String.format("Timed out waiting for %s to be read by %s", key, owner.getName()));
+					abandon();
+					break;
+				}
+				if (!openedInTime())
+					break;
+				wait(Math.min(left, OPEN_TIMEOUT));
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} finally {
+			waiting--;
+		}
+	}
+
+	/**
+	 * Copy retained bytes starting at a position, waiting for the owner if
+	 * there are none yet.
+	 *
+	 * @return bytes copied, -1 at the end of the asset, or -2 if the bytes
+	 *         are not retained, or the owner gave up (or took too long)
+	 */
+	private synchronized int readAt(int pos, byte[] b, int off, int len) throws IOException {
+		long timeout = AbstractServerLocator.getReadTimeout();
+		long until = System.currentTimeMillis() + timeout;
+		waiting++;
+		try {
+			while (pos >= count && !complete && !abandoned && !overflowed) {
+				long left = until - System.currentTimeMillis();
+				if (left <= 0) {
+					LOG.warning(String.format("Timed out waiting for %s to be read by %s", key, owner.getName()));
+					abandon();
+					break;
+				}
+				if (!openedInTime())
+					break;
+				wait(Math.min(left, OPEN_TIMEOUT));
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} finally {
+			waiting--;
+		}
+		if (overflowed || abandoned)
+			return -2;
+		if (pos < count) {
+			int r = Math.min(len, count - pos);
+			System.arraycopy(buf, pos, b, off, r);
+			return r;
+		}
+		return -1;
+	}
+}
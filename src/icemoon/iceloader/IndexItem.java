@@ -34,15 +34,20 @@ public class IndexItem implements Comparable<IndexItem>{
     private long lastModified;
     private long size;
     private long unprocessedSize = -1;
+    private String digest;
 
     public IndexItem(String name, long lastMod) {
         this(name, Long.MAX_VALUE, -1, -1);
     }
     public IndexItem(String name, long lastModified, long size, long unprocessedSize) {
+        this(name, lastModified, size, unprocessedSize, null);
+    }
+    public IndexItem(String name, long lastModified, long size, long unprocessedSize, String digest) {
         this.name = name;
         this.lastModified = lastModified;
         this.size = size;
         this.unprocessedSize = unprocessedSize;
+        this.digest = digest;
     }
 
     public long getUnprocessedSize() {
@@ -60,6 +65,16 @@ public class IndexItem implements Comparable<IndexItem>{
         return size;
     }
 
+    /**
+     * Get the digest of the asset as served (using
+     * {@link CacheMetadata#DIGEST_ALGORITHM}) as a hex string.
+     *
+     * @return digest or <code>null</code> if the index does not supply one
+     */
+    public String getDigest() {
+        return digest;
+    }
+
     @Override
     public int hashCode() {
         int hash = 7;
@@ -2,11 +2,20 @@ package icemoon.iceloader;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
 
 public class LoaderUtils {
 
@@ -24,6 +33,60 @@ public class LoaderUtils {
 		return path;
 	}
 
+	/**
+	 * Move a file over another, replacing it. On the local file system this
+	 * is an atomic rename where supported, so the target is always either
+	 * the old or the new file, never missing or partial.
+	 *
+	 * @param from
+	 *            file to move
+	 * @param to
+	 *            file to replace
+	 * @throws IOException
+	 *             on error
+	 */
+	public static void replace(FileObject from, FileObject to) throws IOException {
+		from.getContent().close();
+		to.getContent().close();
+		File fromFile = toLocalFile(from);
+		File toFile = toLocalFile(to);
+		if (fromFile != null && toFile != null) {
+			try {
+				Files.move(fromFile.toPath(), toFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException amnse) {
+				Files.move(fromFile.toPath(), toFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			from.refresh();
+			to.refresh();
+		} else {
+			if (to.exists())
+				to.delete();
+			from.moveTo(to);
+		}
+	}
+
+	/**
+	 * Get the local file for a VFS file object, if it is on the local file
+	 * system.
+	 *
+	 * @param file
+	 *            file object
+	 * @return local file or <code>null</code> if not local
+	 */
+	public static File toLocalFile(FileObject file) {
+		try {
+			URL url = file.getURL();
+			if (url.getProtocol().equals("file")) {
+				return new File(url.toURI());
+			}
+		} catch (FileSystemException e) {
+		} catch (URISyntaxException e) {
+		} catch (IllegalArgumentException e) {
+		}
+		return null;
+	}
+
 	public static  InputStream dumpStream(InputStream in) throws IOException {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		copy(in, baos);
@@ -46,4 +109,49 @@ public class LoaderUtils {
 		}
 		out.flush();
 	}
+
+	/**
+	 * Read into a buffer until it is full or the stream ends.
+	 *
+	 * @param in
+	 *            stream
+	 * @param b
+	 *            buffer
+	 * @return number of bytes read
+	 * @throws IOException
+	 */
+	public static int readFully(InputStream in, byte[] b) throws IOException {
+		int n = 0;
+		while (n < b.length) {
+			int r = in.read(b, n, b.length - n);
+			if (r == -1)
+				break;
+			n += r;
+		}
+		return n;
+	}
+
+	/**
+	 * Get an identifier for this process, safe to use in a file name, so that
+	 * temporary files in a shared cache do not clash with other processes.
+	 *
+	 * @return process identifier
+	 */
+	public static String getProcessId() {
+		return ManagementFactory.getRuntimeMXBean().getName().replaceAll("[^A-Za-z0-9_-]", "_");
+	}
+
+	/**
+	 * Format a digest as lower case hexadecimal.
+	 *
+	 * @param digest
+	 *            digest
+	 * @return hex
+	 */
+	public static String toHex(byte[] digest) {
+		StringBuilder b = new StringBuilder();
+		for (byte d : digest)
+			b.append(String.format("%02x", d & 0xff));
+		return b.toString();
+	}
 }
@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2013-2016 Emerald Icemoon All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  *
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package icemoon.iceloader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.jme3.asset.AssetInfo;
+import com.jme3.asset.AssetKey;
+import com.jme3.asset.AssetManager;
+
+/**
+ * Optional in-memory cache of recently used small assets, kept in front of the
+ * local disk cache. The content is stored as it is finally returned to JME
+ * (i.e. already decrypted), in direct (off-heap) buffers, so repeatedly
+ * loaded assets such as shaders, material definitions and fonts don't touch
+ * the disk, VFS or the cipher again.
+ * <p>
+ * The total size of the content is kept within
+ * <strong>icescene.memoryCache</strong> bytes (default 0, disabled). When more
+ * room is needed, the least recently used entries are removed until there is
+ * enough, so one large entry may displace several small ones. Assets bigger
+ * than <strong>icescene.memoryCacheMaxEntry</strong> are never kept.
+ */
+public class MemoryCache {
+
+	private static final Logger LOG = Logger.getLogger(MemoryCache.class.getName());
+
+	/**
+	 * Maximum total size of all entries in bytes, or 0 to disable.
+	 */
+	public static long BUDGET = Long.getLong("icescene.memoryCache", 0);
+
+	/**
+	 * Maximum size of a single entry in bytes.
+	 */
+	public static int MAX_ENTRY = Integer.getInteger("icescene.memoryCacheMaxEntry", 256 * 1024);
+
+	private final static MemoryCache instance = new MemoryCache();
+
+	private static class Entry {
+		private final ByteBuffer data;
+		private final long lastModified;
+		private final boolean decrypted;
+
+		private Entry(ByteBuffer data, long lastModified, boolean decrypted) {
+			this.data = data;
+			this.lastModified = lastModified;
+			this.decrypted = decrypted;
+		}
+	}
+
+	/**
+	 * Get the memory cache.
+	 *
+	 * @return memory cache
+	 */
+	public static MemoryCache get() {
+		return instance;
+	}
+
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long used;
+	private long hits;
+	private long misses;
+
+	private MemoryCache() {
+	}
+
+	public boolean isEnabled() {
+		return BUDGET > 0;
+	}
+
+	/**
+	 * Get the total size of all entries.
+	 *
+	 * @return used bytes
+	 */
+	public synchronized long getUsed() {
+		return used;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Get an asset from memory, if the copy held was made from the cached copy
+	 * with the given last modified time.
+	 *
+	 * @param manager
+	 *            asset manager
+	 * @param key
+	 *            asset key
+	 * @param lastModified
+	 *            last modified time of cached copy
+	 * @return asset info or <code>null</code> if not held
+	 */
+	public synchronized AssetInfo get(AssetManager manager, AssetKey<?> key, long lastModified) {
+		if (!isEnabled())
+			return null;
+		Entry e = entries.get(key.getName());
+		if (e == null || e.lastModified != lastModified) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return new MemoryAssetInfo(manager, key, e);
+	}
+
+	/**
+	 * Wrap an asset so that, once it has been read, its content is held in
+	 * memory (if it is small enough).
+	 *
+	 * @param manager
+	 *            asset manager
+	 * @param key
+	 *            asset key
+	 * @param info
+	 *            asset to read
+	 * @param lastModified
+	 *            last modified time of the cached copy it is read from
+	 * @return asset info
+	 */
+	public AssetInfo capture(AssetManager manager, AssetKey<?> key, AssetInfo info, long lastModified) {
+		if (!isEnabled())
+			return info;
+		if (info instanceof ExtendedAssetInfo && ((ExtendedAssetInfo) info).getSize() > MAX_ENTRY)
+			return info;
+		return new CapturingAssetInfo(manager, key, info, lastModified);
+	}
+
+	/**
+	 * Forget an entry.
+	 *
+	 * @param name
+	 *            asset name
+	 */
+	public synchronized void remove(String name) {
+		Entry e = entries.remove(name);
+		if (e != null)
+			used -= e.data.capacity();
+	}
+
+	/**
+	 * Forget all entries.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		used = 0;
+	}
+
+	synchronized void put(String name, long lastModified, boolean decrypted, byte[] data, int len) {
+		if (len > MAX_ENTRY || len > BUDGET)
+			return;
+		remove(name);
+		Iterator<Entry> it = entries.values().iterator();
+		while (used + len > BUDGET && it.hasNext()) {
+			used -= it.next().data.capacity();
+			it.remove();
+		}
+		ByteBuffer buf = ByteBuffer.allocateDirect(len);
+		buf.put(data, 0, len);
+		buf.flip();
+		entries.put(name, new Entry(buf.asReadOnlyBuffer(), lastModified, decrypted));
+		used += len;
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.fine(String.format("Holding %s (%d bytes) in memory, %d of %d bytes used", name, len, used, BUDGET));
+		}
+	}
+
+	static class MemoryAssetInfo extends ExtendedAssetInfo {
+		private final Entry entry;
+
+		MemoryAssetInfo(AssetManager manager, AssetKey<?> key, Entry entry) {
+			super(manager, key);
+			this.entry = entry;
+		}
+
+		@Override
+		public InputStream openStream() {
+			return new ByteBufferInputStream(entry.data.duplicate());
+		}
+
+		@Override
+		public ByteBuffer openBuffer() {
+			return entry.data.duplicate();
+		}
+
+		@Override
+		public long getSize() {
+			return entry.data.capacity();
+		}
+
+		@Override
+		public long getLastModified() {
+			return entry.lastModified;
+		}
+
+		@Override
+		public boolean isDecryptedStream() {
+			// Held as it was read, which is still encrypted if the source was
+			return entry.decrypted;
+		}
+	}
+
+	class CapturingAssetInfo extends LoaderAssetInfo {
+		private final AssetInfo delegate;
+		private final long lastModified;
+
+		CapturingAssetInfo(AssetManager manager, AssetKey<?> key, AssetInfo delegate, long lastModified) {
+			super(manager, key);
+			this.delegate = delegate;
+			this.lastModified = lastModified;
+		}
+
+		@Override
+		public boolean isDecryptedStream() {
+			return delegate instanceof LoaderAssetInfo ? ((LoaderAssetInfo) delegate).isDecryptedStream() : false;
+		}
+
+		@Override
+		public InputStream openStream() {
+			final InputStream in = delegate.openStream();
+			return new FilteredInputStream(in) {
+				private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+				@Override
+				public int read() throws IOException {
+					int r = super.read();
+					if (r == -1)
+						done();
+					else if (copy != null)
+						copy.write(r);
+					check();
+					return r;
+				}
+
+				@Override
+				public int read(byte[] b) throws IOException {
+					return read(b, 0, b.length);
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int r = super.read(b, off, len);
+					if (r == -1)
+						done();
+					else if (copy != null)
+						copy.write(b, off, r);
+					check();
+					return r;
+				}
+
+				@Override
+				public long skip(long n) throws IOException {
+					// Content would be missing
+					copy = null;
+					return super.skip(n);
+				}
+
+				@Override
+				public boolean markSupported() {
+					return false;
+				}
+
+				@Override
+				public void close() throws IOException {
+					try {
+						if (copy != null) {
+							// Loaders often stop before the end, the rest is small so read it now
+							byte[] buf = new byte[8192];
+							int r;
+							while (copy != null && (r = super.read(buf, 0, buf.length)) != -1) {
+								copy.write(buf, 0, r);
+								check();
+							}
+							done();
+						}
+					} catch (IOException ioe) {
+						copy = null;
+					} finally {
+						super.close();
+					}
+				}
+
+				private void check() {
+					if (copy != null && copy.size() > MAX_ENTRY)
+						copy = null;
+				}
+
+				private void done() {
+					if (copy != null) {
+						put(key.getName(), lastModified, isDecryptedStream(), copy.toByteArray(), copy.size());
+						copy = null;
+					}
+				}
+			};
+		}
+	}
+}
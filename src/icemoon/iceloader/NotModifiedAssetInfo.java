@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2013-2016 Emerald Icemoon All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  *
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package icemoon.iceloader;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import com.jme3.asset.AssetInfo;
+import com.jme3.asset.AssetKey;
+import com.jme3.asset.AssetManager;
+
+/**
+ * The cached copy of an asset, returned when the server said the asset was
+ * not modified. It is already in the cache, so it must not be cached again.
+ */
+public class NotModifiedAssetInfo extends ExtendedAssetInfo {
+
+	private final AssetInfo cached;
+
+	public NotModifiedAssetInfo(AssetManager manager, AssetKey<?> key, AssetInfo cached) {
+		super(manager, key);
+		this.cached = cached;
+	}
+
+	/**
+	 * Get the cached copy this wraps.
+	 *
+	 * @return cached asset info
+	 */
+	public AssetInfo getCached() {
+		return cached;
+	}
+
+	@Override
+	public InputStream openStream() {
+		return cached.openStream();
+	}
+
+	@Override
+	public ByteBuffer openBuffer() {
+		return cached instanceof ExtendedAssetInfo ? ((ExtendedAssetInfo) cached).openBuffer() : null;
+	}
+
+	@Override
+	public long getSize() {
+		return cached instanceof ExtendedAssetInfo ? ((ExtendedAssetInfo) cached).getSize() : -1;
+	}
+
+	@Override
+	public long getLastModified() {
+		return cached instanceof ExtendedAssetInfo ? ((ExtendedAssetInfo) cached).getLastModified() : -1;
+	}
+
+	@Override
+	public boolean isDecryptedStream() {
+		return cached instanceof LoaderAssetInfo ? ((LoaderAssetInfo) cached).isDecryptedStream() : false;
+	}
+}
@@ -31,13 +31,20 @@ package icemoon.iceloader;
 
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -47,6 +54,8 @@ import com.jme3.asset.AssetKey;
 import com.jme3.asset.AssetLocator;
 import com.jme3.asset.DesktopAssetManager;
 
+import icemoon.iceloader.locators.AbstractServerLocator;
+import icemoon.iceloader.locators.AssetCacheLocator;
 import icemoon.iceloader.locators.ServerLocator;
 
 /**
@@ -107,12 +116,18 @@ public class ServerAssetManager extends DesktopAssetManager {
 	}
 
 	private static final Logger LOG = Logger.getLogger(ServerAssetManager.class.getName());
-	private List<AssetIndex> indexes = new ArrayList<AssetIndex>();
+	private volatile List<AssetIndex> indexes = new ArrayList<AssetIndex>();
 	private Map<String, List<Class<? extends AssetLocator>>> locators;
-	private List<DownloadingListener> downloadingListeners = new ArrayList<DownloadingListener>();
+	private List<DownloadingListener> downloadingListeners = new CopyOnWriteArrayList<DownloadingListener>();
 	private Map<String, Set<String>> assetPatternsCache = new LinkedHashMap<String, Set<String>>();
 	private List<List<AssetKey<?>>> waitings = new LinkedList<List<AssetKey<?>>>();
 	private Map<AssetKey<?>, ReentrantLock> keyLocks = new HashMap<AssetKey<?>, ReentrantLock>();
+	private Map<String, InFlightAsset> inFlight = new HashMap<String, InFlightAsset>();
+	private long progressInterval = 100;
+	private long progressBytes = 65536;
+	private boolean backgroundEvents = true;
+	private ExecutorService eventDispatcher;
+	private final DownloadProgressTracker progressTracker = new DownloadProgressTracker(this);
 
 	public ServerAssetManager() {
 		super();
@@ -153,6 +168,71 @@ public class ServerAssetManager extends DesktopAssetManager {
 		;
 	}
 
+	/**
+	 * Get the locate currently in progress for an asset, or start a new one
+	 * owned by the calling thread if there is none. Use
+	 * {@link InFlightAsset#isOwner()} to determine which.
+	 *
+	 * @param key
+	 *            asset key
+	 * @return in-flight asset
+	 */
+	public InFlightAsset joinInFlight(AssetKey<?> key) {
+		InFlightAsset stale = null;
+		InFlightAsset f;
+		synchronized (inFlight) {
+			f = inFlight.get(key.getName());
+			if (f != null && f.isStale()) {
+				// Located but never opened, so start again
+				stale = f;
+				f = null;
+			}
+			if (f == null) {
+				f = new InFlightAsset(this, key);
+				inFlight.put(key.getName(), f);
+			} else if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine(String.format("Attaching to in-flight locate of %s", key));
+			}
+		}
+		if (stale != null) {
+			// Outside of the lock, as the flight locks itself then this
+			stale.abandon();
+		}
+		return f;
+	}
+
+	void endInFlight(InFlightAsset flight) {
+		synchronized (inFlight) {
+			if (inFlight.get(flight.getKey().getName()) == flight) {
+				inFlight.remove(flight.getKey().getName());
+			}
+		}
+	}
+
+	/**
+	 * Get whether any asset is being located by a server locator right now.
+	 *
+	 * @return downloading
+	 */
+	boolean isDownloading() {
+		List<InFlightAsset> stale = new ArrayList<InFlightAsset>();
+		boolean downloading = false;
+		synchronized (inFlight) {
+			for (Iterator<InFlightAsset> it = inFlight.values().iterator(); it.hasNext();) {
+				InFlightAsset f = it.next();
+				if (f.isStale()) {
+					stale.add(f);
+					it.remove();
+				} else {
+					downloading = true;
+				}
+			}
+		}
+		for (InFlightAsset f : stale)
+			f.abandon();
+		return downloading;
+	}
+
 	/**
 	 * Add a list of assists that we expect to load. This is purely for the
 	 * benefit of loading screens. An operation indicates up front the list of
@@ -163,11 +243,40 @@ public class ServerAssetManager extends DesktopAssetManager {
 	 *            list of assets we expect to load
 	 */
 	public void require(List<AssetKey<?>> assets) {
+		require(DownloadProgressTracker.DEFAULT_GROUP, assets);
+	}
+
+	/**
+	 * Add a named group of assets that we expect to load. Progress of each
+	 * group, as well as overall progress, is available from
+	 * {@link #getProgress()}.
+	 * 
+	 * @param group
+	 *            group name
+	 * @param assets
+	 *            list of assets we expect to load
+	 */
+	public void require(String group, List<AssetKey<?>> assets) {
 		waitings.add(assets);
+		progressTracker.require(group, assets);
 		for (AssetKey<?> r : assets)
 			fireAssetRequested(r);
 	}
 
+	/**
+	 * Get a snapshot of the overall progress of all required assets,
+	 * including throughput and estimated time remaining.
+	 *
+	 * @return progress
+	 */
+	public DownloadProgressTracker.Snapshot getProgress() {
+		return progressTracker.getSnapshot();
+	}
+
+	public DownloadProgressTracker getProgressTracker() {
+		return progressTracker;
+	}
+
 	/**
 	 * Add a listener to those notified when a remote asset download starts.
 	 *
@@ -190,6 +299,7 @@ public class ServerAssetManager extends DesktopAssetManager {
 	}
 
 	public void serverAssetLocationChanged() {
+		AbstractServerLocator.clearNotFound();
 		reregisterLocators();
 		reindex();
 	}
@@ -257,6 +367,8 @@ public class ServerAssetManager extends DesktopAssetManager {
 	 * all the locators have been configured.
 	 */
 	public void index() {
+		// Built aside, so a reindex does not leave the indexes empty meanwhile
+		List<AssetIndex> indexes = new ArrayList<AssetIndex>();
 		int indexers = 0;
 		if (locators != null) {
 			synchronized (locators) {
@@ -286,9 +398,94 @@ public class ServerAssetManager extends DesktopAssetManager {
 			}
 		}
 
+		this.indexes = indexes;
 		if (indexers == 0) {
 			LOG.warning("No asset indexing done, no locators registered.");
+		} else if (AssetCacheLocator.isInUse() && !indexes.isEmpty()) {
+			if (!"false".equalsIgnoreCase(System.getProperty("icescene.revalidateCacheOnIndex", "true"))) {
+				revalidateCache();
+			}
+			// Entries no longer indexed are the first to go when over quota
+			CacheQuota quota = CacheQuota.get(AssetCacheLocator.getVFSRoot());
+			quota.setIndexes(indexes);
+			quota.check();
+			CacheVerifier.get(AssetCacheLocator.getVFSRoot()).check(this);
+		}
+	}
+
+	/**
+	 * Compare the whole local cache against the indexes in the background,
+	 * so that entries found to be fresh may be used without any further
+	 * checks when they are loaded. This is done automatically by
+	 * {@link #index()} unless the system property
+	 * <strong>icescene.revalidateCacheOnIndex</strong> is <code>false</code>.
+	 */
+	public void revalidateCache() {
+		final List<AssetIndex> snapshot = new ArrayList<AssetIndex>(indexes);
+		Thread t = new Thread("CacheRevalidation") {
+			@Override
+			public void run() {
+				AssetCacheLocator.revalidate(snapshot);
+			}
+		};
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+	}
+
+	/**
+	 * Fill the local cache with everything in the indexes matching the
+	 * patterns that is missing or stale, fetching up to
+	 * <strong>icescene.primeThreads</strong> (default 8) assets at once. See
+	 * {@link CachePrimer}.
+	 *
+	 * @param patterns
+	 *            regular expressions or bundle names
+	 * @return result
+	 */
+	public CachePrimer.Result prime(String... patterns) {
+		return prime(Arrays.asList(patterns), CachePrimer.THREADS);
+	}
+
+	/**
+	 * Fill the local cache with everything in the indexes matching the
+	 * patterns that is missing or stale. See {@link CachePrimer}.
+	 *
+	 * @param patterns
+	 *            regular expressions or bundle names
+	 * @param threads
+	 *            number of assets to fetch at once
+	 * @return result
+	 */
+	public CachePrimer.Result prime(Collection<String> patterns, int threads) {
+		return new CachePrimer(this, threads).prime(patterns);
+	}
+
+	/**
+	 * Create a new instance of each registered server locator.
+	 *
+	 * @return server locators
+	 */
+	List<AssetLocator> createServerLocators() {
+		List<AssetLocator> l = new ArrayList<AssetLocator>();
+		if (locators != null) {
+			synchronized (locators) {
+				for (Map.Entry<String, List<Class<? extends AssetLocator>>> en : locators.entrySet()) {
+					for (Class<? extends AssetLocator> c : en.getValue()) {
+						if (AbstractServerLocator.class.isAssignableFrom(c)) {
+							try {
+								AssetLocator loc = c.newInstance();
+								loc.setRootPath(en.getKey());
+								l.add(loc);
+							} catch (Exception ex) {
+								throw new RuntimeException(ex);
+							}
+						}
+					}
+				}
+			}
 		}
+		return l;
 	}
 
 	/**
@@ -302,7 +499,7 @@ public class ServerAssetManager extends DesktopAssetManager {
 	 * Re-index assets.
 	 */
 	public void reindex() {
-		indexes.clear();
+		AssetCacheLocator.clearFreshness();
 		assetPatternsCache.clear();
 		index();
 	}
@@ -396,37 +593,157 @@ public class ServerAssetManager extends DesktopAssetManager {
 	@Override
 	public <T> T loadAsset(AssetKey<T> key) {
 		T t = super.loadAsset(key);
+		if (t != null)
+			fireAssetSupplied(key);
 		return t;
 	}
 
-	public void fireDownloadStarted(AssetKey<?> key, long length) {
-		for (int i = downloadingListeners.size() - 1; i >= 0; i--) {
-			downloadingListeners.get(i).downloadStarting(key, length);
-		}
+	/**
+	 * Get the minimum time between download progress events for any one
+	 * download.
+	 *
+	 * @return progress interval in milliseconds
+	 */
+	public long getProgressInterval() {
+		return progressInterval;
 	}
 
-	public void fireDownloadProgress(AssetKey<?> key, long progress) {
-		for (int i = downloadingListeners.size() - 1; i >= 0; i--) {
-			downloadingListeners.get(i).downloadProgress(key, progress);
-		}
+	/**
+	 * Set the minimum time between download progress events for any one
+	 * download. A progress event will be sent before this time has elapsed if
+	 * at least {@link #getProgressBytes()} have been read since the last one.
+	 *
+	 * @param progressInterval
+	 *            progress interval in milliseconds
+	 */
+	public void setProgressInterval(long progressInterval) {
+		this.progressInterval = progressInterval;
 	}
 
-	public void fireDownloadComplete(AssetKey<?> key) {
-		for (int i = downloadingListeners.size() - 1; i >= 0; i--) {
-			downloadingListeners.get(i).downloadComplete(key);
-		}
+	/**
+	 * Get the number of bytes that may be read before a download progress
+	 * event is sent regardless of {@link #getProgressInterval()}.
+	 *
+	 * @return progress bytes
+	 */
+	public long getProgressBytes() {
+		return progressBytes;
 	}
 
-	public void fireAssetRequested(AssetKey<?> key) {
-		for (int i = downloadingListeners.size() - 1; i >= 0; i--) {
-			downloadingListeners.get(i).assetRequested(key);
-		}
+	/**
+	 * Set the number of bytes that may be read before a download progress
+	 * event is sent regardless of {@link #getProgressInterval()}.
+	 *
+	 * @param progressBytes
+	 *            progress bytes
+	 */
+	public void setProgressBytes(long progressBytes) {
+		this.progressBytes = progressBytes;
 	}
 
-	public void fireAssetSupplied(AssetKey<?> key) {
-		for (int i = downloadingListeners.size() - 1; i >= 0; i--) {
-			downloadingListeners.get(i).assetSupplied(key);
+	/**
+	 * Get whether {@link DownloadingListener}s are notified on a separate
+	 * event thread (the default), so that slow listeners do not hold up
+	 * loading.
+	 *
+	 * @return background events
+	 */
+	public boolean isBackgroundEvents() {
+		return backgroundEvents;
+	}
+
+	/**
+	 * Set whether {@link DownloadingListener}s are notified on a separate
+	 * event thread, or on the thread doing the loading.
+	 *
+	 * @param backgroundEvents
+	 *            background events
+	 */
+	public void setBackgroundEvents(boolean backgroundEvents) {
+		this.backgroundEvents = backgroundEvents;
+	}
+
+	public void fireDownloadStarted(final AssetKey<?> key, final long length) {
+		progressTracker.downloadStarting(key, length);
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = downloadingListeners.size() - 1; i >= 0; i--) {
+					downloadingListeners.get(i).downloadStarting(key, length);
+				}
+			}
+		});
+	}
+
+	public void fireDownloadProgress(final AssetKey<?> key, final long progress) {
+		progressTracker.downloadProgress(key, progress);
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = downloadingListeners.size() - 1; i >= 0; i--) {
+					downloadingListeners.get(i).downloadProgress(key, progress);
+				}
+			}
+		});
+	}
+
+	public void fireDownloadComplete(final AssetKey<?> key) {
+		progressTracker.downloadComplete(key);
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = downloadingListeners.size() - 1; i >= 0; i--) {
+					downloadingListeners.get(i).downloadComplete(key);
+				}
+			}
+		});
+	}
+
+	public void fireAssetRequested(final AssetKey<?> key) {
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = downloadingListeners.size() - 1; i >= 0; i--) {
+					downloadingListeners.get(i).assetRequested(key);
+				}
+			}
+		});
+	}
+
+	public void fireAssetSupplied(final AssetKey<?> key) {
+		progressTracker.assetSupplied(key);
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = downloadingListeners.size() - 1; i >= 0; i--) {
+					downloadingListeners.get(i).assetSupplied(key);
+				}
+			}
+		});
+	}
+
+	private void dispatch(Runnable r) {
+		if (downloadingListeners.isEmpty()) {
+			return;
+		}
+		if (!backgroundEvents) {
+			r.run();
+			return;
+		}
+		synchronized (this) {
+			if (eventDispatcher == null) {
+				// A single thread, so events are delivered in order
+				eventDispatcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "DownloadEvents");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			}
 		}
+		eventDispatcher.execute(r);
 	}
 
 }
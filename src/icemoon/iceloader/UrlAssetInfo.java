@@ -29,6 +29,7 @@
  */
 package icemoon.iceloader;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
@@ -37,11 +38,13 @@ import java.net.URLConnection;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.jme3.asset.AssetInfo;
 import com.jme3.asset.AssetKey;
 import com.jme3.asset.AssetLoadException;
 import com.jme3.asset.AssetManager;
 
 import icemoon.iceloader.locators.AbstractServerLocator;
+import icemoon.iceloader.locators.ConcurrencyLimiter;
 import icemoon.iceloader.locators.ServerLocator;
 
 public class UrlAssetInfo extends ExtendedAssetInfo {
@@ -54,11 +57,22 @@ public class UrlAssetInfo extends ExtendedAssetInfo {
 	private final long ifModifiedSince;
 	private final AbstractServerLocator locator;
 	private final long unprocessedSize;
+	private final String ifNoneMatch;
+	private String etag;
+	private ConcurrencyLimiter limiter;
+	private String path;
 
 	public UrlAssetInfo(AssetManager assetManager, AssetKey<?> key, URL url, InputStream in, long ifModifiedSince,
 			AbstractServerLocator locator, long lastModified, long size, long unprocessedSize) throws IOException {
+		this(assetManager, key, url, in, ifModifiedSince, null, locator, lastModified, size, unprocessedSize);
+	}
+
+	public UrlAssetInfo(AssetManager assetManager, AssetKey<?> key, URL url, InputStream in, long ifModifiedSince,
+			String ifNoneMatch, AbstractServerLocator locator, long lastModified, long size, long unprocessedSize)
+			throws IOException {
 		super(assetManager, key);
 		this.locator = locator;
+		this.ifNoneMatch = ifNoneMatch;
 		this.url = url;
 		this.unprocessedSize = unprocessedSize;
 		this.ifModifiedSince = ifModifiedSince;
@@ -71,6 +85,35 @@ public class UrlAssetInfo extends ExtendedAssetInfo {
 		this.lastModified = lastModified;
 	}
 
+	/**
+	 * Get the entity tag the server supplied with the content.
+	 *
+	 * @return entity tag or <code>null</code> if none
+	 */
+	public String getETag() {
+		return etag;
+	}
+
+	public void setETag(String etag) {
+		this.etag = etag;
+	}
+
+	/**
+	 * Set where the content came from, when it was found using mirror
+	 * selection. A permit is taken from the limiter for as long as each
+	 * stream is open, and streams after the first go through mirror selection
+	 * again.
+	 *
+	 * @param limiter
+	 *            limiter of the mirror the initial connection is to
+	 * @param path
+	 *            encoded path relative to the server root
+	 */
+	public void setSource(ConcurrencyLimiter limiter, String path) {
+		this.limiter = limiter;
+		this.path = path;
+	}
+
 	public boolean hasInitialConnection() {
 		return in != null;
 	}
@@ -81,31 +124,42 @@ public class UrlAssetInfo extends ExtendedAssetInfo {
 			// Reuse the already existing stream (only once)
 			InputStream in2 = in;
 			in = null;
-			return in2;
+			return limiter == null ? in2
+					: permitted(in2, limiter.acquire(AbstractServerLocator.getConnectTimeout()));
+		} else if (path != null) {
+			// Connect again through the mirrors, so it is limited the same way
+			try {
+				AssetInfo info = locator.create(manager, key, path, ifModifiedSince, ifNoneMatch, unprocessedSize);
+				if (info == null)
+					throw new AssetLoadException(String.format("%s no longer exists", url));
+				if (info instanceof UrlAssetInfo) {
+					UrlAssetInfo urlInfo = (UrlAssetInfo) info;
+					lastModified = urlInfo.lastModified;
+					etag = urlInfo.etag;
+					size = urlInfo.size;
+				}
+				return info.openStream();
+			} catch (IOException ex) {
+				throw new AssetLoadException("Failed to read URL " + url, ex);
+			}
 		} else {
 			// Create a new stream for subsequent invocations.
 			try {
-				URLConnection conn = url.openConnection();
-				if (ifModifiedSince != -1 && locator.isUseCaching()) {
-					conn.setIfModifiedSince(ifModifiedSince);
-				}
-				conn.setConnectTimeout(AbstractServerLocator.getConnectTimeout());
-				conn.setReadTimeout(AbstractServerLocator.getReadTimeout());
-
+				URLConnection conn = connect(true);
 				if (conn instanceof HttpURLConnection) {
 					int resp = ((HttpURLConnection) conn).getResponseCode();
 					if (resp == 304) {
-						if (locator.isUseCaching()) {
-							// Content has not changed, return original
-							// cached content
-							if (LOG.isLoggable(Level.FINE)) {
-								LOG
-										.fine(String.format("Content %s has not changed, using cached version"));
-							}
-							return locator.getCachedAssetInfo(manager, key).openStream();
-						} else {
+						if (!locator.isUseCaching()) {
 							throw new AssetLoadException("Caching is not enabled, unexpected 304 response.");
 						}
+						// Content has not changed, return original cached content
+						AssetInfo cachedInfo = locator.getCachedAssetInfo(manager, key);
+						if (cachedInfo != null) {
+							return cachedInfo.openStream();
+						}
+						// The cached copy has gone since, so download it in full
+						((HttpURLConnection) conn).disconnect();
+						conn = connect(false);
 					}
 				}
 
@@ -113,16 +167,71 @@ public class UrlAssetInfo extends ExtendedAssetInfo {
 				if (lastModified == 0) {
 					lastModified = -1;
 				}
+				etag = conn.getHeaderField("ETag");
 				size = conn.getContentLength();
-				conn.setUseCaches(false);
-				return locator.getStream((ServerAssetManager) getManager(), getKey(), conn,
-						unprocessedSize > -1 ? unprocessedSize : size);
+				boolean encoded = AbstractServerLocator.isEncoded(conn);
+				InputStream stream = locator.getStream((ServerAssetManager) getManager(), getKey(), conn,
+						encoded || unprocessedSize == -1 ? size : unprocessedSize);
+				if (encoded)
+					size = -1;
+				return stream;
 			} catch (IOException ex) {
 				throw new AssetLoadException("Failed to read URL " + url, ex);
 			}
 		}
 	}
 
+	private URLConnection connect(boolean conditional) throws IOException {
+		URLConnection conn = url.openConnection();
+		conn.setUseCaches(false);
+		if (conditional && ifModifiedSince != -1 && locator.isUseCaching()) {
+			conn.setIfModifiedSince(ifModifiedSince);
+		}
+		if (conditional && ifNoneMatch != null && locator.isUseCaching()) {
+			conn.setRequestProperty("If-None-Match", ifNoneMatch);
+		}
+		conn.setConnectTimeout(AbstractServerLocator.getConnectTimeout());
+		conn.setReadTimeout(AbstractServerLocator.getReadTimeout());
+		AbstractServerLocator.acceptEncoding(conn);
+		return conn;
+	}
+
+	private static InputStream permitted(InputStream in, final Closeable permit) {
+		// Given back when the stream is fully read or is closed, whichever is
+		// first
+		return new FilteredInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				int r = super.read();
+				if (r == -1)
+					permit.close();
+				return r;
+			}
+
+			@Override
+			public int read(byte[] b) throws IOException {
+				return read(b, 0, b.length);
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int r = super.read(b, off, len);
+				if (r == -1)
+					permit.close();
+				return r;
+			}
+
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					permit.close();
+				}
+			}
+		};
+	}
+
 	@Override
 	public long getSize() {
 		return size;
@@ -35,17 +35,47 @@ import com.jme3.asset.AssetKey;
 import com.jme3.asset.AssetLoadException;
 import com.jme3.asset.AssetManager;
 import com.jme3.asset.AssetNotFoundException;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import org.apache.commons.vfs2.Capability;
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.RandomAccessContent;
+import org.apache.commons.vfs2.util.RandomAccessMode;
+
 import icemoon.iceloader.AssetIndex;
+import icemoon.iceloader.CacheCipher;
+import icemoon.iceloader.CacheFreshness;
+import icemoon.iceloader.CacheLock;
+import icemoon.iceloader.CacheMetadata;
+import icemoon.iceloader.CacheQuota;
+import icemoon.iceloader.DeltaPatch;
 import icemoon.iceloader.ExtendedAssetInfo;
+import icemoon.iceloader.LoaderUtils;
+import icemoon.iceloader.MemoryCache;
+import icemoon.iceloader.NotModifiedAssetInfo;
 import icemoon.iceloader.ServerAssetManager;
 import icemoon.iceloader.UrlAssetInfo;
 
@@ -55,26 +85,277 @@ public abstract class AbstractServerLocator implements IndexedAssetLocator {
 
 	static final Logger LOG = Logger.getLogger(AbstractServerLocator.class.getName());
 	protected URL root;
-	protected static URL serverRoot;
+	protected ServerMirrors mirrors;
+	protected static ServerMirrors serverMirrors;
 
+	/**
+	 * Get the primary server root (i.e. the first mirror).
+	 *
+	 * @return primary server root
+	 */
 	public static URL getServerRoot() {
-		return serverRoot;
+		return serverMirrors == null ? null : serverMirrors.getPrimary().getRoot();
 	}
 
+	/**
+	 * Set a single server root, replacing any mirrors.
+	 *
+	 * @param serverRoot
+	 *            server root
+	 */
 	public static void setServerRoot(URL serverRoot) {
-		if (!Objects.equals(AbstractServerLocator.serverRoot, serverRoot))
-			AbstractServerLocator.serverRoot = serverRoot;
+		if (!Objects.equals(getServerRoot(), serverRoot == null ? null : LoaderUtils.ensureEndsWithSlash(serverRoot)))
+			AbstractServerLocator.serverMirrors = serverRoot == null ? null
+					: new ServerMirrors(Arrays.asList(serverRoot));
+	}
+
+	public static ServerMirrors getServerMirrors() {
+		return serverMirrors;
+	}
+
+	/**
+	 * Set the list of equivalent server roots to use.
+	 *
+	 * @param serverMirrors
+	 *            mirrors
+	 */
+	public static void setServerMirrors(ServerMirrors serverMirrors) {
+		AbstractServerLocator.serverMirrors = serverMirrors;
+	}
+
+	/**
+	 * How long (in milliseconds) an asset the server said does not exist is
+	 * remembered for, during which it will not be requested again.
+	 */
+	public static long NOT_FOUND_TTL = Long.getLong("icescene.notFoundTTL", 300000);
+
+	/**
+	 * Maximum number of not found assets remembered.
+	 */
+	public static int NOT_FOUND_MAX = Integer.getInteger("icescene.notFoundMax", 10000);
+
+	private final static Map<String, Long> notFound = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return size() > NOT_FOUND_MAX;
+		}
+	};
+
+	/**
+	 * Forget all assets that are known not to exist on the server. Should be
+	 * called when the server location changes.
+	 */
+	public static void clearNotFound() {
+		synchronized (notFound) {
+			notFound.clear();
+		}
+	}
+
+	/**
+	 * Either <code>auto</code> (the default), to go offline when the server
+	 * cannot be reached while getting the index, <code>true</code> to always
+	 * be offline (trusting the cache), or <code>false</code> to never go
+	 * offline.
+	 */
+	public static String OFFLINE = System.getProperty("icescene.offline", "auto");
+
+	/**
+	 * How often (in milliseconds) to check if the server is reachable again
+	 * while offline.
+	 */
+	public static long RECONNECT_INTERVAL = Long.getLong("icescene.reconnectInterval", 15000);
+
+	/**
+	 * Name of the snapshot of the last index downloaded, kept in the cache
+	 * root so it may be used when offline.
+	 */
+	public final static String INDEX_SNAPSHOT_NAME = ".iceloader-index";
+
+	private static volatile boolean offline = "true".equalsIgnoreCase(OFFLINE);
+	private static Thread reconnector;
+
+	/**
+	 * Get whether the server is not being used. While offline, the index is
+	 * the last one downloaded, cached assets are used without checking for
+	 * updates, and assets that are not cached are not found.
+	 *
+	 * @return offline
+	 */
+	public static boolean isOffline() {
+		return offline;
+	}
+
+	/**
+	 * Set whether the server is not being used. When going back online, any
+	 * knowledge of assets that do not exist, or that were used from the cache
+	 * without checking for updates, is forgotten. The indexes should then be
+	 * rebuilt (see {@link ServerAssetManager#reindex()}).
+	 *
+	 * @param offline
+	 *            offline
+	 */
+	public static void setOffline(boolean offline) {
+		if (AbstractServerLocator.offline == offline)
+			return;
+		AbstractServerLocator.offline = offline;
+		if (!offline) {
+			clearNotFound();
+			AssetCacheLocator.getRegistry().clear();
+		}
+	}
+
+	private static synchronized void reconnect(final AssetManager assetManager) {
+		if (reconnector != null)
+			return;
+		reconnector = new Thread("ServerReconnect") {
+			@Override
+			public void run() {
+				try {
+					while (offline) {
+						Thread.sleep(RECONNECT_INTERVAL);
+						if (offline && isReachable()) {
+							LOG.info("Server can be reached again, going back online.");
+							setOffline(false);
+							if (assetManager instanceof ServerAssetManager)
+								((ServerAssetManager) assetManager).reindex();
+						}
+					}
+				} catch (InterruptedException ie) {
+				} finally {
+					synchronized (AbstractServerLocator.class) {
+						reconnector = null;
+					}
+				}
+			}
+		};
+		reconnector.setDaemon(true);
+		reconnector.setPriority(Thread.MIN_PRIORITY);
+		reconnector.start();
+	}
+
+	private static boolean isReachable() {
+		ServerMirrors m = serverMirrors;
+		if (m == null)
+			return false;
+		for (ServerMirrors.Mirror mirror : m.getMirrors()) {
+			long started = System.currentTimeMillis();
+			try {
+				URLConnection conn = new URL(mirror.getRoot(), AssetIndex.DEFAULT_RESOURCE_NAME).openConnection();
+				conn.setConnectTimeout(connectTimeout);
+				conn.setReadTimeout(readTimeout);
+				conn.setUseCaches(false);
+				if (conn instanceof HttpURLConnection) {
+					HttpURLConnection httpConn = (HttpURLConnection) conn;
+					httpConn.setRequestMethod("HEAD");
+					httpConn.getResponseCode();
+					httpConn.disconnect();
+				} else {
+					conn.getInputStream().close();
+				}
+				mirror.succeeded(System.currentTimeMillis() - started);
+				return true;
+			} catch (IOException ioe) {
+				if (LOG.isLoggable(Level.FINE)) {
+					LOG.fine(String.format("Mirror %s still cannot be reached. %s", mirror, ioe.getMessage()));
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Whether to ask the server to compress assets for transfer (using
+	 * <code>Content-Encoding</code>).
+	 */
+	public static boolean COMPRESSED_TRANSFER = !"false"
+			.equalsIgnoreCase(System.getProperty("icescene.compressedTransfer", "true"));
+
+	/**
+	 * Ask for a compressed transfer if this is enabled.
+	 *
+	 * @param conn
+	 *            connection
+	 */
+	public static void acceptEncoding(URLConnection conn) {
+		if (COMPRESSED_TRANSFER)
+			conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+	}
+
+	/**
+	 * Get if the server compressed the response.
+	 *
+	 * @param conn
+	 *            connection
+	 * @return compressed
+	 */
+	public static boolean isEncoded(URLConnection conn) {
+		String enc = conn.getContentEncoding();
+		return "gzip".equalsIgnoreCase(enc) || "x-gzip".equalsIgnoreCase(enc) || "deflate".equalsIgnoreCase(enc);
+	}
+
+	/**
+	 * Wrap a response stream so that it is decompressed if the server
+	 * compressed it.
+	 *
+	 * @param conn
+	 *            connection
+	 * @param in
+	 *            response stream
+	 * @return stream of asset content
+	 * @throws IOException
+	 */
+	public static InputStream decode(URLConnection conn, InputStream in) throws IOException {
+		String enc = conn.getContentEncoding();
+		if ("gzip".equalsIgnoreCase(enc) || "x-gzip".equalsIgnoreCase(enc)) {
+			return new GZIPInputStream(in, 8192);
+		} else if ("deflate".equalsIgnoreCase(enc)) {
+			// Servers differ as to whether they send zlib wrapped or raw deflate
+			BufferedInputStream bin = new BufferedInputStream(in, 8192);
+			bin.mark(2);
+			int cmf = bin.read();
+			int flg = bin.read();
+			bin.reset();
+			boolean zlib = cmf != -1 && flg != -1 && (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+			return new InflaterInputStream(bin, new Inflater(!zlib), 8192);
+		}
+		return in;
 	}
 
+	/**
+	 * Whether to look for a delta patch on the server before downloading a
+	 * newer version of a cached asset. The patch for an asset is expected at
+	 * <code>&lt;name&gt;.delta-&lt;seconds&gt;</code>, where <i>seconds</i> is
+	 * the last modified time (in seconds) of the version it patches from.
+	 */
+	public static boolean DELTA_PATCHES = "true".equalsIgnoreCase(System.getProperty("icescene.deltaPatches", "false"));
+
 	private AssetIndex assetIndex;
 	private boolean fireEvents = true;
 	boolean useCaching = true;
 	private boolean loadedAssetIndex;
+
 	static int connectTimeout = 30000;
 	static int readTimeout = 30000;
 
 	public AbstractServerLocator() {
-		root = serverRoot;
+		mirrors = serverMirrors;
+		root = mirrors == null ? null : mirrors.getPrimary().getRoot();
+	}
+
+	/**
+	 * Get the mirrors this locator uses. If there were none when the locator
+	 * was created, any that have been configured since are used.
+	 *
+	 * @return mirrors or <code>null</code> if there are none
+	 */
+	protected ServerMirrors getMirrors() {
+		if (mirrors == null && serverMirrors != null) {
+			mirrors = serverMirrors;
+			root = mirrors.getPrimary().getRoot();
+		}
+		return mirrors;
 	}
 
 	public static int getConnectTimeout() {
@@ -118,8 +399,26 @@ public abstract class AbstractServerLocator implements IndexedAssetLocator {
 		// }
 	}
 
+	/**
+	 * Get whether an asset info returned by one of the <code>create()</code>
+	 * methods is the cached copy, because the server said it was not
+	 * modified. Such an asset info must not be cached again.
+	 *
+	 * @param info
+	 *            asset info returned by <code>create()</code>
+	 * @return not modified
+	 */
+	protected static boolean isNotModified(AssetInfo info) {
+		return info instanceof NotModifiedAssetInfo;
+	}
+
 	public AssetInfo create(AssetManager assetManager, AssetKey<?> key, URL url, long ifModifiedSince,
 			long unprocessedSize) throws IOException {
+		return create(assetManager, key, url, ifModifiedSince, null, unprocessedSize);
+	}
+
+	public AssetInfo create(AssetManager assetManager, AssetKey<?> key, URL url, long ifModifiedSince,
+			String ifNoneMatch, long unprocessedSize) throws IOException {
 		// Check if URL can be reached. This will throw
 		// IOException which calling code will handle.
 		if (LOG.isLoggable(Level.FINE)) {
@@ -129,15 +428,28 @@ public abstract class AbstractServerLocator implements IndexedAssetLocator {
 		conn.setConnectTimeout(connectTimeout);
 		conn.setReadTimeout(readTimeout);
 		conn.setUseCaches(false);
+		acceptEncoding(conn);
 		if (ifModifiedSince != -1 && useCaching) {
 			conn.setIfModifiedSince(ifModifiedSince);
 		}
+		if (ifNoneMatch != null && useCaching) {
+			conn.setRequestProperty("If-None-Match", ifNoneMatch);
+		}
 		if (conn instanceof HttpURLConnection) {
 			final HttpURLConnection httpConn = (HttpURLConnection) conn;
 			int resp = httpConn.getResponseCode();
 			if (resp == 304) {
 				if (useCaching) {
-					return getCachedAssetInfo(assetManager, key);
+					AssetInfo cachedInfo = getCachedAssetInfo(assetManager, key);
+					if (cachedInfo != null) {
+						return new NotModifiedAssetInfo(assetManager, key, cachedInfo);
+					}
+					if (ifModifiedSince == -1 && ifNoneMatch == null) {
+						throw new AssetLoadException("Unexpected 304 response without a conditional request.");
+					}
+					// The cached copy has gone since, so download it in full
+					httpConn.disconnect();
+					return create(assetManager, key, url, -1, null, unprocessedSize);
 				} else {
 					throw new AssetLoadException("Caching is not enabled, unexpected 304 response.");
 				}
@@ -145,50 +457,300 @@ public abstract class AbstractServerLocator implements IndexedAssetLocator {
 		}
 		long lastModified = conn.getLastModified();
 		long size = conn.getContentLengthLong();
+		boolean encoded = isEncoded(conn);
 
+		// When compressed, progress is of the bytes actually transferred
 		InputStream in = assetManager instanceof ServerAssetManager
-				? getStream((ServerAssetManager) assetManager, key, conn, unprocessedSize > -1 ? unprocessedSize : size)
-				: conn.getInputStream();
+				? getStream((ServerAssetManager) assetManager, key, conn,
+						encoded || unprocessedSize == -1 ? size : unprocessedSize)
+				: decode(conn, conn.getInputStream());
+		if (encoded) {
+			// Actual size is not known until decompressed
+			size = -1;
+		}
 
 		// For some reason url cannot be reached?
 		if (in == null) {
 			// 404 etc
 			return null;
 		} else {
-			return new UrlAssetInfo(assetManager, key, url, in, ifModifiedSince, this,
+			UrlAssetInfo info = new UrlAssetInfo(assetManager, key, url, in, ifModifiedSince, ifNoneMatch, this,
 					lastModified == 0 ? -1 : lastModified, size, unprocessedSize);
+			info.setETag(conn.getHeaderField("ETag"));
+			return info;
 		}
 	}
 
+	/**
+	 * Create the asset info for a path relative to the server root, trying
+	 * each available mirror in turn (best first) until one responds.
+	 *
+	 * @return asset info or <code>null</code> if it does not exist
+	 * @throws IOException
+	 *             if no mirror could be reached
+	 */
+	public AssetInfo create(AssetManager assetManager, AssetKey<?> key, String path, long ifModifiedSince,
+			String ifNoneMatch, long unprocessedSize) throws IOException {
+		ServerMirrors mirrors = getMirrors();
+		if (mirrors == null) {
+			// No mirrors to choose from, just the one root (if any)
+			if (root == null)
+				throw new IOException(String.format("No server location is configured to get %s", key));
+			return create(assetManager, key, new URL(root, path), ifModifiedSince, ifNoneMatch, unprocessedSize);
+		}
+		List<ServerMirrors.Mirror> available = mirrors.select();
+		if (available.isEmpty()) {
+			throw new IOException(String.format("No server mirrors are currently available to get %s", key));
+		}
+		IOException lastError = null;
+		for (ServerMirrors.Mirror mirror : available) {
+			ConcurrencyLimiter limiter = mirror.getLimiter();
+			ConcurrencyLimiter.Permit permit = limiter.acquire(connectTimeout);
+			long started = System.currentTimeMillis();
+			try {
+				AssetInfo info = create(assetManager, key, new URL(mirror.getRoot(), path), ifModifiedSince,
+						ifNoneMatch, unprocessedSize);
+				long latency = System.currentTimeMillis() - started;
+				mirror.succeeded(latency);
+				limiter.succeeded(latency);
+				permit.close();
+				if (info instanceof UrlAssetInfo) {
+					// The download takes a permit of its own when the stream
+					// is opened, which may never happen
+					((UrlAssetInfo) info).setSource(limiter, path);
+				}
+				return info;
+			} catch (FileNotFoundException fnfe) {
+				// Mirror is fine, asset just doesn't exist
+				permit.close();
+				long latency = System.currentTimeMillis() - started;
+				mirror.succeeded(latency);
+				limiter.succeeded(latency);
+				throw fnfe;
+			} catch (IOException ioe) {
+				permit.close();
+				limiter.failed();
+				mirror.failed();
+				lastError = ioe;
+				if (LOG.isLoggable(Level.FINE)) {
+					LOG.log(Level.FINE, String.format("Failed to get %s from mirror %s", key, mirror), ioe);
+				}
+			}
+		}
+		throw lastError;
+	}
+
+	/**
+	 * Get if an asset is known not to exist on the server, i.e. a request for
+	 * it failed with a 'not found' within the last {@link #NOT_FOUND_TTL}
+	 * milliseconds.
+	 *
+	 * @param name
+	 *            asset name
+	 * @return known not to exist
+	 */
+	protected boolean isKnownNotFound(String name) {
+		synchronized (notFound) {
+			Long expires = notFound.get(name);
+			if (expires == null)
+				return false;
+			if (expires < System.currentTimeMillis()) {
+				notFound.remove(name);
+				return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Remember that an asset does not exist on the server.
+	 *
+	 * @param name
+	 *            asset name
+	 */
+	protected void notFound(String name) {
+		if (NOT_FOUND_TTL > 0) {
+			synchronized (notFound) {
+				notFound.put(name, System.currentTimeMillis() + NOT_FOUND_TTL);
+			}
+		}
+	}
+
+	/**
+	 * Try to update a cached asset by downloading a delta patch from the
+	 * version that is cached, rather than the whole asset. The patched result
+	 * is verified before replacing the cached copy.
+	 *
+	 * @param assetManager
+	 *            asset manager
+	 * @param key
+	 *            asset key
+	 * @param path
+	 *            encoded path of asset relative to server root
+	 * @param fromLastModified
+	 *            last modified time of cached copy
+	 * @param toLastModified
+	 *            last modified time of new version
+	 * @return patched
+	 */
+	protected boolean patch(AssetManager assetManager, AssetKey<?> key, String path, long fromLastModified,
+			long toLastModified) {
+		if (!DELTA_PATCHES || fromLastModified <= 0 || !AssetCacheLocator.isInUse())
+			return false;
+		String patchPath = path + ".delta-" + (fromLastModified / 1000);
+		if (isKnownNotFound(patchPath))
+			return false;
+		FileObject cacheRoot = AssetCacheLocator.getVFSRoot();
+		if (!cacheRoot.getFileSystem().hasCapability(Capability.RANDOM_ACCESS_READ))
+			return false;
+		// Patch under the same lock as any other write of the entry
+		CacheLock lock = CacheLock.get(cacheRoot);
+		if (lock != null && !lock.lock(key.getName(), readTimeout))
+			return false;
+		FileObject temp = null;
+		try {
+			CacheMetadata.Entry cached = CacheMetadata.get(cacheRoot).getEntry(key.getName());
+			if (cached != null && CacheCipher.CIPHER.equals(cached.getEncryption()))
+				// Patches are of the delivered content, not the re-encrypted copy
+				return false;
+			if (cached != null && cached.getLastModified() > 0 && cached.getLastModified() != fromLastModified)
+				// Replaced by another process meanwhile
+				return false;
+			AssetInfo patchInfo = create(assetManager, new AssetKey<Object>(key.getName() + ".delta"), patchPath, -1,
+					null, -1);
+			if (patchInfo == null) {
+				notFound(patchPath);
+				return false;
+			}
+			FileObject cacheFile = cacheRoot.resolveFile(key.getName());
+			temp = cacheRoot.resolveFile(key.getName() + "." + LoaderUtils.getProcessId() + ".patching");
+			long now = System.currentTimeMillis();
+			long size;
+			MessageDigest md;
+			try {
+				md = MessageDigest.getInstance(CacheMetadata.DIGEST_ALGORITHM);
+			} catch (NoSuchAlgorithmException nsae) {
+				throw new IllegalStateException("Cannot create digests of cached content.", nsae);
+			}
+			InputStream in = patchInfo.openStream();
+			try {
+				RandomAccessContent source = cacheFile.getContent().getRandomAccessContent(RandomAccessMode.READ);
+				try {
+					OutputStream out = new DigestOutputStream(temp.getContent().getOutputStream(), md);
+					try {
+						size = DeltaPatch.apply(in, source, out);
+					} finally {
+						out.close();
+					}
+				} finally {
+					source.close();
+				}
+			} finally {
+				in.close();
+			}
+			LoaderUtils.replace(temp, cacheFile);
+			temp = null;
+			MemoryCache.get().remove(key.getName());
+			if (toLastModified > 0)
+				cacheFile.getContent().setLastModifiedTime(toLastModified);
+			final String digest = LoaderUtils.toHex(md.digest());
+			final long patchedLastModified = cacheFile.getContent().getLastModifiedTime();
+			final long patchedSize = size;
+			CacheMetadata.get(cacheRoot).update(key.getName(), true, new CacheMetadata.Update() {
+				@Override
+				public boolean apply(CacheMetadata.Entry entry) {
+					// The old validator no longer applies
+					entry.setETag(null);
+					entry.setDigest(digest);
+					entry.setVerified(0);
+					entry.setValidated(System.currentTimeMillis());
+					entry.setLastModified(patchedLastModified);
+					entry.setSize(patchedSize);
+					return true;
+				}
+			});
+			CacheQuota.get(cacheRoot).written(key.getName(), size);
+			LOG.info(String.format("Patched %s to %d bytes in %dms", key.getName(), size,
+					System.currentTimeMillis() - now));
+			return true;
+		} catch (FileNotFoundException fnfe) {
+			notFound(patchPath);
+		} catch (IOException ioe) {
+			LOG.log(Level.WARNING, String.format("Failed to patch %s, will download it", key.getName()), ioe);
+		} finally {
+			if (temp != null) {
+				try {
+					temp.delete();
+				} catch (FileSystemException fse) {
+				}
+			}
+			if (lock != null)
+				lock.unlock(key.getName());
+		}
+		return false;
+	}
+
+	/**
+	 * Get the cached copy of an asset the server said was not modified.
+	 *
+	 * @param manager
+	 *            asset manager
+	 * @param key
+	 *            asset key
+	 * @return cached asset info, or <code>null</code> if it is no longer
+	 *         cached
+	 */
 	public AssetInfo getCachedAssetInfo(AssetManager manager, AssetKey<?> key) {
+		AssetInfo cachedInfo = AssetCacheLocator.getCachedAssetInfo(manager, key);
+		if (cachedInfo == null) {
+			LOG.warning(String.format("Content %s has not changed, but is no longer cached", key.getName()));
+			return null;
+		}
 		// Content has not changed, return original cached content
 		if (LOG.isLoggable(Level.FINE)) {
 			LOG.fine(String.format("Content %s has not changed, using cached version", key.getName()));
 		}
-		return AssetCacheLocator.getCachedAssetInfo(key);
+		CacheFreshness.get(AssetCacheLocator.getVFSRoot()).validated(key.getName());
+		return cachedInfo;
 	}
 
 	public AssetIndex getIndex(AssetManager assetManager) {
 		if (!loadedAssetIndex) {
 			try {
-				AssetInfo info = locate(assetManager, new AssetKey<AssetIndex>(AssetIndex.DEFAULT_RESOURCE_NAME));
-				if (info != null) {
-					assetIndex = new AssetIndex(assetManager);
-					try {
-						InputStream is = info.openStream();
+				if (!offline) {
+					AssetInfo info = locate(assetManager, new AssetKey<AssetIndex>(AssetIndex.DEFAULT_RESOURCE_NAME));
+					if (info != null) {
+						byte[] data;
 						try {
-							assetIndex.load(is);
-						} finally {
-							is.close();
+							InputStream is = info.openStream();
+							try {
+								ByteArrayOutputStream bout = new ByteArrayOutputStream();
+								LoaderUtils.copy(is, bout);
+								data = bout.toByteArray();
+							} finally {
+								is.close();
+							}
+							assetIndex = new AssetIndex(assetManager);
+							assetIndex.load(new ByteArrayInputStream(data));
+						} catch (IOException ex) {
+							throw new AssetLoadException("Failed to load index.", ex);
 						}
-					} catch (IOException ex) {
-						throw new AssetLoadException("Failed to load index.", ex);
+						long lastModified = info instanceof ExtendedAssetInfo
+								? ((ExtendedAssetInfo) info).getLastModified() : 0;
+						assetIndex.configure(lastModified,
+								getClass().getSimpleName().toLowerCase() + "://" + info.getKey().getName());
+						storeIndexSnapshot(data, lastModified);
+					} else if ("auto".equalsIgnoreCase(OFFLINE) && getMirrors() != null
+							&& getMirrors().select().isEmpty()) {
+						// Every mirror failed to respond
+						LOG.warning("The server cannot be reached, going offline.");
+						setOffline(true);
+						reconnect(assetManager);
 					}
-					assetIndex.configure(
-							info instanceof ExtendedAssetInfo ? ((ExtendedAssetInfo) info).getLastModified() : 0,
-							getClass().getSimpleName().toLowerCase() + "://" + info.getKey().getName());
 				}
-
+				if (assetIndex == null && offline) {
+					assetIndex = loadIndexSnapshot(assetManager);
+				}
 			} catch (AssetNotFoundException anfe) {
 			} finally {
 				loadedAssetIndex = true;
@@ -197,12 +759,57 @@ public abstract class AbstractServerLocator implements IndexedAssetLocator {
 		return assetIndex;
 	}
 
+	private void storeIndexSnapshot(byte[] data, long lastModified) {
+		try {
+			FileObject cacheRoot = AssetCacheLocator.getVFSRoot();
+			FileObject snapshot = cacheRoot.resolveFile(INDEX_SNAPSHOT_NAME);
+			FileObject temp = cacheRoot.resolveFile(INDEX_SNAPSHOT_NAME + ".tmp");
+			OutputStream out = temp.getContent().getOutputStream();
+			try {
+				out.write(data);
+			} finally {
+				out.close();
+			}
+			if (lastModified > 0)
+				temp.getContent().setLastModifiedTime(lastModified);
+			LoaderUtils.replace(temp, snapshot);
+		} catch (IOException ioe) {
+			LOG.log(Level.WARNING, "Failed to store snapshot of index.", ioe);
+		}
+	}
+
+	private AssetIndex loadIndexSnapshot(AssetManager assetManager) {
+		try {
+			FileObject snapshot = AssetCacheLocator.getVFSRoot().resolveFile(INDEX_SNAPSHOT_NAME);
+			if (!snapshot.exists()) {
+				LOG.warning("Offline, and there is no snapshot of the index to use.");
+				return null;
+			}
+			AssetIndex index = new AssetIndex(assetManager);
+			InputStream is = snapshot.getContent().getInputStream();
+			try {
+				index.load(is);
+			} finally {
+				is.close();
+			}
+			index.configure(snapshot.getContent().getLastModifiedTime(),
+					getClass().getSimpleName().toLowerCase() + "://" + INDEX_SNAPSHOT_NAME);
+			LOG.info(String.format("Offline, using snapshot of index with %d entries", index.getBackingObject().size()));
+			return index;
+		} catch (IOException ioe) {
+			LOG.log(Level.WARNING, "Failed to load snapshot of index.", ioe);
+			return null;
+		}
+	}
+
 	public InputStream getStream(final ServerAssetManager assetManager, final AssetKey<?> key, URLConnection conn,
 			final long fileLength) throws IOException {
 		if (fireEvents) {
 			InputStream in = conn.getInputStream();
-			return new FilterInputStream(in) {
+			return decode(conn, new FilterInputStream(in) {
 				private long total;
+				private long lastTotal;
+				private long lastTime;
 
 				@Override
 				public int read() throws IOException {
@@ -210,25 +817,40 @@ public abstract class AbstractServerLocator implements IndexedAssetLocator {
 					int r = super.read();
 					if (r != -1) {
 						total++;
-						assetManager.fireDownloadProgress(key, total);
+						progress();
 					}
 					return r;
 				}
 				
 				void checkStart() {
-					if(total == 0) 
+					if(total == 0 && lastTime == 0) {
+						lastTime = System.currentTimeMillis();
 						assetManager.fireDownloadStarted(key, fileLength);
+					}
+				}
+
+				void progress() {
+					// Coalesce progress, only fire every so many bytes or so
+					// often
+					if (total - lastTotal >= assetManager.getProgressBytes()) {
+						fireProgress();
+					} else {
+						long now = System.currentTimeMillis();
+						if (now - lastTime >= assetManager.getProgressInterval())
+							fireProgress();
+					}
+				}
+
+				void fireProgress() {
+					lastTotal = total;
+					lastTime = System.currentTimeMillis();
+					assetManager.fireDownloadProgress(key, total);
 				}
 
 				@Override
 				public int read(byte[] b) throws IOException {
-					checkStart();
-					int r = super.read(b);
-					if (r != -1) {
-						total += r;
-						assetManager.fireDownloadProgress(key, total);
-					}
-					return r;
+					// FilterInputStream.read(byte[]) calls read(byte[], int, int)
+					return read(b, 0, b.length);
 				}
 
 				@Override
@@ -237,7 +859,7 @@ public abstract class AbstractServerLocator implements IndexedAssetLocator {
 					int r = super.read(b, off, len);
 					if (r != -1) {
 						total += r;
-						assetManager.fireDownloadProgress(key, total);
+						progress();
 					}
 					return r;
 				}
@@ -245,12 +867,15 @@ public abstract class AbstractServerLocator implements IndexedAssetLocator {
 				@Override
 				public void close() throws IOException {
 					super.close();
-					if(total > 0)
+					if(total > 0) {
+						if(total != lastTotal)
+							fireProgress();
 						assetManager.fireDownloadComplete(key);
+					}
 				}
-			};
+			});
 		} else {
-			return conn.getInputStream();
+			return decode(conn, conn.getInputStream());
 		}
 	}
 }
@@ -30,6 +30,9 @@
 package icemoon.iceloader.locators;
 
 import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Level;
@@ -46,9 +49,18 @@ import com.jme3.asset.AssetManager;
 
 import icemoon.iceloader.AbstractVFSLocator;
 import icemoon.iceloader.AssetIndex;
+import icemoon.iceloader.CacheFreshness;
+import icemoon.iceloader.CacheLock;
+import icemoon.iceloader.CacheMetadata;
+import icemoon.iceloader.CacheQuota;
+import icemoon.iceloader.CacheWriter;
+import icemoon.iceloader.ExtendedAssetInfo;
+import icemoon.iceloader.FreshnessRegistry;
 import icemoon.iceloader.IndexItem;
 import icemoon.iceloader.JarAssetInfo;
+import icemoon.iceloader.MemoryCache;
 import icemoon.iceloader.ServerAssetManager;
+import icemoon.iceloader.pack.PackFileProvider;
 
 /**
  * This will find in your local cache, that is is populated by other locators
@@ -60,10 +72,19 @@ public class AssetCacheLocator extends AbstractVFSLocator {
 	private static final Logger LOG = Logger.getLogger(AssetCacheLocator.class.getName());
 	private static FileObject cacheRoot;
 	private static boolean inUse;
-	private static Map<String, AssetInfo> cachedAssetInfo = new HashMap<String, AssetInfo>();
+	private static volatile AssetManager lastManager;
+
+	/**
+	 * Maximum number of cache entries whose freshness is remembered.
+	 */
+	public static int FRESHNESS_ENTRIES = Integer.getInteger("icescene.freshnessEntries", 20000);
+
+	private static FreshnessRegistry registry = new FreshnessRegistry(FRESHNESS_ENTRIES);
 
 	static {
 		try {
+			// Allow a single file pack cache, e.g. pack:file:///path/to/cache.pack!/
+			PackFileProvider.register();
 			cacheRoot = VFS.getManager().resolveFile(System.getProperty("iceloader.assetCache",
 					System.getProperty("java.io.tmpdir") + File.separator + "icescene-cache"));
 		} catch (FileSystemException ex) {
@@ -80,6 +101,7 @@ public class AssetCacheLocator extends AbstractVFSLocator {
 	@Override
 	public AssetInfo locate(AssetManager manager, AssetKey key) {
 
+		lastManager = manager;
 		String name = key.getName();
 		String suffix = null;
 		IndexItem indexItem = null;
@@ -108,14 +130,47 @@ public class AssetCacheLocator extends AbstractVFSLocator {
 			}
 		}
 
-		AssetInfo info = super.locate(manager, key);
+		// Assets already located once may be held in memory
+		MemoryCache memory = MemoryCache.get();
+		if (suffix == null && memory.isEnabled()) {
+			FreshnessRegistry.Entry entry = registry.get(name);
+			if (entry != null && entry.isLocated()) {
+				AssetInfo info = memory.get(manager, key, entry.getLastModified());
+				if (info != null) {
+					if (LOG.isLoggable(Level.FINE)) {
+						LOG.fine(String.format("Returning %s from memory", key));
+					}
+					CacheQuota.get(cacheRoot).accessed(name);
+					return info;
+				}
+			}
+		}
+
+		// Don't read an entry that is still being written in the background,
+		// or that another process is in the middle of writing
+		CacheWriter.awaitWritten(key.getName(), AbstractServerLocator.getReadTimeout());
+		CacheLock lock = CacheLock.get(cacheRoot);
+		if (lock != null) {
+			lock.awaitUnlocked(key.getName(), AbstractServerLocator.getReadTimeout());
+		}
+
+		AssetInfo info = withMetadata(manager, key, super.locate(manager, key));
+		long lastModified = -1;
 		if (info == null) {
 			if (LOG.isLoggable(Level.FINE)) {
 				LOG.fine(String.format("%s not located in cache.", key));
 			}
-			cachedAssetInfo.remove(key.getName());
+			registry.remove(key.getName());
+			CacheMetadata metadata = CacheMetadata.get(cacheRoot);
+			if (metadata.getEntry(key.getName()) != null) {
+				// Removed by something else
+				metadata.removeEntry(key.getName());
+			}
 		} else {
-			if (cachedAssetInfo.containsKey(key.getName())) {
+			ExtendedAssetInfo extInfo = (ExtendedAssetInfo) info;
+			CacheQuota.get(cacheRoot).accessed(key.getName());
+			lastModified = extInfo.getLastModified();
+			if (registry.isLocated(key.getName(), lastModified)) {
 				// Already done this once, no need to check for freshness again,
 				// just return the cached resource
 				if (LOG.isLoggable(Level.FINE)) {
@@ -124,8 +179,29 @@ public class AssetCacheLocator extends AbstractVFSLocator {
 							key.getName()));
 				}
 			} else {
-				cachedAssetInfo.put(key.getName(), info);
-				if ("true".equalsIgnoreCase(System.getProperty("icescene.checkCacheForUpdates", "true"))) {
+				boolean fresh = registry.isFresh(key.getName(), lastModified);
+				// Same tolerance as used by ServerLocator
+				boolean stale = !fresh && (registry.isStale(key.getName(), lastModified)
+						|| (indexItem != null && indexItem.getLastModified() - lastModified >= 10000));
+				registry.located(key.getName(), lastModified, extInfo.getSize());
+				if (fresh) {
+					// Already found to be up to date by revalidate()
+					if (LOG.isLoggable(Level.FINE)) {
+						LOG.fine(String.format("%s located in cache and known to be fresh, returning cached copy.",
+								key));
+					}
+				} else if (AbstractServerLocator.isOffline()
+						|| !"true".equalsIgnoreCase(System.getProperty("icescene.checkCacheForUpdates", "true"))) {
+					if (LOG.isLoggable(Level.FINE)) {
+						LOG.fine(String.format("%s located in cache, returning cached copy.", key));
+					}
+				} else if (!stale && CacheFreshness.get(cacheRoot).isValid(key.getName())) {
+					// Validated recently enough, perhaps by an earlier runtime
+					if (LOG.isLoggable(Level.FINE)) {
+						LOG.fine(String.format("%s located in cache and validated within its TTL, returning cached copy.",
+								key));
+					}
+				} else {
 					// Don't return the asset info just yet. Let other methods
 					// try first. For example,
 					// a locator that loads from HTTP might check if the cached
@@ -141,23 +217,213 @@ public class AssetCacheLocator extends AbstractVFSLocator {
 								key));
 					}
 					info = null;
-				} else {
-					if (LOG.isLoggable(Level.FINE)) {
-						LOG.fine(String.format("%s located in cache, returning cached copy.", key));
-					}
 				}
 			}
 		}
 		
-		if(info != null && suffix != null) {
-			info = new JarAssetInfo(manager, key, suffix, info);
+		if (info != null) {
+			if (suffix != null) {
+				info = new JarAssetInfo(manager, key, suffix, info);
+			}
+			info = decode(manager, key, info);
+			if (suffix == null) {
+				info = memory.capture(manager, key, info, lastModified);
+			}
 		}
-		
+
+		return info;
+	}
+
+	/**
+	 * Turn the cached content of an asset into what is returned to JME. By
+	 * default it is returned as is, subclasses may for example decrypt it.
+	 *
+	 * @param manager
+	 *            asset manager
+	 * @param key
+	 *            asset key
+	 * @param info
+	 *            cached asset
+	 * @return asset info
+	 */
+	protected AssetInfo decode(AssetManager manager, AssetKey<?> key, AssetInfo info) {
 		return info;
 	}
 
+	/**
+	 * Compare every entry in the cache against the supplied indexes in a
+	 * single sweep, marking each as fresh or stale. Fresh entries are then
+	 * returned straight away when located, without any further freshness
+	 * check. Entries that are not in any index are left to be checked when
+	 * they are first located. The last modified times of the cached entries
+	 * come from the {@link CacheMetadata}, so the file system is not used.
+	 *
+	 * @param indexes
+	 *            indexes
+	 * @return number of entries found to be fresh
+	 */
+	public static int revalidate(Collection<AssetIndex> indexes) {
+		long started = System.currentTimeMillis();
+		Map<String, IndexItem> items = new HashMap<String, IndexItem>();
+		for (AssetIndex idx : indexes) {
+			for (IndexItem item : idx.getBackingObject()) {
+				if (!items.containsKey(item.getName()))
+					items.put(item.getName(), item);
+			}
+		}
+		int fresh = 0;
+		int stale = 0;
+		CacheMetadata metadata = CacheMetadata.get(cacheRoot);
+		metadata.scan();
+		for (CacheMetadata.Entry entry : metadata.getAllEntries()) {
+			IndexItem item = items.get(entry.getName());
+			if (item != null && entry.getLastModified() > 0) {
+				long lastModified = entry.getLastModified();
+				// Same tolerance as used by ServerLocator
+				if (item.getLastModified() - lastModified < 10000) {
+					registry.validated(entry.getName(), lastModified, entry.getSize(), true);
+					fresh++;
+				} else {
+					registry.validated(entry.getName(), lastModified, entry.getSize(), false);
+					stale++;
+				}
+			}
+		}
+		LOG.info(String.format("Revalidated cache in %dms, %d fresh, %d stale", System.currentTimeMillis() - started,
+				fresh, stale));
+		return fresh;
+	}
+
+	/**
+	 * Forget any freshness determined by {@link #revalidate(Collection)}.
+	 */
+	public static void clearFreshness() {
+		registry.newEpoch();
+	}
+
+	/**
+	 * Get the registry that remembers the freshness of cache entries.
+	 *
+	 * @return registry
+	 */
+	public static FreshnessRegistry getRegistry() {
+		return registry;
+	}
+
+	/**
+	 * Re-read a cache entry, for example after another process has written
+	 * it, and remember it as the cached copy.
+	 *
+	 * @param manager
+	 *            asset manager
+	 * @param key
+	 *            asset key
+	 * @return asset info or <code>null</code> if not in the cache
+	 */
+	public static AssetInfo refresh(AssetManager manager, AssetKey<?> key) {
+		try {
+			FileObject file = cacheRoot.resolveFile(key.getName());
+			file.refresh();
+			if (!file.exists()) {
+				registry.remove(key.getName());
+				return null;
+			}
+			ExtendedAssetInfo info = withMetadata(manager, key, createAssetInfo(manager, key, file));
+			registry.located(key.getName(), info.getLastModified(), info.getSize());
+			return info;
+		} catch (FileSystemException fse) {
+			throw new AssetLoadException("Failed to open file: " + key.getName(), fse);
+		}
+	}
+
+	/**
+	 * Get the cached copy of an asset, if it has been located in the cache
+	 * during this runtime.
+	 *
+	 * @param manager
+	 *            asset manager
+	 * @param key
+	 *            asset key
+	 * @return asset info or <code>null</code> if not located in the cache
+	 */
+	public static AssetInfo getCachedAssetInfo(AssetManager manager, AssetKey<?> key) {
+		FreshnessRegistry.Entry entry = registry.get(key.getName());
+		if (entry == null || !entry.isLocated())
+			return null;
+		try {
+			FileObject file = cacheRoot.resolveFile(key.getName());
+			if (!file.exists()) {
+				registry.remove(key.getName());
+				return null;
+			}
+			return withMetadata(manager, key, createAssetInfo(manager, key, file));
+		} catch (FileSystemException fse) {
+			throw new AssetLoadException("Failed to open file: " + key.getName(), fse);
+		}
+	}
+
+	/**
+	 * Get the cached copy of an asset, if it has been located in the cache
+	 * during this runtime, using the asset manager it was last located with.
+	 *
+	 * @param key
+	 *            asset key
+	 * @return asset info or <code>null</code> if not located in the cache
+	 * @deprecated use {@link #getCachedAssetInfo(AssetManager, AssetKey)}
+	 */
+	@Deprecated
 	public static AssetInfo getCachedAssetInfo(AssetKey<?> key) {
-		return cachedAssetInfo.get(key.getName());
+		AssetManager manager = lastManager;
+		return manager == null ? null : getCachedAssetInfo(manager, key);
+	}
+
+	private static ExtendedAssetInfo withMetadata(AssetManager manager, AssetKey<?> key, AssetInfo info) {
+		if (info == null)
+			return null;
+		CacheMetadata.Entry entry = CacheMetadata.get(cacheRoot).getEntry(key.getName());
+		return entry == null ? (ExtendedAssetInfo) info
+				: new CacheEntryAssetInfo(manager, key, (ExtendedAssetInfo) info, entry);
+	}
+
+	/**
+	 * A cache entry whose size and last modified time come from the
+	 * {@link CacheMetadata} (when known) rather than the file system.
+	 */
+	private static class CacheEntryAssetInfo extends ExtendedAssetInfo {
+		private final ExtendedAssetInfo file;
+		private final CacheMetadata.Entry entry;
+
+		private CacheEntryAssetInfo(AssetManager manager, AssetKey<?> key, ExtendedAssetInfo file,
+				CacheMetadata.Entry entry) {
+			super(manager, key);
+			this.file = file;
+			this.entry = entry;
+		}
+
+		@Override
+		public InputStream openStream() {
+			return file.openStream();
+		}
+
+		@Override
+		public ByteBuffer openBuffer() {
+			return file.openBuffer();
+		}
+
+		@Override
+		public long getSize() {
+			return entry.getSize() >= 0 ? entry.getSize() : file.getSize();
+		}
+
+		@Override
+		public long getLastModified() {
+			return entry.getLastModified() > 0 ? entry.getLastModified() : file.getLastModified();
+		}
+
+		@Override
+		public boolean isDecryptedStream() {
+			return file.isDecryptedStream();
+		}
 	}
 
 	public static boolean isInUse() {
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2013-2016 Emerald Icemoon All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  *
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package icemoon.iceloader.locators;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Limits how many downloads run at once against a single server root, and
+ * adapts the limit to what the server can take. The limit grows slowly
+ * (additively) while responses arrive promptly and the limit is actually
+ * being used. When response latency rises well above the best seen (a sign
+ * that requests are queueing at the server) it is reduced a little, and when
+ * a request fails it is halved.
+ * <p>
+ * A thread that already holds a permit is never made to wait for another, as
+ * loaders may load further assets while still reading the first (for example
+ * a scene loading its meshes), and would otherwise wait on themselves.
+ */
+public class ConcurrencyLimiter {
+
+	static final Logger LOG = Logger.getLogger(ConcurrencyLimiter.class.getName());
+
+	public static int INITIAL_LIMIT = Integer.getInteger("icescene.initialConcurrency", 4);
+	public static int MIN_LIMIT = 1;
+	public static int MAX_LIMIT = Integer.getInteger("icescene.maxConcurrency", 64);
+
+	/**
+	 * Permission to run a single download. Close it when the download is
+	 * complete, it is safe to close more than once.
+	 */
+	public class Permit implements Closeable {
+		private final Thread holder = Thread.currentThread();
+		private boolean released;
+
+		@Override
+		public void close() {
+			synchronized (ConcurrencyLimiter.this) {
+				if (!released) {
+					released = true;
+					inFlight--;
+					Integer h = holders.get(holder);
+					if (h != null && h > 1)
+						holders.put(holder, h - 1);
+					else
+						holders.remove(holder);
+					ConcurrencyLimiter.this.notifyAll();
+				}
+			}
+		}
+	}
+
+	private final String name;
+	private final Map<Thread, Integer> holders = new HashMap<Thread, Integer>();
+	private double limit = INITIAL_LIMIT;
+	private double minLatency = -1;
+	private int inFlight;
+
+	public ConcurrencyLimiter(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Get the current limit.
+	 *
+	 * @return limit
+	 */
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	/**
+	 * Get the number of downloads currently running.
+	 *
+	 * @return in flight
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Wait for permission to start a download. A thread that already holds a
+	 * permit gets another straight away. If no permit becomes available
+	 * within the timeout, one is issued anyway so that a download that was
+	 * never closed cannot stall loading forever.
+	 *
+	 * @param timeout
+	 *            maximum time to wait in milliseconds
+	 * @return permit
+	 */
+	public synchronized Permit acquire(long timeout) {
+		long until = System.currentTimeMillis() + timeout;
+		Thread thread = Thread.currentThread();
+		while (inFlight >= (int) limit && !holders.containsKey(thread)) {
+			long left = until - System.currentTimeMillis();
+			if (left <= 0) {
+				LOG.warning(String.format("Timed out waiting for one of %d downloads from %s to finish, starting anyway",
+						inFlight, name));
+				break;
+			}
+			try {
+				wait(left);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		inFlight++;
+		Integer h = holders.get(thread);
+		holders.put(thread, h == null ? 1 : h + 1);
+		return new Permit();
+	}
+
+	/**
+	 * Record a request that got a response.
+	 *
+	 * @param latency
+	 *            time taken to get the response in milliseconds
+	 */
+	public synchronized void succeeded(long latency) {
+		if (minLatency < 0 || latency < minLatency) {
+			minLatency = latency;
+		} else {
+			// Let the baseline drift up slowly in case the network changed
+			minLatency = (minLatency * 0.99) + (latency * 0.01);
+		}
+		double was = limit;
+		if (latency > (minLatency * 2) + 50) {
+			limit = Math.max(MIN_LIMIT, limit * 0.9);
+		} else if (inFlight >= (int) limit - 1) {
+			limit = Math.min(MAX_LIMIT, limit + (1 / limit));
+		}
+		changed(was);
+	}
+
+	/**
+	 * Record a request that failed.
+	 */
+	public synchronized void failed() {
+		double was = limit;
+		limit = Math.max(MIN_LIMIT, limit / 2);
+		changed(was);
+	}
+
+	private void changed(double was) {
+		if ((int) was != (int) limit) {
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine(String.format("Concurrency limit for %s is now %d", name, (int) limit));
+			}
+			notifyAll();
+		}
+	}
+}
@@ -58,9 +58,8 @@ public class EncryptedAssetCacheLocator extends AssetCacheLocator {
 	}
 
 	@Override
-	public AssetInfo locate(AssetManager manager, @SuppressWarnings("rawtypes") AssetKey key) {
-		final AssetInfo info = super.locate(manager, key);
-		if (info != null && (!(info instanceof LoaderAssetInfo) || !((LoaderAssetInfo)info).isDecryptedStream())) {
+	protected AssetInfo decode(AssetManager manager, AssetKey<?> key, AssetInfo info) {
+		if (!(info instanceof LoaderAssetInfo) || !((LoaderAssetInfo)info).isDecryptedStream()) {
 			return new DecryptedAssetInfo(manager, key, info, secret);
 		}
 		return info;
@@ -31,7 +31,7 @@ package icemoon.iceloader.locators;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.net.URL;
+import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.text.DateFormat;
 import java.util.Date;
@@ -44,11 +44,16 @@ import com.jme3.asset.AssetLoadException;
 import com.jme3.asset.AssetManager;
 
 import icemoon.iceloader.AssetIndex;
+import icemoon.iceloader.CacheFreshness;
+import icemoon.iceloader.CacheLock;
+import icemoon.iceloader.CacheMetadata;
 import icemoon.iceloader.CachingAssetInfo;
+import icemoon.iceloader.ContentStore;
+import icemoon.iceloader.CoalescingAssetInfo;
 import icemoon.iceloader.ExtendedAssetInfo;
+import icemoon.iceloader.InFlightAsset;
 import icemoon.iceloader.IndexItem;
 import icemoon.iceloader.JarAssetInfo;
-import icemoon.iceloader.LoaderUtils;
 import icemoon.iceloader.LockingAssetInfo;
 import icemoon.iceloader.ServerAssetManager;
 
@@ -66,7 +71,9 @@ public class ServerLocator extends AbstractServerLocator {
 
 	static {
 		try {
-			serverRoot = new URL(System.getProperty("icescene.serverLocation", "http://localhost:8080/Iceserver/"));
+			// May be a list of mirrors separated by commas
+			serverMirrors = ServerMirrors
+					.parse(System.getProperty("icescene.serverLocation", "http://localhost:8080/Iceserver/"));
 		} catch (Exception ex) {
 			throw new AssetLoadException("Root path is invalid", ex);
 		}
@@ -74,8 +81,41 @@ public class ServerLocator extends AbstractServerLocator {
 
 	@SuppressWarnings("rawtypes")
 	public AssetInfo locate(AssetManager manager, AssetKey key) {
+		if (!(manager instanceof ServerAssetManager) || key.getName().equals(AssetIndex.DEFAULT_RESOURCE_NAME)) {
+			return doLocate(manager, key);
+		}
+
+		// Only one thread does the actual work for any one key, any others
+		// that want the same asset at the same time attach to its result
+		InFlightAsset flight = ((ServerAssetManager) manager).joinInFlight(key);
+		if (flight.isOwner() && flight.isLocated()) {
+			// Owner is asking again before it has finished reading
+			return doLocate(manager, key);
+		} else if (!flight.isOwner()) {
+			AssetInfo ownerInfo = flight.awaitLocated();
+			return ownerInfo == null ? null : new CoalescingAssetInfo(manager, key, flight, ownerInfo, false);
+		}
+		AssetInfo info = null;
+		try {
+			info = doLocate(manager, key);
+		} finally {
+			flight.located(info);
+		}
+		return info == null ? null : new CoalescingAssetInfo(manager, key, flight, info, true);
+	}
+
+	@SuppressWarnings("rawtypes")
+	protected AssetInfo doLocate(AssetManager manager, AssetKey key) {
 		String name = key.getName();
+		if (isOffline()) {
+			// Anything cached has already been returned by the cache locator
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine(String.format("Offline, not looking for %s on the server", name));
+			}
+			return null;
+		}
 		long ifModifiedSince = -1;
+		String ifNoneMatch = null;
 		AssetInfo cachedInfo = null;
 		String suffix = null;
 
@@ -111,7 +151,7 @@ public class ServerLocator extends AbstractServerLocator {
 			// the
 			// last modified time before actually using it
 			if (AssetCacheLocator.isInUse()) {
-				cachedInfo = AssetCacheLocator.getCachedAssetInfo(key);
+				cachedInfo = AssetCacheLocator.getCachedAssetInfo(manager, key);
 				if (cachedInfo != null && cachedInfo instanceof ExtendedAssetInfo) {
 
 					if (LOG.isLoggable(Level.FINE)) {
@@ -120,6 +160,10 @@ public class ServerLocator extends AbstractServerLocator {
 										.format(new Date(((ExtendedAssetInfo) cachedInfo).getLastModified()))));
 					}
 					ifModifiedSince = ((ExtendedAssetInfo) cachedInfo).getLastModified();
+					CacheMetadata.Entry meta = CacheMetadata.get(AssetCacheLocator.getVFSRoot()).getEntry(key.getName());
+					if (meta != null) {
+						ifNoneMatch = meta.getETag();
+					}
 
 					// If we have an index item for this, we can test last
 					// modified now
@@ -130,6 +174,7 @@ public class ServerLocator extends AbstractServerLocator {
 							if (LOG.isLoggable(Level.FINE)) {
 								LOG.fine("Index item says this is not modified, just use cached version");
 							}
+							CacheFreshness.get(AssetCacheLocator.getVFSRoot()).validated(key.getName());
 
 							if (cachedInfo != null && !(cachedInfo instanceof JarAssetInfo) && suffix != null) {
 								cachedInfo = new JarAssetInfo(manager, key, suffix, cachedInfo);
@@ -148,6 +193,13 @@ public class ServerLocator extends AbstractServerLocator {
 										DateFormat.getDateTimeInstance().format(new Date(ifModifiedSince)),
 										diff / 1000));
 							}
+							if (patch(manager, key, encode(name), ifModifiedSince, indexItem.getLastModified())) {
+								cachedInfo = AssetCacheLocator.getCachedAssetInfo(manager, key);
+								if (cachedInfo != null && !(cachedInfo instanceof JarAssetInfo) && suffix != null) {
+									cachedInfo = new JarAssetInfo(manager, key, suffix, cachedInfo);
+								}
+								return new LockingAssetInfo(manager, key, cachedInfo);
+							}
 						}
 					}
 
@@ -164,23 +216,52 @@ public class ServerLocator extends AbstractServerLocator {
 			}
 		}
 
-		try {
-			// Encode each part of the path
-			String[] parts = name.split("/");
-			StringBuilder encName = new StringBuilder();
-			for (String part : parts) {
-				if (encName.length() > 0) {
-					encName.append("/");
+		// If another process is downloading this right now, wait for it and
+		// use its copy
+		CacheLock lock = AssetCacheLocator.isInUse() ? CacheLock.get(AssetCacheLocator.getVFSRoot()) : null;
+		if (lock != null && lock.awaitUnlocked(name, getReadTimeout())) {
+			AssetInfo sharedInfo = AssetCacheLocator.refresh(manager, key);
+			if (sharedInfo != null) {
+				if (LOG.isLoggable(Level.FINE)) {
+					LOG.fine(String.format("%s was cached by another process, using that", name));
 				}
-				encName.append(URLEncoder.encode(part, "UTF-8"));
+				if (!(sharedInfo instanceof JarAssetInfo) && suffix != null) {
+					sharedInfo = new JarAssetInfo(manager, key, suffix, sharedInfo);
+				}
+				return new LockingAssetInfo(manager, key, sharedInfo);
+			}
+		}
+
+		// The same content may already be cached under another name
+		if (indexItem != null && indexItem.getDigest() != null && AssetCacheLocator.isInUse()
+				&& ContentStore.get(AssetCacheLocator.getVFSRoot()).link(name, indexItem.getDigest(),
+						indexItem.getLastModified())) {
+			AssetInfo linkedInfo = AssetCacheLocator.refresh(manager, key);
+			if (linkedInfo != null) {
+				if (!(linkedInfo instanceof JarAssetInfo) && suffix != null) {
+					linkedInfo = new JarAssetInfo(manager, key, suffix, linkedInfo);
+				}
+				return new LockingAssetInfo(manager, key, linkedInfo);
+			}
+		}
+
+		if (isKnownNotFound(name)) {
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine(String.format("%s is known not to exist on the server", name));
+			}
+			return null;
+		}
+
+		try {
+			AssetInfo ai = create(manager, key, encode(name), ifModifiedSince, ifNoneMatch,
+					indexItem == null ? -1 : indexItem.getUnprocessedSize());
+			if (ai == null) {
+				notFound(name);
 			}
-			URL url = new URL(LoaderUtils.ensureEndsWithSlash(root), encName.toString());
-			
-			AssetInfo ai = create(manager, key, url, ifModifiedSince, indexItem== null ? -1 : indexItem.getUnprocessedSize());
 
 			// If the asset is found, it is not already a cached asset, as the
 			// cacher is in use, cache it
-			if (ai != null && !ai.equals(cachedInfo) && AssetCacheLocator.isInUse()) {
+			if (ai != null && !isNotModified(ai) && AssetCacheLocator.isInUse()) {
 				ai = new CachingAssetInfo(manager, key, ai, AssetCacheLocator.getVFSRoot());
 			}
 
@@ -192,6 +273,7 @@ public class ServerLocator extends AbstractServerLocator {
 
 			return ai;
 		} catch (FileNotFoundException e) {
+			notFound(name);
 			return null;
 		} catch (IOException ex) {
 			LOG.log(Level.WARNING, "Error while locating " + name, ex);
@@ -199,4 +281,26 @@ public class ServerLocator extends AbstractServerLocator {
 		}
 	}
 
+	/**
+	 * Encode each part of an asset path for use in a URL.
+	 *
+	 * @param name
+	 *            asset name
+	 * @return encoded path
+	 */
+	protected static String encode(String name) {
+		String[] parts = name.split("/");
+		StringBuilder encName = new StringBuilder();
+		try {
+			for (String part : parts) {
+				if (encName.length() > 0) {
+					encName.append("/");
+				}
+				encName.append(URLEncoder.encode(part, "UTF-8"));
+			}
+		} catch (UnsupportedEncodingException uee) {
+			throw new IllegalStateException(uee);
+		}
+		return encName.toString();
+	}
 }
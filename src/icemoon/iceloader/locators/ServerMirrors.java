@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2013-2016 Emerald Icemoon All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  *
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package icemoon.iceloader.locators;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import icemoon.iceloader.LoaderUtils;
+
+/**
+ * A list of equivalent server roots (mirrors). Latency and error rate are
+ * tracked for each mirror so requests can be sent to the fastest healthy one.
+ * A mirror that fails is taken out of use for a period that doubles with each
+ * consecutive failure (up to a maximum), after which it is tried again. While
+ * a mirror is out of use, requests fail over to the others immediately rather
+ * than waiting for a connect timeout.
+ */
+public class ServerMirrors {
+
+	static final Logger LOG = Logger.getLogger(ServerMirrors.class.getName());
+
+	/**
+	 * Initial time a failing mirror is out of use for.
+	 */
+	public static long BASE_BACKOFF = 1000;
+
+	/**
+	 * Maximum time a failing mirror is out of use for.
+	 */
+	public static long MAX_BACKOFF = 120000;
+
+	/**
+	 * A single mirror.
+	 */
+	public static class Mirror {
+		private final URL root;
+		private final ConcurrencyLimiter limiter;
+		private double latency = -1;
+		private double errorRate;
+		private int failures;
+		private long openUntil;
+
+		Mirror(URL root) {
+			this.root = LoaderUtils.ensureEndsWithSlash(root);
+			this.limiter = new ConcurrencyLimiter(this.root.toExternalForm());
+		}
+
+		public URL getRoot() {
+			return root;
+		}
+
+		/**
+		 * Get the limiter that decides how many downloads may run at once
+		 * against this mirror.
+		 *
+		 * @return limiter
+		 */
+		public ConcurrencyLimiter getLimiter() {
+			return limiter;
+		}
+
+		/**
+		 * Get the moving average of the time taken to get a response.
+		 *
+		 * @return latency in milliseconds or -1 if not yet known
+		 */
+		public synchronized double getLatency() {
+			return latency;
+		}
+
+		/**
+		 * Get the moving average of the proportion of requests that failed.
+		 *
+		 * @return error rate between 0 and 1
+		 */
+		public synchronized double getErrorRate() {
+			return errorRate;
+		}
+
+		/**
+		 * Get if this mirror may currently be used.
+		 *
+		 * @return available
+		 */
+		public synchronized boolean isAvailable() {
+			return System.currentTimeMillis() >= openUntil;
+		}
+
+		/**
+		 * Record a request that got a response (including 304 and 404).
+		 *
+		 * @param millis
+		 *            time taken to get response
+		 */
+		public synchronized void succeeded(long millis) {
+			latency = latency < 0 ? millis : (latency * 0.8) + (millis * 0.2);
+			errorRate = errorRate * 0.8;
+			failures = 0;
+			openUntil = 0;
+		}
+
+		/**
+		 * Record a request that failed to get a response.
+		 */
+		public synchronized void failed() {
+			errorRate = (errorRate * 0.8) + 0.2;
+			failures++;
+			long backoff = Math.min(MAX_BACKOFF, BASE_BACKOFF << Math.min(failures - 1, 20));
+			openUntil = System.currentTimeMillis() + backoff;
+			LOG.warning(String.format("Mirror %s has failed %d time(s), not using it for %dms", root, failures,
+					backoff));
+		}
+
+		synchronized double score() {
+			// Untried mirrors sort first so that they get measured
+			return (latency < 0 ? 0 : latency) / (1 - Math.min(errorRate, 0.9));
+		}
+
+		@Override
+		public String toString() {
+			return root.toExternalForm();
+		}
+	}
+
+	private final List<Mirror> mirrors = new ArrayList<Mirror>();
+
+	public ServerMirrors(List<URL> roots) {
+		if (roots.isEmpty())
+			throw new IllegalArgumentException("At least one server root must be supplied.");
+		for (URL u : roots)
+			mirrors.add(new Mirror(u));
+	}
+
+	/**
+	 * Parse a list of roots separated by commas or whitespace.
+	 *
+	 * @param roots
+	 *            roots
+	 * @return mirrors
+	 * @throws MalformedURLException
+	 *             if any root is not a valid URL
+	 */
+	public static ServerMirrors parse(String roots) throws MalformedURLException {
+		List<URL> l = new ArrayList<URL>();
+		StringTokenizer t = new StringTokenizer(roots, ", \t\r\n");
+		while (t.hasMoreTokens())
+			l.add(new URL(t.nextToken()));
+		return new ServerMirrors(l);
+	}
+
+	/**
+	 * Get the first configured mirror.
+	 *
+	 * @return primary mirror
+	 */
+	public Mirror getPrimary() {
+		return mirrors.get(0);
+	}
+
+	public List<Mirror> getMirrors() {
+		return Collections.unmodifiableList(mirrors);
+	}
+
+	/**
+	 * Get the mirrors that may currently be used, best first. If none are
+	 * available, the list will be empty.
+	 *
+	 * @return mirrors to try in order
+	 */
+	public List<Mirror> select() {
+		List<Mirror> l = new ArrayList<Mirror>();
+		for (Mirror m : mirrors) {
+			if (m.isAvailable())
+				l.add(m);
+		}
+		if (l.size() > 1) {
+			// Snapshot the scores, they may change while sorting
+			final Map<Mirror, Double> scores = new IdentityHashMap<Mirror, Double>();
+			for (Mirror m : l)
+				scores.put(m, m.score());
+			final List<Mirror> order = mirrors;
+			Collections.sort(l, new Comparator<Mirror>() {
+				@Override
+				public int compare(Mirror o1, Mirror o2) {
+					int i = Double.compare(scores.get(o1), scores.get(o2));
+					return i == 0 ? order.indexOf(o1) - order.indexOf(o2) : i;
+				}
+			});
+		}
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.fine(String.format("Mirror order is %s", l));
+		}
+		return l;
+	}
+}
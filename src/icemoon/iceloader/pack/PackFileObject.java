@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2013-2016 Emerald Icemoon All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  *
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package icemoon.iceloader.pack;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.FileType;
+import org.apache.commons.vfs2.provider.AbstractFileName;
+import org.apache.commons.vfs2.provider.AbstractFileObject;
+import org.apache.commons.vfs2.provider.UriParser;
+
+/**
+ * A file or folder in a {@link PackFileSystem}.
+ */
+public class PackFileObject extends AbstractFileObject {
+
+	private final PackStore store;
+
+	protected PackFileObject(AbstractFileName name, PackFileSystem fs, PackStore store) {
+		super(name, fs);
+		this.store = store;
+	}
+
+	@Override
+	protected FileType doGetType() throws Exception {
+		String path = getPackPath(this);
+		if (store.isFile(path))
+			return FileType.FILE;
+		if (store.isFolder(path))
+			return FileType.FOLDER;
+		return FileType.IMAGINARY;
+	}
+
+	@Override
+	protected String[] doListChildren() throws Exception {
+		return UriParser.encode(store.list(getPackPath(this)));
+	}
+
+	@Override
+	protected long doGetContentSize() throws Exception {
+		return store.getSize(getPackPath(this));
+	}
+
+	@Override
+	protected InputStream doGetInputStream() throws Exception {
+		return store.openInput(getPackPath(this));
+	}
+
+	@Override
+	protected OutputStream doGetOutputStream(boolean bAppend) throws Exception {
+		return store.openOutput(getPackPath(this), bAppend);
+	}
+
+	@Override
+	protected void doDelete() throws Exception {
+		store.delete(getPackPath(this));
+	}
+
+	@Override
+	protected void doRename(FileObject newfile) throws Exception {
+		store.move(getPackPath(this), getPackPath(newfile));
+	}
+
+	@Override
+	protected void doCreateFolder() throws Exception {
+		store.createFolder(getPackPath(this));
+	}
+
+	@Override
+	protected long doGetLastModifiedTime() throws Exception {
+		return store.getLastModified(getPackPath(this));
+	}
+
+	@Override
+	protected boolean doSetLastModifiedTime(long modtime) throws Exception {
+		store.touch(getPackPath(this), modtime);
+		return true;
+	}
+
+	private static String getPackPath(FileObject file) throws FileSystemException {
+		String path = file.getName().getPathDecoded();
+		while (path.startsWith("/"))
+			path = path.substring(1);
+		return path;
+	}
+}
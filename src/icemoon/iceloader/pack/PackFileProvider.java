@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2013-2016 Emerald Icemoon All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  *
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package icemoon.iceloader.pack;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.apache.commons.vfs2.Capability;
+import org.apache.commons.vfs2.FileName;
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystem;
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.FileSystemManager;
+import org.apache.commons.vfs2.FileSystemOptions;
+import org.apache.commons.vfs2.FileType;
+import org.apache.commons.vfs2.VFS;
+import org.apache.commons.vfs2.impl.DefaultFileSystemManager;
+import org.apache.commons.vfs2.provider.AbstractFileName;
+import org.apache.commons.vfs2.provider.AbstractLayeredFileProvider;
+import org.apache.commons.vfs2.provider.LayeredFileName;
+
+/**
+ * Commons VFS provider for the <code>pack</code> scheme, a file system stored
+ * in a single local file (see {@link PackStore}). It is layered over the
+ * local file, in the same way as <code>zip</code>, for example
+ * <code>pack:file:///path/to/cache.pack!/</code>.
+ */
+public class PackFileProvider extends AbstractLayeredFileProvider {
+
+	public final static String SCHEME = "pack";
+
+	final static Collection<Capability> capabilities = Collections.unmodifiableCollection(Arrays
+			.asList(new Capability[] { Capability.CREATE, Capability.DELETE, Capability.RENAME, Capability.GET_TYPE,
+					Capability.LIST_CHILDREN, Capability.READ_CONTENT, Capability.WRITE_CONTENT,
+					Capability.APPEND_CONTENT, Capability.URI, Capability.GET_LAST_MODIFIED,
+					Capability.SET_LAST_MODIFIED_FILE }));
+
+	/**
+	 * Add this provider to the default VFS manager, if it is not already
+	 * registered.
+	 *
+	 * @throws FileSystemException
+	 *             on error
+	 */
+	public static void register() throws FileSystemException {
+		FileSystemManager mgr = VFS.getManager();
+		if (mgr instanceof DefaultFileSystemManager && !((DefaultFileSystemManager) mgr).hasProvider(SCHEME)) {
+			((DefaultFileSystemManager) mgr).addProvider(SCHEME, new PackFileProvider());
+		}
+	}
+
+	@Override
+	protected FileSystem doCreateFileSystem(String scheme, FileObject file, FileSystemOptions fileSystemOptions)
+			throws FileSystemException {
+		AbstractFileName rootName = new LayeredFileName(scheme, file.getName(), FileName.ROOT_PATH, FileType.FOLDER);
+		return new PackFileSystem(rootName, file, fileSystemOptions);
+	}
+
+	@Override
+	public Collection<Capability> getCapabilities() {
+		return capabilities;
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2013-2016 Emerald Icemoon All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  *
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package icemoon.iceloader.pack;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.vfs2.Capability;
+import org.apache.commons.vfs2.FileName;
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.FileSystemOptions;
+import org.apache.commons.vfs2.provider.AbstractFileName;
+import org.apache.commons.vfs2.provider.AbstractFileSystem;
+
+import icemoon.iceloader.LoaderUtils;
+
+/**
+ * File system whose files are stored in a single local pack file, see
+ * {@link PackStore}.
+ */
+public class PackFileSystem extends AbstractFileSystem {
+
+	private static final Logger LOG = Logger.getLogger(PackFileSystem.class.getName());
+
+	private final PackStore store;
+
+	protected PackFileSystem(FileName rootName, FileObject packFile, FileSystemOptions fileSystemOptions)
+			throws FileSystemException {
+		super(rootName, packFile, fileSystemOptions);
+		File file = LoaderUtils.toLocalFile(packFile);
+		if (file == null) {
+			throw new FileSystemException(String.format("Pack %s must be on the local file system.", packFile));
+		}
+		try {
+			if (file.getParentFile() != null)
+				file.getParentFile().mkdirs();
+			store = new PackStore(file);
+		} catch (IOException ioe) {
+			throw new FileSystemException(ioe);
+		}
+	}
+
+	/**
+	 * Get the store that holds the files.
+	 *
+	 * @return store
+	 */
+	public PackStore getStore() {
+		return store;
+	}
+
+	@Override
+	protected FileObject createFile(AbstractFileName name) throws Exception {
+		return new PackFileObject(name, this, store);
+	}
+
+	@Override
+	protected void addCapabilities(Collection<Capability> caps) {
+		caps.addAll(PackFileProvider.capabilities);
+	}
+
+	@Override
+	protected void doCloseCommunicationLink() {
+		try {
+			store.close();
+		} catch (IOException ioe) {
+			LOG.log(Level.WARNING, String.format("Failed to close pack %s", store.getFile()), ioe);
+		}
+	}
+}
@@ -0,0 +1,819 @@
+/*
+ * Copyright (c) 2013-2016 Emerald Icemoon All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  *
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package icemoon.iceloader.pack;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import icemoon.iceloader.AbstractVFSLocator;
+import icemoon.iceloader.ByteBufferInputStream;
+
+/**
+ * A log structured store of named files in a single pack file. Every change
+ * (a file written, removed, moved or touched) is appended to the end of the
+ * pack as a record, so nothing is ever overwritten in place. An index of
+ * where the current content of each file lives is built in memory when the
+ * pack is opened, and content is read by mapping that region of the pack
+ * into memory.
+ * <p>
+ * Content written is collected in memory (or in a spill file once it grows
+ * beyond {@link #SPILL_THRESHOLD}) and appended as a single record when the
+ * stream is closed, so any number of files may be written at once. Appending
+ * to a file only writes the new content, so a file may be made up of several
+ * regions of the pack. A record left incomplete by a crash is cut off when the
+ * pack is next opened.
+ * <p>
+ * Replaced and removed content is left in the pack as dead space. Once there
+ * is more dead space than live content, and at least
+ * {@link #COMPACT_MIN} bytes of it, the live content is copied to a new pack
+ * in the background, which then replaces the old one. Reads and writes carry
+ * on while the content is copied, anything written meanwhile being carried
+ * over when the packs are swapped.
+ */
+public class PackStore {
+
+	private static final Logger LOG = Logger.getLogger(PackStore.class.getName());
+
+	/**
+	 * Minimum amount of dead space before the pack is compacted.
+	 */
+	public static long COMPACT_MIN = Long.getLong("icescene.packCompactMin", 16 * 1024 * 1024);
+
+	/**
+	 * Size at which content being written is moved from memory to a spill
+	 * file.
+	 */
+	public static int SPILL_THRESHOLD = 1024 * 1024;
+
+	private final static byte[] MAGIC = { 'I', 'C', 'E', 'P', 'A', 'C', 'K', '1' };
+
+	private final static byte PUT = 'P';
+	private final static byte DELETE = 'D';
+	private final static byte MOVE = 'M';
+	private final static byte TOUCH = 'T';
+	private final static byte FOLDER = 'F';
+	private final static byte APPEND = 'A';
+
+	private static class Entry {
+		private final long[] offsets;
+		private final long[] lengths;
+		private final long length;
+		private long lastModified;
+
+		private Entry(long offset, long length, long lastModified) {
+			this(new long[] { offset }, new long[] { length }, lastModified);
+		}
+
+		private Entry(long[] offsets, long[] lengths, long lastModified) {
+			this.offsets = offsets;
+			this.lengths = lengths;
+			this.lastModified = lastModified;
+			long l = 0;
+			for (long sl : lengths)
+				l += sl;
+			length = l;
+		}
+
+		private Entry append(long offset, long length, long lastModified) {
+			long[] o = Arrays.copyOf(offsets, offsets.length + 1);
+			long[] l = Arrays.copyOf(lengths, lengths.length + 1);
+			o[offsets.length] = offset;
+			l[lengths.length] = length;
+			return new Entry(o, l, lastModified);
+		}
+	}
+
+	private static class CountingInputStream extends FilterInputStream {
+		private long count;
+
+		private CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int r = super.read();
+			if (r != -1)
+				count++;
+			return r;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int r = super.read(b, off, len);
+			if (r > 0)
+				count += r;
+			return r;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long s = super.skip(n);
+			count += s;
+			return s;
+		}
+	}
+
+	private final File file;
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private final Map<String, Long> folders = new HashMap<String, Long>();
+	private final Map<String, Set<String>> children = new HashMap<String, Set<String>>();
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private FileLock processLock;
+	private long live;
+	private long dead;
+	private long retryDead;
+	private boolean compacting;
+
+	/**
+	 * Open (or create) a pack.
+	 *
+	 * @param file
+	 *            pack file
+	 * @throws IOException
+	 *             on error, or if the pack is in use by another process
+	 */
+	public PackStore(File file) throws IOException {
+		this.file = file;
+		folders.put("", System.currentTimeMillis());
+		open();
+		load();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Get the number of bytes of content that is no longer used.
+	 *
+	 * @return dead bytes
+	 */
+	public synchronized long getDead() {
+		return dead;
+	}
+
+	/**
+	 * Get the number of bytes of current content.
+	 *
+	 * @return live bytes
+	 */
+	public synchronized long getLive() {
+		return live;
+	}
+
+	public synchronized boolean isFile(String name) {
+		return entries.containsKey(name);
+	}
+
+	public synchronized boolean isFolder(String name) {
+		return folders.containsKey(name);
+	}
+
+	/**
+	 * Get the names (not paths) of the files and folders in a folder.
+	 *
+	 * @param folder
+	 *            folder path
+	 * @return names
+	 */
+	public synchronized String[] list(String folder) {
+		Set<String> c = children.get(folder);
+		return c == null ? new String[0] : c.toArray(new String[0]);
+	}
+
+	public synchronized long getSize(String name) throws IOException {
+		return getEntry(name).length;
+	}
+
+	public synchronized long getLastModified(String name) {
+		Entry e = entries.get(name);
+		if (e != null)
+			return e.lastModified;
+		Long l = folders.get(name);
+		return l == null ? 0 : l;
+	}
+
+	/**
+	 * Open the content of a file. Content of at least
+	 * {@link AbstractVFSLocator#MAP_THRESHOLD} bytes is mapped straight from
+	 * the pack, so the stream's buffer may be used directly by callers that
+	 * can. Anything smaller is read, so that the pack is not held mapped by
+	 * the many small files (a mapped pack cannot be replaced on some
+	 * platforms, see {@link #compact()}).
+	 *
+	 * @param name
+	 *            file path
+	 * @return stream
+	 * @throws IOException
+	 *             on error
+	 */
+	public synchronized ByteBufferInputStream openInput(String name) throws IOException {
+		Entry e = getEntry(name);
+		long threshold = AbstractVFSLocator.MAP_THRESHOLD;
+		if (e.offsets.length == 1 && threshold >= 0 && e.length >= threshold) {
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, e.offsets[0], e.length);
+			return new ByteBufferInputStream(buf);
+		}
+		// Small, or appended to, so gather the regions
+		ByteBuffer buf = ByteBuffer.allocate((int) e.length);
+		for (int i = 0; i < e.offsets.length; i++) {
+			buf.limit(buf.position() + (int) e.lengths[i]);
+			long done = 0;
+			while (done < e.lengths[i]) {
+				int r = channel.read(buf, e.offsets[i] + done);
+				if (r == -1)
+					throw new EOFException(String.format("%s is truncated in %s", name, file));
+				done += r;
+			}
+		}
+		buf.flip();
+		return new ByteBufferInputStream(buf);
+	}
+
+	/**
+	 * Open a stream to write a file. The file is only replaced (or appended
+	 * to) once the stream is closed.
+	 *
+	 * @param name
+	 *            file path
+	 * @param append
+	 *            add to the existing content
+	 * @return stream
+	 * @throws IOException
+	 *             on error
+	 */
+	public OutputStream openOutput(final String name, final boolean append) throws IOException {
+		return new OutputStream() {
+			private ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			private File spill;
+			private OutputStream spillOut;
+			private boolean closed;
+
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				if (spillOut == null && buf.size() + len > SPILL_THRESHOLD) {
+					spill = File.createTempFile("spill", ".tmp", file.getAbsoluteFile().getParentFile());
+					spillOut = new FileOutputStream(spill);
+					buf.writeTo(spillOut);
+					buf = null;
+				}
+				if (spillOut == null)
+					buf.write(b, off, len);
+				else
+					spillOut.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (closed)
+					return;
+				closed = true;
+				if (spillOut == null) {
+					byte[] data = buf.toByteArray();
+					put(name, new ByteArrayInputStream(data), data.length, append);
+				} else {
+					try {
+						spillOut.close();
+						InputStream in = new FileInputStream(spill);
+						try {
+							put(name, in, spill.length(), append);
+						} finally {
+							in.close();
+						}
+					} finally {
+						spill.delete();
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Remove a file or an empty folder.
+	 *
+	 * @param name
+	 *            path
+	 * @throws IOException
+	 *             on error
+	 */
+	public synchronized void delete(String name) throws IOException {
+		if (!entries.containsKey(name) && !folders.containsKey(name))
+			return;
+		startRecord(DELETE);
+		raf.writeUTF(name);
+		remove(name);
+		checkCompact();
+	}
+
+	/**
+	 * Move a file to a new name, replacing anything already there.
+	 *
+	 * @param from
+	 *            path to move
+	 * @param to
+	 *            new path
+	 * @throws IOException
+	 *             on error
+	 */
+	public synchronized void move(String from, String to) throws IOException {
+		getEntry(from);
+		startRecord(MOVE);
+		raf.writeUTF(from);
+		raf.writeUTF(to);
+		moved(from, to);
+		checkCompact();
+	}
+
+	/**
+	 * Set the last modified time of a file or folder.
+	 *
+	 * @param name
+	 *            path
+	 * @param time
+	 *            time
+	 * @throws IOException
+	 *             on error
+	 */
+	public synchronized void touch(String name, long time) throws IOException {
+		startRecord(TOUCH);
+		raf.writeUTF(name);
+		raf.writeLong(time);
+		touched(name, time);
+	}
+
+	/**
+	 * Create a folder (and any missing parents).
+	 *
+	 * @param name
+	 *            path
+	 * @throws IOException
+	 *             on error
+	 */
+	public synchronized void createFolder(String name) throws IOException {
+		if (folders.containsKey(name))
+			return;
+		long now = System.currentTimeMillis();
+		startRecord(FOLDER);
+		raf.writeUTF(name);
+		raf.writeLong(now);
+		addFolder(name, now);
+	}
+
+	/**
+	 * Copy the live content to a new pack, which then replaces this one. This
+	 * is normally done in the background when there is enough dead space. The
+	 * pack is only locked while taking a snapshot of what to copy, and while
+	 * swapping in the new pack along with anything written since the
+	 * snapshot.
+	 *
+	 * @throws IOException
+	 *             on error
+	 */
+	public void compact() throws IOException {
+		synchronized (this) {
+			if (compacting)
+				return;
+			compacting = true;
+		}
+		try {
+			doCompact();
+		} finally {
+			synchronized (this) {
+				compacting = false;
+			}
+		}
+	}
+
+	private void doCompact() throws IOException {
+		long started = System.currentTimeMillis();
+		Map<String, Entry> snapshot;
+		Map<String, Long> snapshotFolders;
+		long end;
+		long deadAtSnapshot;
+		FileChannel source;
+		synchronized (this) {
+			if (raf == null)
+				throw new IOException(String.format("Pack %s is closed.", file));
+			snapshot = new HashMap<String, Entry>(entries);
+			snapshotFolders = new HashMap<String, Long>(folders);
+			end = raf.length();
+			deadAtSnapshot = dead;
+			source = channel;
+		}
+
+		// Copy the live content as of the snapshot. Nothing before the end
+		// of the snapshot is ever changed, so this needs no lock
+		File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".compact");
+		Map<Long, Long> relocated = new HashMap<Long, Long>();
+		RandomAccessFile out = new RandomAccessFile(temp, "rw");
+		boolean swapped = false;
+		try {
+			out.setLength(0);
+			out.write(MAGIC);
+			FileChannel outChannel = out.getChannel();
+			for (Map.Entry<String, Long> en : snapshotFolders.entrySet()) {
+				if (en.getKey().length() == 0)
+					continue;
+				out.writeByte(FOLDER);
+				out.writeUTF(en.getKey());
+				out.writeLong(en.getValue());
+			}
+			for (Map.Entry<String, Entry> en : snapshot.entrySet()) {
+				Entry e = en.getValue();
+				out.writeByte(PUT);
+				out.writeUTF(en.getKey());
+				out.writeLong(e.lastModified);
+				out.writeLong(e.length);
+				long offset = out.getFilePointer();
+				for (int i = 0; i < e.offsets.length; i++) {
+					relocated.put(e.offsets[i], offset);
+					transfer(source, e.offsets[i], e.lengths[i], outChannel, offset);
+					offset += e.lengths[i];
+				}
+				out.seek(offset);
+			}
+
+			synchronized (this) {
+				if (channel != source)
+					throw new IOException(String.format("Pack %s was reopened while compacting.", file));
+
+				// Carry over anything written since the snapshot as it is
+				long tail = out.getFilePointer();
+				long now = raf.length();
+				transfer(channel, end, now - end, outChannel, tail);
+				outChannel.force(true);
+
+				// Work out where the current content will be in the new pack
+				Map<String, Entry> moved = new HashMap<String, Entry>();
+				for (Map.Entry<String, Entry> en : entries.entrySet()) {
+					Entry e = en.getValue();
+					long[] offsets = new long[e.offsets.length];
+					for (int i = 0; i < offsets.length; i++) {
+						if (e.offsets[i] >= end) {
+							offsets[i] = e.offsets[i] - end + tail;
+						} else {
+							Long o = relocated.get(e.offsets[i]);
+							if (o == null)
+								throw new IOException(String.format("%s in %s was not copied while compacting.",
+										en.getKey(), file));
+							offsets[i] = o;
+						}
+					}
+					moved.put(en.getKey(), new Entry(offsets, e.lengths, e.lastModified));
+				}
+				out.close();
+
+				close();
+				try {
+					Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+							StandardCopyOption.ATOMIC_MOVE);
+				} catch (IOException ioe) {
+					// For example, content is still mapped on a platform that won't allow this
+					open();
+					throw ioe;
+				}
+				swapped = true;
+				open();
+				raf.seek(raf.length());
+				entries.clear();
+				entries.putAll(moved);
+				dead -= deadAtSnapshot;
+				retryDead = 0;
+				LOG.info(String.format("Compacted %s from %d to %d bytes in %dms", file, now, channel.size(),
+						System.currentTimeMillis() - started));
+			}
+		} finally {
+			out.close();
+			if (!swapped)
+				temp.delete();
+		}
+	}
+
+	private static void transfer(FileChannel from, long position, long length, FileChannel to, long toPosition)
+			throws IOException {
+		long done = 0;
+		while (done < length) {
+			long t = from.transferTo(position + done, length - done, to.position(toPosition + done));
+			if (t <= 0)
+				throw new EOFException();
+			done += t;
+		}
+	}
+
+	/**
+	 * Close the pack.
+	 *
+	 * @throws IOException
+	 *             on error
+	 */
+	public synchronized void close() throws IOException {
+		if (raf != null) {
+			try {
+				processLock.release();
+				raf.close();
+			} finally {
+				raf = null;
+				channel = null;
+				processLock = null;
+			}
+		}
+	}
+
+	private void open() throws IOException {
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		processLock = channel.tryLock();
+		if (processLock == null) {
+			raf.close();
+			raf = null;
+			channel = null;
+			throw new IOException(String.format("Pack %s is in use by another process.", file));
+		}
+		if (raf.length() == 0) {
+			raf.write(MAGIC);
+		}
+	}
+
+	private void load() throws IOException {
+		long started = System.currentTimeMillis();
+		long good = MAGIC.length;
+		CountingInputStream cin = new CountingInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+		try {
+			DataInputStream din = new DataInputStream(cin);
+			byte[] magic = new byte[MAGIC.length];
+			din.readFully(magic);
+			if (!Arrays.equals(magic, MAGIC)) {
+				throw new IOException(String.format("%s is not a pack.", file));
+			}
+			try {
+				while (true) {
+					int type = din.read();
+					if (type == -1)
+						break;
+					String name = din.readUTF();
+					switch (type) {
+					case PUT:
+					case APPEND:
+						long lastModified = din.readLong();
+						long length = din.readLong();
+						long offset = cin.count;
+						long skipped = 0;
+						while (skipped < length) {
+							long s = din.skip(length - skipped);
+							if (s <= 0)
+								throw new EOFException();
+							skipped += s;
+						}
+						if (type == APPEND)
+							appended(name, offset, length, lastModified);
+						else
+							put(name, new Entry(offset, length, lastModified));
+						break;
+					case DELETE:
+						remove(name);
+						break;
+					case MOVE:
+						moved(name, din.readUTF());
+						break;
+					case TOUCH:
+						touched(name, din.readLong());
+						break;
+					case FOLDER:
+						addFolder(name, din.readLong());
+						break;
+					default:
+						throw new IOException(String.format("Unknown record type %d at %d in %s", type, good, file));
+					}
+					good = cin.count;
+				}
+			} catch (EOFException eofe) {
+				LOG.warning(String.format("%s ends with an incomplete record, removing it", file));
+			} catch (IOException ioe) {
+				LOG.log(Level.WARNING, String.format("%s is damaged after %d bytes, removing the rest", file, good), ioe);
+			}
+		} finally {
+			cin.close();
+		}
+		if (raf.length() > good) {
+			raf.setLength(good);
+		}
+		raf.seek(good);
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.fine(String.format("Loaded %d files (%d bytes, %d dead) from %s in %dms", entries.size(), live, dead,
+					file, System.currentTimeMillis() - started));
+		}
+	}
+
+	private synchronized void put(String name, InputStream in, long length, boolean append) throws IOException {
+		long now = System.currentTimeMillis();
+		append = append && entries.containsKey(name);
+		long pos = startRecord(append ? APPEND : PUT);
+		raf.writeUTF(name);
+		raf.writeLong(now);
+		raf.writeLong(length);
+		long offset = raf.getFilePointer();
+		byte[] b = new byte[65536];
+		long done = 0;
+		int r;
+		while (done < length && (r = in.read(b, 0, (int) Math.min(b.length, length - done))) != -1) {
+			raf.write(b, 0, r);
+			done += r;
+		}
+		if (done != length) {
+			raf.setLength(pos);
+			raf.seek(pos);
+			throw new IOException(String.format("Expected %d bytes for %s but got %d", length, name, done));
+		}
+		if (append)
+			appended(name, offset, length, now);
+		else
+			put(name, new Entry(offset, length, now));
+		checkCompact();
+	}
+
+	private long startRecord(byte type) throws IOException {
+		if (raf == null)
+			throw new IOException(String.format("Pack %s is closed.", file));
+		long pos = raf.length();
+		raf.seek(pos);
+		raf.writeByte(type);
+		return pos;
+	}
+
+	private Entry getEntry(String name) throws IOException {
+		Entry e = entries.get(name);
+		if (e == null)
+			throw new IOException(String.format("%s does not exist in %s", name, file));
+		return e;
+	}
+
+	private void put(String name, Entry e) {
+		Entry old = entries.put(name, e);
+		if (old != null) {
+			live -= old.length;
+			dead += old.length;
+		}
+		live += e.length;
+		addChild(name, System.currentTimeMillis());
+	}
+
+	private void appended(String name, long offset, long length, long lastModified) {
+		Entry e = entries.get(name);
+		if (e == null) {
+			put(name, new Entry(offset, length, lastModified));
+		} else {
+			entries.put(name, e.append(offset, length, lastModified));
+			live += length;
+		}
+	}
+
+	private void remove(String name) {
+		Entry old = entries.remove(name);
+		if (old != null) {
+			live -= old.length;
+			dead += old.length;
+		}
+		if (name.length() > 0) {
+			folders.remove(name);
+			Set<String> c = children.get(parent(name));
+			if (c != null)
+				c.remove(baseName(name));
+		}
+	}
+
+	private void moved(String from, String to) {
+		Entry e = entries.remove(from);
+		if (e == null)
+			return;
+		live -= e.length;
+		Set<String> c = children.get(parent(from));
+		if (c != null)
+			c.remove(baseName(from));
+		put(to, e);
+	}
+
+	private void touched(String name, long time) {
+		Entry e = entries.get(name);
+		if (e != null)
+			e.lastModified = time;
+		else if (folders.containsKey(name))
+			folders.put(name, time);
+	}
+
+	private void addFolder(String name, long time) {
+		if (!folders.containsKey(name)) {
+			folders.put(name, time);
+			addChild(name, time);
+		}
+	}
+
+	private void addChild(String name, long time) {
+		if (name.length() == 0)
+			return;
+		String parent = parent(name);
+		addFolder(parent, time);
+		Set<String> c = children.get(parent);
+		if (c == null) {
+			c = new LinkedHashSet<String>();
+			children.put(parent, c);
+		}
+		c.add(baseName(name));
+	}
+
+	private void checkCompact() {
+		if (!compacting && dead >= COMPACT_MIN && dead > live && dead >= retryDead) {
+			compacting = true;
+			Thread t = new Thread("PackCompaction") {
+				@Override
+				public void run() {
+					try {
+						doCompact();
+					} catch (IOException ioe) {
+						long retry;
+						synchronized (PackStore.this) {
+							// Don't try again until there is at least twice as much to gain
+							retry = retryDead = dead + Math.max(dead, COMPACT_MIN);
+						}
+						LOG.log(Level.WARNING, String.format("Failed to compact %s, not trying again until %d bytes are dead",
+								file, retry), ioe);
+					} finally {
+						synchronized (PackStore.this) {
+							compacting = false;
+						}
+					}
+				}
+			};
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			t.start();
+		}
+	}
+
+	static String parent(String name) {
+		int idx = name.lastIndexOf('/');
+		return idx == -1 ? "" : name.substring(0, idx);
+	}
+
+	static String baseName(String name) {
+		int idx = name.lastIndexOf('/');
+		return idx == -1 ? name : name.substring(idx + 1);
+	}
+}
@@ -0,0 +1,54 @@
+package icemoon.iceloader.tools;
+
+import icemoon.iceloader.CachePrimer;
+import icemoon.iceloader.ServerAssetManager;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command line tool to fill a local cache ahead of time, for example for a new
+ * install. The cache location and server are configured using the same system
+ * properties as the locators (<strong>iceloader.assetCache</strong> and
+ * <strong>iceloader.serverLocation</strong>).
+ * 
+ * <pre>
+ * PrimeCache [-t threads] [-c Assets.cfg] pattern|bundle ...
+ * </pre>
+ */
+public class PrimeCache {
+
+	public static void main(String[] args) throws Exception {
+		int threads = CachePrimer.THREADS;
+		URL config = null;
+		List<String> patterns = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-t") && i + 1 < args.length) {
+				threads = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-c") && i + 1 < args.length) {
+				config = new File(args[++i]).toURI().toURL();
+			} else {
+				patterns.add(args[i]);
+			}
+		}
+		if (patterns.isEmpty()) {
+			System.err.println("Usage: PrimeCache [-t threads] [-c Assets.cfg] pattern|bundle ...");
+			System.exit(2);
+		}
+		if (config == null) {
+			config = Thread.currentThread().getContextClassLoader().getResource("META-INF/Assets.cfg");
+			if (config == null) {
+				System.err.println("No META-INF/Assets.cfg on the classpath, use -c to specify one.");
+				System.exit(2);
+			}
+		}
+
+		ServerAssetManager manager = new ServerAssetManager(config);
+		manager.index();
+		CachePrimer.Result result = manager.prime(patterns, threads);
+		System.out.println(result);
+		System.exit(result.getFailed() == 0 ? 0 : 1);
+	}
+}
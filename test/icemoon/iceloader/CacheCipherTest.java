@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2013-2016 Emerald Icemoon All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  *
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package icemoon.iceloader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.junit.Test;
+
+public class CacheCipherTest {
+
+	@Test
+	public void testPlainUnchanged() throws Exception {
+		byte[] plain = DeltaPatchTest.random(5000, 1);
+		byte[] cached = reencrypt(plain, 100);
+		assertArrayEquals(plain, cached);
+		assertArrayEquals(plain, toDelivered(cached));
+	}
+
+	@Test
+	public void testShortUnchanged() throws Exception {
+		// Starts like the header, but is too short to be encrypted
+		byte[] plain = Arrays.copyOf(EncryptionContext.get().getHeader(), 4);
+		assertArrayEquals(plain, reencrypt(plain, 1));
+		assertArrayEquals(plain, toDelivered(plain));
+		assertArrayEquals(new byte[0], toDelivered(new byte[0]));
+	}
+
+	@Test
+	public void testReencryptedToDelivered() throws Exception {
+		byte[] plain = DeltaPatchTest.random(70000, 1);
+		byte[] iv = DeltaPatchTest.random(16, 2);
+		byte[] delivered = deliver(plain, iv);
+
+		// Written in pieces that split the header
+		byte[] cached = reencrypt(delivered, 7);
+		assertArrayEquals(CacheCipher.getHeader(), Arrays.copyOf(cached, CacheCipher.getHeader().length));
+		assertFalse(Arrays.equals(delivered, cached));
+		assertArrayEquals(delivered, toDelivered(cached));
+	}
+
+	@Test
+	public void testDecrypt() throws Exception {
+		byte[] plain = DeltaPatchTest.random(1000, 1);
+		byte[] iv = DeltaPatchTest.random(16, 2);
+		byte[] cached = reencrypt(deliver(plain, iv), 8192);
+		int header = CacheCipher.getHeader().length + 9 + iv.length;
+		InputStream in = CacheCipher.decrypt(new ByteArrayInputStream(cached, header, cached.length - header), iv);
+		assertArrayEquals(plain, read(in));
+
+		// Skipping does not need to decrypt what is skipped
+		in = CacheCipher.decrypt(new ByteArrayInputStream(cached, header, cached.length - header), iv);
+		long skipped = 0;
+		while (skipped < 333)
+			skipped += in.skip(333 - skipped);
+		assertArrayEquals(Arrays.copyOfRange(plain, 333, plain.length), read(in));
+	}
+
+	private static byte[] deliver(byte[] plain, byte[] iv) throws Exception {
+		EncryptionContext ctx = EncryptionContext.get();
+		Cipher c = Cipher.getInstance(ctx.getCipher());
+		c.init(Cipher.ENCRYPT_MODE, ctx.createKey(), new IvParameterSpec(iv));
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		DataOutputStream dout = new DataOutputStream(bout);
+		dout.write(ctx.getHeader());
+		dout.writeLong(plain.length);
+		dout.write(iv.length);
+		dout.write(iv);
+		dout.write(c.doFinal(plain));
+		dout.flush();
+		return bout.toByteArray();
+	}
+
+	private static byte[] reencrypt(byte[] content, int chunk) throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		OutputStream out = CacheCipher.reencrypt(bout);
+		try {
+			for (int i = 0; i < content.length; i += chunk)
+				out.write(content, i, Math.min(chunk, content.length - i));
+		} finally {
+			out.close();
+		}
+		return bout.toByteArray();
+	}
+
+	private static byte[] toDelivered(byte[] cached) throws IOException {
+		return read(CacheCipher.toDelivered(new ByteArrayInputStream(cached)));
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			LoaderUtils.copy(in, out);
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
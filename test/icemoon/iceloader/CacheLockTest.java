@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2013-2016 Emerald Icemoon All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  *
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package icemoon.iceloader;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class CacheLockTest {
+
+	@Test
+	public void testOtherThreadExcluded() throws Exception {
+		final CacheLock lock = newLock();
+		assertTrue(lock.tryLock("a/b.txt"));
+		assertFalse(tryLockElsewhere(lock, "a/b.txt"));
+		lock.unlock("a/b.txt");
+		assertTrue(tryLockElsewhere(lock, "a/b.txt"));
+	}
+
+	@Test
+	public void testReentrantForOwner() throws Exception {
+		final CacheLock lock = newLock();
+		assertTrue(lock.tryLock("a/b.txt"));
+		assertTrue(lock.tryLock("a/b.txt"));
+		lock.unlock("a/b.txt");
+		// Still held once
+		assertFalse(tryLockElsewhere(lock, "a/b.txt"));
+		lock.unlock("a/b.txt");
+		assertTrue(tryLockElsewhere(lock, "a/b.txt"));
+	}
+
+	@Test
+	public void testUnlockFromOtherThread() throws Exception {
+		final CacheLock lock = newLock();
+		assertTrue(lock.tryLock("a/b.txt"));
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				lock.unlock("a/b.txt");
+			}
+		};
+		t.start();
+		t.join();
+		assertTrue(tryLockElsewhere(lock, "a/b.txt"));
+	}
+
+	private static boolean tryLockElsewhere(final CacheLock lock, final String name) throws InterruptedException {
+		final AtomicBoolean locked = new AtomicBoolean();
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				if (lock.tryLock(name)) {
+					locked.set(true);
+					lock.unlock(name);
+				}
+			}
+		};
+		t.start();
+		t.join();
+		return locked.get();
+	}
+
+	private static CacheLock newLock() throws Exception {
+		File f = File.createTempFile("cachelock", ".lock");
+		f.deleteOnExit();
+		return new CacheLock(f);
+	}
+}
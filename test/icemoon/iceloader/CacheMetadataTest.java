@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2013-2016 Emerald Icemoon All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  *
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package icemoon.iceloader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.VFS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CacheMetadataTest {
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("meta", ".cache");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files)
+				f.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testFormatAndParse() {
+		CacheMetadata.Entry e = new CacheMetadata.Entry("Textures/Stone.png");
+		e.setETag("\"abc\"");
+		e.setLastAccess(1000);
+		e.setHits(3);
+		e.setLastModified(2000);
+		e.setSize(4096);
+		e.setDigest("0123456789abcdef");
+		e.setEncryption(CacheCipher.CIPHER);
+		e.setVerified(3000);
+		e.setValidated(4000);
+
+		CacheMetadata.Entry p = CacheMetadata.Entry.parse(e.format());
+		assertEquals("Textures/Stone.png", p.getName());
+		assertEquals("\"abc\"", p.getETag());
+		assertEquals(1000, p.getLastAccess());
+		assertEquals(3, p.getHits());
+		assertEquals(2000, p.getLastModified());
+		assertEquals(4096, p.getSize());
+		assertEquals("0123456789abcdef", p.getDigest());
+		assertEquals(CacheCipher.CIPHER, p.getEncryption());
+		assertEquals(3000, p.getVerified());
+		assertEquals(4000, p.getValidated());
+	}
+
+	@Test
+	public void testParseEmpty() {
+		CacheMetadata.Entry p = CacheMetadata.Entry.parse(new CacheMetadata.Entry("a").format());
+		assertEquals("a", p.getName());
+		assertNull(p.getETag());
+		assertNull(p.getDigest());
+		assertNull(p.getEncryption());
+		assertEquals(-1, p.getSize());
+	}
+
+	@Test
+	public void testParseOlderFormats() {
+		// Usage only
+		CacheMetadata.Entry p = CacheMetadata.Entry.parse("a\tetag\t1000\t3");
+		assertEquals("etag", p.getETag());
+		assertEquals(1000, p.getLastAccess());
+		assertEquals(3, p.getHits());
+		assertEquals(-1, p.getSize());
+
+		// Before verification times were kept
+		p = CacheMetadata.Entry.parse("a\t\t1000\t3\t2000\t4096\tdigest\t");
+		assertNull(p.getETag());
+		assertEquals(2000, p.getLastModified());
+		assertEquals(4096, p.getSize());
+		assertEquals("digest", p.getDigest());
+		assertNull(p.getEncryption());
+		assertEquals(0, p.getVerified());
+	}
+
+	@Test
+	public void testCompactKeepsOtherEntries() throws IOException {
+		FileObject root = VFS.getManager().resolveFile(dir.toURI().toString());
+		CacheMetadata metadata = CacheMetadata.get(root);
+		metadata.putEntry(entry("a", 1));
+		metadata.putEntry(entry("b", 1));
+		metadata.putEntry(entry("a", 2));
+		metadata.removeEntry("b");
+
+		// Another process sharing the cache adds an entry
+		OutputStream out = new FileOutputStream(new File(dir, CacheMetadata.DEFAULT_RESOURCE_NAME), true);
+		try {
+			out.write((entry("c", 5).format() + "\n").getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+
+		metadata.compact();
+		List<String> lines = readJournal();
+		assertEquals(2, lines.size());
+		assertEquals(entry("a", 2).format(), lines.get(0));
+		assertEquals(entry("c", 5).format(), lines.get(1));
+		assertNull(metadata.getEntry("b"));
+		assertNotNull(metadata.getEntry("c"));
+		assertEquals(5, metadata.getEntry("c").getLastModified());
+	}
+
+	@Test
+	public void testFlushReadsOtherProcesses() throws IOException {
+		FileObject root = VFS.getManager().resolveFile(dir.toURI().toString());
+		CacheMetadata metadata = CacheMetadata.get(root);
+		metadata.putEntry(entry("a", 1));
+		metadata.flush();
+
+		OutputStream out = new FileOutputStream(new File(dir, CacheMetadata.DEFAULT_RESOURCE_NAME), true);
+		try {
+			out.write((entry("b", 3).format() + "\n").getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		metadata.putEntry(entry("a", 2));
+		metadata.flush();
+
+		assertEquals(3, metadata.getEntry("b").getLastModified());
+		assertEquals(2, metadata.getEntry("a").getLastModified());
+		List<String> lines = readJournal();
+		assertEquals(entry("a", 2).format(), lines.get(lines.size() - 1));
+	}
+
+	@Test
+	public void testEntriesAreCopies() throws IOException {
+		FileObject root = VFS.getManager().resolveFile(dir.toURI().toString());
+		CacheMetadata metadata = CacheMetadata.get(root);
+		CacheMetadata.Entry e = entry("a", 1);
+		metadata.putEntry(e);
+		e.setLastModified(2);
+		metadata.getEntry("a").setLastModified(3);
+		assertEquals(1, metadata.getEntry("a").getLastModified());
+	}
+
+	private CacheMetadata.Entry entry(String name, long lastModified) {
+		CacheMetadata.Entry e = new CacheMetadata.Entry(name);
+		e.setLastModified(lastModified);
+		e.setSize(lastModified * 10);
+		return e;
+	}
+
+	private List<String> readJournal() throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader r = new BufferedReader(new InputStreamReader(
+				new FileInputStream(new File(dir, CacheMetadata.DEFAULT_RESOURCE_NAME)), "UTF-8"));
+		try {
+			String line;
+			while ((line = r.readLine()) != null) {
+				// Leave out the compaction marker
+				if (line.length() > 0 && !line.startsWith("!"))
+					lines.add(line);
+			}
+		} finally {
+			r.close();
+		}
+		return lines;
+	}
+}
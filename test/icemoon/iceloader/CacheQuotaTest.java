@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2013-2016 Emerald Icemoon All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  *
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package icemoon.iceloader;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class CacheQuotaTest {
+
+	@Test
+	public void testLeastRecentlyUsedFirst() {
+		List<CacheQuota.Candidate> l = new ArrayList<CacheQuota.Candidate>();
+		l.add(new CacheQuota.Candidate("recent", 10, true, 3000, 1));
+		l.add(new CacheQuota.Candidate("old", 10, true, 1000, 50));
+		l.add(new CacheQuota.Candidate("middle", 10, true, 2000, 5));
+		CacheQuota.sort(l, false);
+		assertEquals(Arrays.asList("old", "middle", "recent"), names(l));
+	}
+
+	@Test
+	public void testLeastFrequentlyUsedFirst() {
+		List<CacheQuota.Candidate> l = new ArrayList<CacheQuota.Candidate>();
+		l.add(new CacheQuota.Candidate("recent", 10, true, 3000, 1));
+		l.add(new CacheQuota.Candidate("old", 10, true, 1000, 50));
+		l.add(new CacheQuota.Candidate("middle", 10, true, 2000, 5));
+		CacheQuota.sort(l, true);
+		assertEquals(Arrays.asList("recent", "middle", "old"), names(l));
+	}
+
+	@Test
+	public void testTies() {
+		List<CacheQuota.Candidate> l = new ArrayList<CacheQuota.Candidate>();
+		l.add(new CacheQuota.Candidate("more", 10, true, 1000, 2));
+		l.add(new CacheQuota.Candidate("fewer", 10, true, 1000, 1));
+		CacheQuota.sort(l, false);
+		// Same time, so fewer hits goes first
+		assertEquals(Arrays.asList("fewer", "more"), names(l));
+
+		l.clear();
+		l.add(new CacheQuota.Candidate("later", 10, true, 2000, 1));
+		l.add(new CacheQuota.Candidate("earlier", 10, true, 1000, 1));
+		CacheQuota.sort(l, true);
+		// Same hits, so least recent goes first
+		assertEquals(Arrays.asList("earlier", "later"), names(l));
+	}
+
+	@Test
+	public void testUnindexedFirst() {
+		for (boolean lfu : new boolean[] { false, true }) {
+			List<CacheQuota.Candidate> l = new ArrayList<CacheQuota.Candidate>();
+			l.add(new CacheQuota.Candidate("indexed", 10, true, 1000, 1));
+			l.add(new CacheQuota.Candidate("unindexed", 10, false, 3000, 50));
+			l.add(new CacheQuota.Candidate("indexed2", 10, true, 2000, 2));
+			CacheQuota.sort(l, lfu);
+			assertEquals(Arrays.asList("unindexed", "indexed", "indexed2"), names(l));
+		}
+	}
+
+	private static List<String> names(List<CacheQuota.Candidate> candidates) {
+		List<String> l = new ArrayList<String>();
+		for (CacheQuota.Candidate c : candidates)
+			l.add(c.name);
+		return l;
+	}
+}
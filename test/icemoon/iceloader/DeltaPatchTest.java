@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2013-2016 Emerald Icemoon All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  *
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package icemoon.iceloader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.RandomAccessContent;
+import org.apache.commons.vfs2.VFS;
+import org.apache.commons.vfs2.util.RandomAccessMode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DeltaPatchTest {
+
+	private File sourceFile;
+
+	@Before
+	public void setUp() throws IOException {
+		sourceFile = File.createTempFile("delta", ".src");
+	}
+
+	@After
+	public void tearDown() {
+		sourceFile.delete();
+	}
+
+	@Test
+	public void testIdentical() throws IOException {
+		byte[] source = random(10000, 1);
+		assertArrayEquals(source, apply(create(source, source), source));
+	}
+
+	@Test
+	public void testAppended() throws IOException {
+		byte[] source = random(10000, 1);
+		byte[] target = concat(source, random(500, 2));
+		byte[] patch = create(source, target);
+		assertArrayEquals(target, apply(patch, source));
+		// Unchanged content is copied rather than added again
+		if (patch.length > 1000)
+			fail(String.format("Patch is %d bytes", patch.length));
+	}
+
+	@Test
+	public void testInserted() throws IOException {
+		byte[] source = random(10000, 1);
+		byte[] target = concat(Arrays.copyOfRange(source, 0, 4000), random(100, 2),
+				Arrays.copyOfRange(source, 4000, source.length));
+		assertArrayEquals(target, apply(create(source, target), source));
+	}
+
+	@Test
+	public void testRepetitive() throws IOException {
+		// Every block shares a hash, which must not make creating the patch quadratic
+		byte[] source = new byte[1024 * 1024];
+		byte[] target = concat(source, random(100, 2));
+		byte[] patch = create(source, target);
+		if (patch.length > 1000)
+			fail(String.format("Patch is %d bytes", patch.length));
+	}
+
+	@Test
+	public void testDifferent() throws IOException {
+		byte[] source = random(3000, 1);
+		byte[] target = random(5000, 2);
+		assertArrayEquals(target, apply(create(source, target), source));
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		byte[] source = random(3000, 1);
+		assertArrayEquals(new byte[0], apply(create(source, new byte[0]), source));
+		assertArrayEquals(source, apply(create(new byte[0], source), new byte[0]));
+	}
+
+	@Test(expected = IOException.class)
+	public void testWrongSource() throws IOException {
+		byte[] source = random(3000, 1);
+		byte[] patch = create(source, random(3000, 2));
+		apply(patch, random(2000, 3));
+	}
+
+	@Test(expected = IOException.class)
+	public void testSameLengthWrongSource() throws IOException {
+		byte[] source = random(3000, 1);
+		byte[] target = concat(source, random(100, 2));
+		apply(create(source, target), random(3000, 3));
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotAPatch() throws IOException {
+		apply(random(100, 1), random(100, 2));
+	}
+
+	@Test(expected = IOException.class)
+	public void testTruncated() throws IOException {
+		byte[] source = random(3000, 1);
+		byte[] patch = create(source, random(3000, 2));
+		apply(Arrays.copyOf(patch, patch.length - 10), source);
+	}
+
+	private byte[] create(byte[] source, byte[] target) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DeltaPatch.create(source, target, out);
+		return out.toByteArray();
+	}
+
+	private byte[] apply(byte[] patch, byte[] source) throws IOException {
+		FileOutputStream fout = new FileOutputStream(sourceFile);
+		try {
+			fout.write(source);
+		} finally {
+			fout.close();
+		}
+		FileObject file = VFS.getManager().resolveFile(sourceFile.toURI().toString());
+		try {
+			RandomAccessContent content = file.getContent().getRandomAccessContent(RandomAccessMode.READ);
+			try {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				long length = DeltaPatch.apply(new ByteArrayInputStream(patch), content, out);
+				assertEquals(out.size(), length);
+				return out.toByteArray();
+			} finally {
+				content.close();
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	static byte[] random(int length, long seed) {
+		byte[] b = new byte[length];
+		new Random(seed).nextBytes(b);
+		return b;
+	}
+
+	static byte[] concat(byte[]... parts) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] p : parts)
+			out.write(p, 0, p.length);
+		return out.toByteArray();
+	}
+}
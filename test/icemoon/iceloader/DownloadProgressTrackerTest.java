@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2013-2016 Emerald Icemoon All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  *
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package icemoon.iceloader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.jme3.asset.AssetKey;
+
+public class DownloadProgressTrackerTest {
+
+	@Test
+	public void testSharedAssetCreditsEveryGroup() {
+		DownloadProgressTracker tracker = new DownloadProgressTracker(new ServerAssetManager());
+		tracker.require("a", keys("x.txt", "y.txt"));
+		tracker.require("b", keys("y.txt"));
+		assertEquals(2, tracker.getSnapshot().getExpectedAssets());
+
+		tracker.assetSupplied(new AssetKey<Object>("y.txt"));
+		DownloadProgressTracker.Snapshot s = tracker.getSnapshot();
+		assertEquals(1, s.getGroup("a").getDoneAssets());
+		assertFalse(s.getGroup("a").isComplete());
+		assertEquals(1, s.getGroup("b").getDoneAssets());
+		assertTrue(s.getGroup("b").isComplete());
+		assertEquals(1, s.getDoneAssets());
+
+		tracker.assetSupplied(new AssetKey<Object>("x.txt"));
+		assertTrue(tracker.getSnapshot().getGroup("a").isComplete());
+		assertEquals(2, tracker.getSnapshot().getDoneAssets());
+	}
+
+	@Test
+	public void testAlreadySuppliedCountsAsDone() {
+		DownloadProgressTracker tracker = new DownloadProgressTracker(new ServerAssetManager());
+		tracker.require("a", keys("x.txt", "y.txt"));
+		tracker.assetSupplied(new AssetKey<Object>("x.txt"));
+		tracker.require("b", keys("x.txt"));
+		assertTrue(tracker.getSnapshot().getGroup("b").isComplete());
+	}
+
+	@Test
+	public void testFinishedGroupIsForgotten() {
+		DownloadProgressTracker tracker = new DownloadProgressTracker(new ServerAssetManager());
+		tracker.require("a", keys("x.txt"));
+		tracker.assetSupplied(new AssetKey<Object>("x.txt"));
+		// No longer tracked, so supplying it again counts nothing more
+		tracker.assetSupplied(new AssetKey<Object>("x.txt"));
+		assertEquals(1, tracker.getSnapshot().getDoneAssets());
+
+		// Required again, so tracked afresh
+		tracker.require("b", keys("x.txt"));
+		assertFalse(tracker.getSnapshot().getGroup("b").isComplete());
+		tracker.assetSupplied(new AssetKey<Object>("x.txt"));
+		assertTrue(tracker.getSnapshot().getGroup("b").isComplete());
+	}
+
+	private static List<AssetKey<?>> keys(String... names) {
+		List<AssetKey<?>> l = new ArrayList<AssetKey<?>>();
+		for (String n : names)
+			l.add(new AssetKey<Object>(n));
+		return l;
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2013-2016 Emerald Icemoon All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  *
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package icemoon.iceloader.locators;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jme3.asset.AssetInfo;
+import com.jme3.asset.AssetKey;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import icemoon.iceloader.NotModifiedAssetInfo;
+
+public class AbstractServerLocatorTest {
+
+	private final static byte[] CONTENT = "content".getBytes();
+
+	private HttpServer server;
+	private ServerMirrors mirrors;
+	private ServerLocator locator;
+
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				if (exchange.getRequestHeaders().containsKey("If-None-Match")) {
+					exchange.sendResponseHeaders(304, -1);
+					exchange.close();
+					return;
+				}
+				exchange.sendResponseHeaders(200, CONTENT.length);
+				OutputStream out = exchange.getResponseBody();
+				try {
+					out.write(CONTENT);
+				} finally {
+					out.close();
+				}
+			}
+		});
+		server.start();
+		mirrors = ServerMirrors.parse("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+		locator = new ServerLocator();
+		locator.mirrors = mirrors;
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+	}
+
+	@Test
+	public void testNotOpened() throws IOException {
+		ConcurrencyLimiter limiter = mirrors.getPrimary().getLimiter();
+		for (int i = 0; i < limiter.getLimit() * 2; i++) {
+			// Located but dropped without being opened
+			assertNotNull(locator.create(null, new AssetKey<Object>("a.txt"), "a.txt", -1, null, -1));
+			assertEquals(0, limiter.getInFlight());
+		}
+	}
+
+	@Test
+	public void testPermitWhileOpen() throws IOException {
+		ConcurrencyLimiter limiter = mirrors.getPrimary().getLimiter();
+		AssetInfo info = locator.create(null, new AssetKey<Object>("a.txt"), "a.txt", -1, null, -1);
+		InputStream in = info.openStream();
+		assertEquals(1, limiter.getInFlight());
+		assertEquals("content", read(in));
+		assertEquals(0, limiter.getInFlight());
+
+		// Opened again through the mirrors
+		in = info.openStream();
+		assertEquals(1, limiter.getInFlight());
+		in.close();
+		assertEquals(0, limiter.getInFlight());
+	}
+
+	@Test
+	public void testNotModifiedButNotCached() throws IOException {
+		// Nothing is cached, so it is downloaded in full rather than not found
+		AssetInfo info = locator.create(null, new AssetKey<Object>("a.txt"), "a.txt", 1000, "\"etag\"", -1);
+		assertNotNull(info);
+		assertFalse(info instanceof NotModifiedAssetInfo);
+		assertEquals("content", read(info.openStream()));
+	}
+
+	private static String read(InputStream in) throws IOException {
+		StringBuilder b = new StringBuilder();
+		int r;
+		while ((r = in.read()) != -1)
+			b.append((char) r);
+		return b.toString();
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2013-2016 Emerald Icemoon All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  *
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package icemoon.iceloader.locators;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConcurrencyLimiterTest {
+
+	private int initialLimit;
+
+	@Before
+	public void setUp() {
+		initialLimit = ConcurrencyLimiter.INITIAL_LIMIT;
+		ConcurrencyLimiter.INITIAL_LIMIT = 4;
+	}
+
+	@After
+	public void tearDown() {
+		ConcurrencyLimiter.INITIAL_LIMIT = initialLimit;
+	}
+
+	@Test
+	public void testPermits() {
+		ConcurrencyLimiter l = new ConcurrencyLimiter("test");
+		ConcurrencyLimiter.Permit p1 = l.acquire(1000);
+		ConcurrencyLimiter.Permit p2 = l.acquire(1000);
+		assertEquals(2, l.getInFlight());
+		p1.close();
+		// Closing again does nothing
+		p1.close();
+		assertEquals(1, l.getInFlight());
+		p2.close();
+		assertEquals(0, l.getInFlight());
+	}
+
+	@Test
+	public void testWaitsForPermit() throws Exception {
+		final ConcurrencyLimiter l = new ConcurrencyLimiter("test");
+		List<ConcurrencyLimiter.Permit> held = acquireInOtherThread(l, l.getLimit());
+		final long[] waited = new long[1];
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				long started = System.currentTimeMillis();
+				l.acquire(10000).close();
+				waited[0] = System.currentTimeMillis() - started;
+			}
+		};
+		t.start();
+		Thread.sleep(200);
+		assertTrue(t.isAlive());
+		held.get(0).close();
+		t.join(5000);
+		assertTrue(waited[0] >= 150);
+		assertTrue(waited[0] < 5000);
+	}
+
+	@Test
+	public void testTimeout() {
+		ConcurrencyLimiter l = new ConcurrencyLimiter("test");
+		acquireInOtherThread(l, l.getLimit());
+		long started = System.currentTimeMillis();
+		// Issued anyway once the timeout passes
+		l.acquire(100).close();
+		assertTrue(System.currentTimeMillis() - started >= 90);
+	}
+
+	@Test
+	public void testHolderDoesNotWait() {
+		ConcurrencyLimiter l = new ConcurrencyLimiter("test");
+		List<ConcurrencyLimiter.Permit> held = new ArrayList<ConcurrencyLimiter.Permit>();
+		long started = System.currentTimeMillis();
+		for (int i = 0; i < l.getLimit() + 2; i++)
+			held.add(l.acquire(5000));
+		assertTrue(System.currentTimeMillis() - started < 1000);
+		assertEquals(l.getLimit() + 2, l.getInFlight());
+		for (ConcurrencyLimiter.Permit p : held)
+			p.close();
+		assertEquals(0, l.getInFlight());
+	}
+
+	@Test
+	public void testFailureHalvesLimit() {
+		ConcurrencyLimiter l = new ConcurrencyLimiter("test");
+		l.failed();
+		assertEquals(2, l.getLimit());
+		l.failed();
+		l.failed();
+		assertEquals(ConcurrencyLimiter.MIN_LIMIT, l.getLimit());
+	}
+
+	@Test
+	public void testGrowsWhenUsed() {
+		ConcurrencyLimiter l = new ConcurrencyLimiter("test");
+		List<ConcurrencyLimiter.Permit> held = new ArrayList<ConcurrencyLimiter.Permit>();
+		for (int i = 0; i < 4; i++)
+			held.add(l.acquire(1000));
+		for (int i = 0; i < 20; i++)
+			l.succeeded(10);
+		assertTrue(l.getLimit() > 4);
+		for (ConcurrencyLimiter.Permit p : held)
+			p.close();
+	}
+
+	@Test
+	public void testDoesNotGrowWhenIdle() {
+		ConcurrencyLimiter l = new ConcurrencyLimiter("test");
+		for (int i = 0; i < 20; i++)
+			l.succeeded(10);
+		assertEquals(4, l.getLimit());
+	}
+
+	@Test
+	public void testShrinksWhenSlow() {
+		ConcurrencyLimiter l = new ConcurrencyLimiter("test");
+		l.succeeded(10);
+		for (int i = 0; i < 5; i++)
+			l.succeeded(1000);
+		assertTrue(l.getLimit() < 4);
+	}
+
+	private static List<ConcurrencyLimiter.Permit> acquireInOtherThread(final ConcurrencyLimiter l, final int count) {
+		// Permits held by another thread, as the holder itself never waits
+		final List<ConcurrencyLimiter.Permit> held = new ArrayList<ConcurrencyLimiter.Permit>();
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; i < count; i++)
+					held.add(l.acquire(1000));
+			}
+		};
+		t.start();
+		try {
+			t.join();
+		} catch (InterruptedException ie) {
+			throw new RuntimeException(ie);
+		}
+		return held;
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2013-2016 Emerald Icemoon All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  *
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package icemoon.iceloader.locators;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ServerMirrorsTest {
+
+	private long baseBackoff;
+
+	@Before
+	public void setUp() {
+		baseBackoff = ServerMirrors.BASE_BACKOFF;
+	}
+
+	@After
+	public void tearDown() {
+		ServerMirrors.BASE_BACKOFF = baseBackoff;
+	}
+
+	@Test
+	public void testParse() throws MalformedURLException {
+		ServerMirrors m = ServerMirrors.parse("http://a.example/assets, http://b.example/assets/\n http://c.example/");
+		assertEquals(3, m.getMirrors().size());
+		assertEquals(new URL("http://a.example/assets/"), m.getPrimary().getRoot());
+		assertEquals(new URL("http://b.example/assets/"), m.getMirrors().get(1).getRoot());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNone() throws MalformedURLException {
+		ServerMirrors.parse(" , ");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoRoots() {
+		new ServerMirrors(Collections.<URL> emptyList());
+	}
+
+	@Test
+	public void testConfiguredOrderUntilMeasured() throws MalformedURLException {
+		ServerMirrors m = ServerMirrors.parse("http://a.example/ http://b.example/ http://c.example/");
+		assertEquals(m.getMirrors(), m.select());
+	}
+
+	@Test
+	public void testFastestFirst() throws MalformedURLException {
+		ServerMirrors m = ServerMirrors.parse("http://a.example/ http://b.example/");
+		ServerMirrors.Mirror a = m.getMirrors().get(0);
+		ServerMirrors.Mirror b = m.getMirrors().get(1);
+		a.succeeded(500);
+		b.succeeded(50);
+		List<ServerMirrors.Mirror> l = m.select();
+		assertEquals(b, l.get(0));
+		assertEquals(a, l.get(1));
+	}
+
+	@Test
+	public void testUntriedBeforeMeasured() throws MalformedURLException {
+		ServerMirrors m = ServerMirrors.parse("http://a.example/ http://b.example/");
+		m.getMirrors().get(0).succeeded(50);
+		assertEquals(m.getMirrors().get(1), m.select().get(0));
+	}
+
+	@Test
+	public void testFailedOutOfUse() throws MalformedURLException {
+		ServerMirrors.BASE_BACKOFF = 60000;
+		ServerMirrors m = ServerMirrors.parse("http://a.example/ http://b.example/");
+		ServerMirrors.Mirror a = m.getMirrors().get(0);
+		a.failed();
+		assertFalse(a.isAvailable());
+		assertTrue(a.getErrorRate() > 0);
+		List<ServerMirrors.Mirror> l = m.select();
+		assertEquals(1, l.size());
+		assertEquals(m.getMirrors().get(1), l.get(0));
+
+		// Back in use as soon as it responds
+		a.succeeded(100);
+		assertTrue(a.isAvailable());
+		assertEquals(2, m.select().size());
+	}
+
+	@Test
+	public void testAllFailed() throws MalformedURLException {
+		ServerMirrors.BASE_BACKOFF = 60000;
+		ServerMirrors m = ServerMirrors.parse("http://a.example/");
+		m.getPrimary().failed();
+		assertTrue(m.select().isEmpty());
+	}
+
+	@Test
+	public void testBackoffExpires() throws Exception {
+		ServerMirrors.BASE_BACKOFF = 1;
+		ServerMirrors m = ServerMirrors.parse("http://a.example/");
+		m.getPrimary().failed();
+		Thread.sleep(20);
+		assertTrue(m.getPrimary().isAvailable());
+		assertEquals(1, m.select().size());
+	}
+}
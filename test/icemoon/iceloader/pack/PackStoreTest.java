@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2013-2016 Emerald Icemoon All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  *
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package icemoon.iceloader.pack;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import icemoon.iceloader.AbstractVFSLocator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PackStoreTest {
+
+	private File file;
+	private PackStore store;
+	private long compactMin;
+
+	@Before
+	public void setUp() throws IOException {
+		compactMin = PackStore.COMPACT_MIN;
+		// Only compact when asked to
+		PackStore.COMPACT_MIN = Long.MAX_VALUE;
+		file = File.createTempFile("store", ".pack");
+		file.delete();
+		store = new PackStore(file);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		PackStore.COMPACT_MIN = compactMin;
+		store.close();
+		file.delete();
+	}
+
+	@Test
+	public void testWriteAndRead() throws IOException {
+		write("Textures/Stone.png", "stone", false);
+		write("Textures/Grass.png", "grass", false);
+		assertEquals("stone", read("Textures/Stone.png"));
+		assertEquals("grass", read("Textures/Grass.png"));
+		assertEquals(5, store.getSize("Textures/Stone.png"));
+		assertTrue(store.isFile("Textures/Stone.png"));
+		assertTrue(store.isFolder("Textures"));
+		assertEquals(new HashSet<String>(Arrays.asList("Stone.png", "Grass.png")),
+				new HashSet<String>(Arrays.asList(store.list("Textures"))));
+		assertEquals(10, store.getLive());
+		assertEquals(0, store.getDead());
+	}
+
+	@Test
+	public void testReplace() throws IOException {
+		write("a", "first", false);
+		write("a", "second", false);
+		assertEquals("second", read("a"));
+		assertEquals(6, store.getLive());
+		assertEquals(5, store.getDead());
+	}
+
+	@Test
+	public void testAppend() throws IOException {
+		write("journal", "a\n", false);
+		write("journal", "b\n", true);
+		write("journal", "c\n", true);
+		assertEquals("a\nb\nc\n", read("journal"));
+		assertEquals(6, store.getSize("journal"));
+		// Only the new content is written each time
+		assertEquals(0, store.getDead());
+	}
+
+	@Test
+	public void testOnlyLargeFilesMapped() throws IOException {
+		long threshold = AbstractVFSLocator.MAP_THRESHOLD;
+		try {
+			AbstractVFSLocator.MAP_THRESHOLD = 6;
+			write("small", "small", false);
+			write("large", "larger", false);
+			assertFalse(store.openInput("small").getBuffer().isDirect());
+			assertTrue(store.openInput("large").getBuffer().isDirect());
+			AbstractVFSLocator.MAP_THRESHOLD = -1;
+			assertFalse(store.openInput("large").getBuffer().isDirect());
+			assertEquals("larger", read("large"));
+		} finally {
+			AbstractVFSLocator.MAP_THRESHOLD = threshold;
+		}
+	}
+
+	@Test
+	public void testDeleteAndMove() throws IOException {
+		write("a", "aaa", false);
+		write("b", "bb", false);
+		store.move("a", "b");
+		assertFalse(store.isFile("a"));
+		assertEquals("aaa", read("b"));
+		store.delete("b");
+		assertFalse(store.isFile("b"));
+		assertEquals(0, store.getLive());
+		try {
+			read("b");
+			fail("Deleted file could be read");
+		} catch (IOException ioe) {
+		}
+	}
+
+	@Test
+	public void testTouch() throws IOException {
+		write("a", "aaa", false);
+		store.touch("a", 123000);
+		assertEquals(123000, store.getLastModified("a"));
+	}
+
+	@Test
+	public void testReopen() throws IOException {
+		write("Textures/Stone.png", "stone", false);
+		write("journal", "a\n", false);
+		write("journal", "b\n", true);
+		write("gone", "gone", false);
+		store.delete("gone");
+		store.touch("Textures/Stone.png", 123000);
+		store.close();
+
+		store = new PackStore(file);
+		assertEquals("stone", read("Textures/Stone.png"));
+		assertEquals(123000, store.getLastModified("Textures/Stone.png"));
+		assertEquals("a\nb\n", read("journal"));
+		assertFalse(store.isFile("gone"));
+	}
+
+	@Test
+	public void testIncompleteRecord() throws IOException {
+		write("a", "aaa", false);
+		store.close();
+		long good = file.length();
+
+		// As if the process died while writing
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(good);
+			raf.write(new byte[] { 'P', 0, 5, 'b' });
+		} finally {
+			raf.close();
+		}
+
+		store = new PackStore(file);
+		assertEquals("aaa", read("a"));
+		assertFalse(store.isFile("b"));
+		assertEquals(good, file.length());
+		write("c", "ccc", false);
+		assertEquals("ccc", read("c"));
+	}
+
+	@Test
+	public void testCompact() throws IOException {
+		write("journal", "a\n", false);
+		for (int i = 0; i < 100; i++)
+			write("Textures/" + (i % 5) + ".png", "content " + i, false);
+		write("journal", "b\n", true);
+		long before = file.length();
+		assertTrue(store.getDead() > 0);
+
+		store.compact();
+		assertEquals(0, store.getDead());
+		assertTrue(file.length() < before);
+		assertEquals("a\nb\n", read("journal"));
+		assertEquals("content 98", read("Textures/3.png"));
+
+		// Still usable, and survives reopening
+		write("journal", "c\n", true);
+		store.close();
+		store = new PackStore(file);
+		assertEquals("a\nb\nc\n", read("journal"));
+		assertEquals("content 99", read("Textures/4.png"));
+	}
+
+	private void write(String name, String content, boolean append) throws IOException {
+		OutputStream out = store.openOutput(name, append);
+		try {
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private String read(String name) throws IOException {
+		InputStream in = store.openInput(name);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[256];
+			int r;
+			while ((r = in.read(buf)) != -1)
+				out.write(buf, 0, r);
+			return out.toString("UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+}